@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Minimal JMH-style harness: time-boxed warmup, then several timed iterations,
+// reporting the average and best ns/op. Results feed a sink so the JIT cannot drop the work.
+public class Bench {
+
+    public interface Op {
+        // runs the operation `ops` times and returns something derived from the work
+        long run(int ops) throws Exception;
+    }
+
+    private static final long WARMUP_NANOS = Long.getLong("bench.warmupMs", 1000) * 1_000_000;
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("bench.iterationMs", 500) * 1_000_000;
+
+    public static volatile long sink;
+
+    private final String filter;
+    private final List<String> rows = new ArrayList<>();
+
+    public Bench(String filter) {
+        this.filter = filter;
+    }
+
+    // lets a benchmark skip expensive setup when the filter excludes all of its names
+    public boolean selected(String... names) {
+        for (String name : names) {
+            if (filter == null || name.contains(filter)) return true;
+        }
+        return false;
+    }
+
+    public void measure(String name, Op op) throws Exception {
+        if (!selected(name)) {
+            return;
+        }
+
+        int ops = 1;
+        long deadline = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < deadline) {
+            long start = System.nanoTime();
+            sink += op.run(ops);
+            long took = System.nanoTime() - start;
+            if (took < ITERATION_NANOS / 10 && ops < (1 << 30)) {
+                ops *= 2;
+            }
+        }
+
+        double best = Double.MAX_VALUE;
+        double total = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            sink += op.run(ops);
+            double perOp = (double) (System.nanoTime() - start) / ops;
+            best = Math.min(best, perOp);
+            total += perOp;
+        }
+        String row = String.format(Locale.US, "| %-40s | %14.1f | %14.1f |", name, total / ITERATIONS, best);
+        rows.add(row);
+        System.out.println(row);
+    }
+
+    // a single measured value, such as a size, reported in the same table
+    public void value(String name, double value, String unit) {
+        if (!selected(name)) {
+            return;
+        }
+        String row = String.format(Locale.US, "| %-40s | %14.1f | %14s |", name, value, unit);
+        rows.add(row);
+        System.out.println(row);
+    }
+
+    public void header() {
+        System.out.println(String.format(Locale.US, "| %-40s | %14s | %14s |", "benchmark", "avg ns/op", "best ns/op"));
+        System.out.println("|" + "-".repeat(42) + "|" + "-".repeat(16) + "|" + "-".repeat(16) + "|");
+    }
+}
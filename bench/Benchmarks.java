@@ -0,0 +1,399 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+// Benchmarks for the checkout hot paths. Run with an optional name filter:
+//   javac -d out src/*.java bench/*.java && java -cp out Benchmarks [filter]
+public class Benchmarks {
+
+    private static final BigDecimal TAX_RATE = new BigDecimal("0.065");
+    private static final BigDecimal CASH = new BigDecimal("100000.00");
+
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args.length > 0 ? args[0] : null);
+        Path dir = Files.createTempDirectory("jqm-bench");
+        try {
+            bench.header();
+            cart(bench);
+            pricing(bench);
+            inventory(bench, dir);
+            heap(bench, dir);
+            receipts(bench, dir);
+            sales(bench, dir);
+            salesFind(bench, dir);
+            metrics(bench);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static void cart(Bench bench) throws Exception {
+        for (int lines : new int[] { 10, 100, 1000 }) {
+            Inventory inventory = Workloads.inventory(lines, 1, Integer.MAX_VALUE / 2);
+            Product[] products = inventory.all().toArray(new Product[0]);
+
+            bench.measure("cart.addItem/" + lines + " lines", ops -> {
+                Cart cart = new Cart(Workloads.FLAT);
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    if (i % lines == 0) cart.clear();
+                    cart.addItem(products[i % lines], 1, CustomerType.MEMBER);
+                    sum += cart.getTotalUnits();
+                }
+                cart.clear();
+                return sum;
+            });
+
+            Cart cart = Workloads.cart(inventory, lines, 2, CustomerType.MEMBER);
+            bench.measure("cart.getTotal/" + lines + " lines", ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += cart.getTotal(TAX_RATE).unscaledValue().longValue();
+                }
+                return sum;
+            });
+            cart.clear();
+        }
+    }
+
+    private static void pricing(Bench bench) throws Exception {
+        Inventory inventory = Workloads.inventory(5_000, 7, Integer.MAX_VALUE / 2);
+        Product[] products = inventory.all().toArray(new Product[0]);
+        for (int rules : new int[] { 1_000, 10_000 }) {
+            Pricing pricing = Workloads.pricing(new ArrayList<>(inventory.all()), rules, 8);
+            int lines = 300;
+
+            bench.measure("pricing.addItem/" + lines + " lines x " + rules + " rules", ops -> {
+                Cart cart = new Cart(pricing);
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    if (i % (lines * 3) == 0) cart.clear();
+                    cart.addItem(products[(i % lines) * 13], 1, CustomerType.EMPLOYEE);
+                    sum += cart.getDiscountCents();
+                }
+                cart.clear();
+                return sum;
+            });
+
+            Cart cart = Workloads.cart(inventory, lines, 9, CustomerType.EMPLOYEE, pricing);
+            bench.measure("pricing.getTotal/" + lines + " lines x " + rules + " rules", ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += cart.getTotalCents();
+                }
+                return sum;
+            });
+            cart.clear();
+        }
+    }
+
+    private static void inventory(Bench bench, Path dir) throws Exception {
+        for (int size : new int[] { 1_000, 10_000, 100_000 }) {
+            Path file = Workloads.catalogFile(dir, size, 3);
+            bench.measure("inventory.load/" + size, ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += Inventory.load(file).all().size();
+                }
+                return sum;
+            });
+
+            Inventory inventory = Inventory.load(file);
+            Path out = dir.resolve("saved-" + size + ".txt");
+            bench.measure("inventory.save/" + size, ops -> {
+                for (int i = 0; i < ops; i++) {
+                    inventory.save(out);
+                }
+                return Files.size(out);
+            });
+            reload(bench, dir, file, size);
+        }
+        String big = "inventory.reload 5 lines/1000000";
+        if (bench.selected(big)) {
+            reload(bench, dir, Workloads.catalogFile(dir, 1_000_000, 3), 1_000_000);
+        }
+
+        Inventory inventory = Workloads.inventory(100_000, 4, 100);
+        String[] hits = new String[4096];
+        String[] misses = new String[4096];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = Workloads.name(i * 24 % 100_000);
+            misses[i] = Workloads.name(100_000 + i);
+        }
+        bench.measure("inventory.find/hit", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += inventory.find(hits[i & 4095]).isPresent() ? 1 : 0;
+            }
+            return sum;
+        });
+        bench.measure("inventory.find/miss", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += inventory.find(misses[i & 4095]).isPresent() ? 1 : 0;
+            }
+            return sum;
+        });
+
+        bench.measure("inventory.snapshot/100000", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += inventory.snapshot().getVersion();
+            }
+            return sum;
+        });
+        // a 10-line sale published against a 100k catalog, then taken back out
+        Cart cart = Workloads.cart(inventory, 10, 12, CustomerType.REGULAR);
+        bench.measure("inventory.publish/10 lines", ops -> {
+            for (int i = 0; i < ops; i++) {
+                inventory.publish(cart.items(), (i & 1) == 0 ? -1 : 1);
+            }
+            return inventory.snapshot().getVersion();
+        });
+
+        // products under 100 after one sale: a scan of the current version, then the reorder monitor
+        ReorderMonitor monitor = new ReorderMonitor();
+        monitor.attach(inventory);
+        inventory.publish(cart.items(), -1);
+        bench.measure("stock.below 100 scan/100000", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                StockSnapshot snap = inventory.snapshot();
+                for (int id = 0; id < snap.size(); id++) {
+                    if (snap.onHand(id) < 100) sum++;
+                }
+            }
+            return sum;
+        });
+        bench.measure("reorder.below 100/100000", ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += monitor.below(100).size();
+            }
+            return sum;
+        });
+        bench.measure("reorder.publish/10 lines", ops -> {
+            for (int i = 0; i < ops; i++) {
+                inventory.publish(cart.items(), (i & 1) == 0 ? 1 : -1);
+            }
+            return inventory.snapshot().getVersion();
+        });
+
+        // 20-row pages of the listing, walking the whole catalog one page after another
+        for (InventoryView.Sort sort : InventoryView.Sort.values()) {
+            bench.measure("inventory.page " + sort.name().toLowerCase(Locale.ROOT) + "/100000", ops -> {
+                long sum = 0;
+                InventoryView view = null;
+                for (int i = 0; i < ops; i++) {
+                    if (view == null || !view.hasMore()) {
+                        view = new InventoryView(inventory.snapshot(), inventory.index(), monitor, new InventoryView.Filter(), sort, 20);
+                    }
+                    sum += view.next().size();
+                }
+                return sum;
+            });
+        }
+        monitor.close();
+        cart.clear();
+    }
+
+    // Head office edits 5 lines of the file. Each op swaps the other version into place by
+    // renaming a hard link over it, so what is timed is the reload, not writing the file.
+    private static void reload(Bench bench, Path dir, Path catalog, int size) throws Exception {
+        String name = "inventory.reload 5 lines/" + size;
+        if (!bench.selected(name)) return;
+        Path file = dir.resolve("reload-" + size + ".txt");
+        Path[] versions = { dir.resolve("reload-" + size + ".a"), dir.resolve("reload-" + size + ".b") };
+        List<String> lines = Files.readAllLines(catalog);
+        Files.write(versions[0], lines);
+        for (int k = 0; k < 5; k++) {
+            int at = (int) ((k * 2654435761L) % size);
+            lines.set(at, lines.get(at).replaceFirst(": \\d+,", ": 7,").replaceFirst("\\$\\d+", "\\$99"));
+        }
+        Files.write(versions[1], lines);
+        Files.copy(versions[0], file);
+        Inventory inventory = Inventory.load(file);
+        Path link = dir.resolve("reload-" + size + ".link");
+        // renaming a link to the file it already is does nothing, so alternate across batches too
+        int[] turn = { 0 };
+        bench.measure(name, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                Files.createLink(link, versions[++turn[0] & 1]);
+                Files.move(link, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                sum += inventory.reload(file);
+            }
+            return sum;
+        });
+    }
+
+    // Retained heap per product of a loaded inventory, search index included. Then again
+    // once every product has been added to a cart and half of them repriced, as after a day
+    // of trading and reloads.
+    private static void heap(Bench bench, Path dir) throws Exception {
+        int size = 200_000;
+        String name = "heap/inventory " + size;
+        String used = "heap/inventory " + size + " after use";
+        if (!bench.selected(name, used)) return;
+        Path file = Workloads.catalogFile(dir, size, 13);
+        long before = usedHeap();
+        Inventory inventory = Inventory.load(file);
+        inventory.findByPrefix("milk", 1);
+        long after = usedHeap();
+        bench.value(name, (double) (after - before) / size, "bytes/product");
+
+        Catalog catalog = inventory.all().get(0).getCatalog();
+        for (int id = 0; id < size; id++) {
+            Bench.sink += catalog.prices(id).getRegularCents();
+            if ((id & 1) == 0) {
+                catalog.reprice(id, catalog.regularCents(id) + 1, catalog.memberCents(id), catalog.taxStatus(id));
+            }
+        }
+        long touched = usedHeap();
+        bench.value(used, (double) (touched - before) / size, "bytes/product");
+        Bench.sink += inventory.all().size();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void receipts(Bench bench, Path dir) throws Exception {
+        LocalDateTime when = LocalDateTime.of(2025, 9, 25, 2, 6, 12);
+        Path receipts = dir.resolve("receipts");
+        for (int lines : new int[] { 10, 100 }) {
+            Inventory inventory = Workloads.inventory(lines, 5, Integer.MAX_VALUE / 2);
+            Cart cart = Workloads.cart(inventory, lines, 6, CustomerType.MEMBER);
+
+            ReceiptTemplate.Buffer buf = new ReceiptTemplate.Buffer();
+            for (ReceiptTemplate.Format format : ReceiptTemplate.Format.values()) {
+                String suffix = format == ReceiptTemplate.Format.TEXT ? "" : " " + format.name().toLowerCase(Locale.ROOT);
+                bench.measure("receipt.render/" + lines + " lines" + suffix, ops -> {
+                    long sum = 0;
+                    for (int i = 0; i < ops; i++) {
+                        ReceiptPrinter.render(i, when, cart, CASH, CustomerType.MEMBER, format, buf.reset());
+                        sum += buf.length();
+                    }
+                    return sum;
+                });
+            }
+            bench.measure("receipt.print/" + lines + " lines", ops -> {
+                long sum = 0;
+                for (int i = 0; i < ops; i++) {
+                    sum += ReceiptPrinter.print(i % 1000, when, cart, CASH, receipts, CustomerType.MEMBER).getNameCount();
+                }
+                return sum;
+            });
+        }
+    }
+
+    private static void sales(Bench bench, Path dir) throws Exception {
+        String byProduct = "sales.units by product/30 days";
+        String tax = "sales.tax total/30 days";
+        String top = "sales.top 10 revenue/30 days";
+        if (!bench.selected(byProduct, tax, top)) return;
+        // a month of history: 30 days x 1,000 sales x 100 lines
+        Path salesDir = dir.resolve("sales");
+        Inventory inventory = Workloads.inventory(2_000, 10, Integer.MAX_VALUE / 2);
+        Cart cart = Workloads.cart(inventory, 100, 11, CustomerType.MEMBER);
+        LocalDate first = LocalDate.of(2025, 9, 1);
+        try (SalesLog log = SalesLog.open(salesDir)) {
+            long tx = 0;
+            for (int day = 0; day < 30; day++) {
+                LocalDateTime open = first.plusDays(day).atTime(8, 0);
+                for (int sale = 0; sale < 1_000; sale++) {
+                    log.append(++tx, open.plusSeconds(sale * 40L), cart, CustomerType.MEMBER);
+                }
+            }
+        }
+        cart.clear();
+
+        SalesQuery query = new SalesQuery(salesDir);
+        LocalDate last = first.plusDays(29);
+        bench.measure(byProduct, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += query.sum(first, last, SalesQuery.GroupBy.PRODUCT, SalesQuery.Measure.UNITS).size();
+            }
+            return sum;
+        });
+        bench.measure(tax, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += query.total(first, last, SalesQuery.Measure.TAX_CENTS);
+            }
+            return sum;
+        });
+        bench.measure(top, ops -> {
+            long sum = 0;
+            for (int i = 0; i < ops; i++) {
+                sum += query.top(first, last, SalesQuery.GroupBy.PRODUCT, SalesQuery.Measure.REVENUE_CENTS, 10).size();
+            }
+            return sum;
+        });
+    }
+
+    private static void salesFind(Bench bench, Path dir) throws Exception {
+        Inventory inventory = Workloads.inventory(2_000, 10, Integer.MAX_VALUE / 2);
+        Cart cart = Workloads.cart(inventory, 3, 12, CustomerType.MEMBER);
+        LocalDate first = LocalDate.of(2025, 9, 1);
+        for (int sales : new int[] { 10_000, 1_000_000 }) {
+            String name = "sales.find/" + sales + " sales";
+            if (!bench.selected(name)) continue;
+            // the same 30 days, more sales per day
+            Path salesDir = dir.resolve("sales-" + sales);
+            try (SalesLog log = SalesLog.open(salesDir)) {
+                long perDay = sales / 30;
+                for (long tx = 1; tx <= sales; tx++) {
+                    LocalDateTime open = first.plusDays((tx - 1) / perDay).atTime(8, 0);
+                    log.append(tx, open.plusSeconds((tx - 1) % perDay), cart, CustomerType.MEMBER);
+                }
+            }
+            try (SalesLog log = SalesLog.open(salesDir)) {
+                bench.measure(name, ops -> {
+                    long sum = 0;
+                    long tx = 1;
+                    for (int i = 0; i < ops; i++) {
+                        tx = (tx * 48271) % sales + 1;
+                        sum += log.find(tx).get().getLines().size();
+                    }
+                    return sum;
+                });
+            }
+        }
+        cart.clear();
+    }
+
+    private static void metrics(Bench bench) throws Exception {
+        Metrics.Counter counter = Metrics.counter("bench.counter");
+        Metrics.Histogram histogram = Metrics.histogram("bench.histogram");
+        bench.measure("metrics.counter.inc", ops -> {
+            for (int i = 0; i < ops; i++) {
+                counter.inc();
+            }
+            return counter.get();
+        });
+        bench.measure("metrics.histogram.recordSince", ops -> {
+            for (int i = 0; i < ops; i++) {
+                histogram.recordSince(System.nanoTime());
+            }
+            return histogram.count();
+        });
+    }
+}
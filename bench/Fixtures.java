@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+// State for the JMH benchmarks in bench/jmh. JMH refuses benchmarks in the default package,
+// and a named package cannot import the app's classes, so each benchmark looks its fixture
+// up here by name once, at setup. A fixture runs one operation per call and returns
+// something derived from the work; closing it deletes any files it made.
+public class Fixtures {
+
+    private static final BigDecimal TAX_RATE = new BigDecimal("0.065");
+    private static final BigDecimal CASH = new BigDecimal("100000.00");
+    private static final LocalDateTime WHEN = LocalDateTime.of(2025, 9, 25, 2, 6, 12);
+
+    public interface Body {
+        long run() throws IOException;
+    }
+
+    public static final class Op implements LongSupplier, AutoCloseable {
+        private final Body body;
+        private final Path dir;
+
+        Op(Body body, Path dir) {
+            this.body = body;
+            this.dir = dir;
+        }
+
+        @Override
+        public long getAsLong() {
+            try {
+                return body.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (dir == null) return;
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    // adds the next product, starting over once the cart holds `lines` of them
+    public static Op cartAddItem(int lines) {
+        Product[] products = Workloads.inventory(lines, 1, Integer.MAX_VALUE / 2).all().toArray(new Product[0]);
+        Cart cart = new Cart(Workloads.FLAT);
+        int[] next = { 0 };
+        return new Op(() -> {
+            if (next[0] == lines) {
+                cart.clear();
+                next[0] = 0;
+            }
+            cart.addItem(products[next[0]++], 1, CustomerType.MEMBER);
+            return cart.getTotalUnits();
+        }, null);
+    }
+
+    public static Op cartGetTotal(int lines) {
+        Cart cart = Workloads.cart(Workloads.inventory(lines, 1, Integer.MAX_VALUE / 2), lines, 2, CustomerType.MEMBER);
+        return new Op(() -> cart.getTotal(TAX_RATE).unscaledValue().longValue(), null);
+    }
+
+    public static Op inventoryLoad(int size) throws IOException {
+        Path dir = Files.createTempDirectory("jqm-jmh");
+        Path file = Workloads.catalogFile(dir, size, 3);
+        return new Op(() -> Inventory.load(file).all().size(), dir);
+    }
+
+    public static Op inventorySave(int size) throws IOException {
+        Path dir = Files.createTempDirectory("jqm-jmh");
+        Inventory inventory = Inventory.load(Workloads.catalogFile(dir, size, 3));
+        Path out = dir.resolve("saved.txt");
+        return new Op(() -> {
+            inventory.save(out);
+            return Files.size(out);
+        }, dir);
+    }
+
+    // looks up names that are in a 100,000-product catalog, or that are not
+    public static Op inventoryFind(boolean hit) {
+        Inventory inventory = Workloads.inventory(100_000, 4, 100);
+        String[] names = new String[4096];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = Workloads.name(hit ? i * 24 % 100_000 : 100_000 + i);
+        }
+        int[] next = { 0 };
+        return new Op(() -> inventory.find(names[next[0]++ & 4095]).isPresent() ? 1 : 0, null);
+    }
+
+    public static Op receiptRender(int lines) {
+        Cart cart = Workloads.cart(Workloads.inventory(lines, 5, Integer.MAX_VALUE / 2), lines, 6, CustomerType.MEMBER);
+        ReceiptTemplate.Buffer buf = new ReceiptTemplate.Buffer();
+        long[] tx = { 0 };
+        return new Op(() -> {
+            ReceiptPrinter.render(++tx[0], WHEN, cart, CASH, CustomerType.MEMBER, ReceiptTemplate.Format.TEXT, buf.reset());
+            return buf.length();
+        }, null);
+    }
+
+    // renders and writes the receipt file, over the same 1,000 names
+    public static Op receiptPrint(int lines) throws IOException {
+        Path dir = Files.createTempDirectory("jqm-jmh");
+        Cart cart = Workloads.cart(Workloads.inventory(lines, 5, Integer.MAX_VALUE / 2), lines, 6, CustomerType.MEMBER);
+        long[] tx = { 0 };
+        return new Op(() -> ReceiptPrinter.print(++tx[0] % 1000, WHEN, cart, CASH, dir, CustomerType.MEMBER).getNameCount(), dir);
+    }
+}
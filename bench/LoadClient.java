@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Load generator for CheckoutServer. Opens many sessions over localhost and drives scripted
+// transactions through each (a few ADDs, a VIEW and a CHECKOUT), then reports throughput and
+// request latency percentiles:
+//   java -cp out LoadClient [host:port inventory.txt] [--sessions N] [--seconds S] [--depth D]
+// Without an address it serves a generated catalog in-process from a temp directory.
+// --depth is how many requests each session keeps in flight; 1 turns pipelining off.
+public class LoadClient {
+
+    private static final int PRODUCTS = 10_000;
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final class Conn {
+        final SocketChannel channel;
+        final Random random;
+        final long[] sent;
+        int head;
+        int inFlight;
+        // the next transaction's requests not yet sent
+        final List<String> script = new ArrayList<>();
+        ByteBuffer out = ByteBuffer.allocate(0);
+        byte[] partial = EMPTY;
+
+        Conn(SocketChannel channel, long seed, int depth) {
+            this.channel = channel;
+            this.random = new Random(seed);
+            this.sent = new long[depth];
+        }
+    }
+
+    private final List<String> names;
+    private final int depth;
+    private final Metrics.Histogram latency = new Metrics.Histogram();
+    private long replies;
+    private long errors;
+    private long checkouts;
+    private boolean measuring;
+
+    private LoadClient(List<String> names, int depth) {
+        this.names = names;
+        this.depth = depth;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = Integer.parseInt(option(args, "--sessions", "1000"));
+        int seconds = Integer.parseInt(option(args, "--seconds", "10"));
+        int depth = Integer.parseInt(option(args, "--depth", "8"));
+
+        if (args.length >= 2 && !args[0].startsWith("--")) {
+            String[] hostPort = args[0].split(":");
+            List<String> names = names(Inventory.load(Path.of(args[1])));
+            new LoadClient(names, depth).run(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])), sessions, seconds);
+            return;
+        }
+
+        Path dir = Files.createTempDirectory("jqm-load");
+        try {
+            Path file = dir.resolve("inventory.txt");
+            Workloads.inventory(PRODUCTS, 21, 100_000_000).save(file);
+            Inventory inventory = Inventory.load(file);
+            try (CheckoutEngine engine = new CheckoutEngine(inventory, file, dir.resolve("receipts"), Workloads.FLAT, true)) {
+                final CheckoutServer server = new CheckoutServer(engine, 0, 32);
+                try {
+                    Thread serving = new Thread(() -> {
+                        try {
+                            server.run();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }, "checkout-server");
+                    serving.start();
+                    new LoadClient(names(inventory), depth).run(new InetSocketAddress("localhost", server.getPort()), sessions, seconds);
+                    server.close();
+                    serving.join();
+                } finally {
+                    server.close();
+                }
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static List<String> names(Inventory inventory) {
+        List<String> names = new ArrayList<>();
+        for (Product p : inventory.all()) names.add(p.getName());
+        return names;
+    }
+
+    private void run(InetSocketAddress address, int sessions, int seconds) throws IOException {
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < sessions; i++) {
+                SocketChannel ch = SocketChannel.open(address);
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Conn c = new Conn(ch, i, depth);
+                c.script.add("TYPE " + (i % 2 == 0 ? "MEMBER" : "REGULAR"));
+                ch.register(selector, SelectionKey.OP_READ, c);
+                send(c, selector);
+            }
+            System.out.printf(Locale.US, "%d sessions, pipeline depth %d, %d s (+2 s warmup)%n", sessions, depth, seconds);
+
+            long start = System.nanoTime();
+            long measureFrom = start + WARMUP_NANOS;
+            long end = measureFrom + seconds * 1_000_000_000L;
+            ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                if (!measuring && now >= measureFrom) {
+                    measuring = true;
+                }
+                selector.select(100);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Conn c = (Conn) key.attachment();
+                    if (key.isReadable()) {
+                        in.clear();
+                        if (c.channel.read(in) < 0) {
+                            throw new IOException("server closed a session");
+                        }
+                        received(c, in.array(), in.position());
+                    }
+                    send(c, selector);
+                }
+                selector.selectedKeys().clear();
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        }
+
+        double took = seconds;
+        System.out.printf(Locale.US, "requests: %d (%.0f/s), checkouts: %d (%.0f/s), errors: %d%n",
+                replies, replies / took, checkouts, checkouts / took, errors);
+        System.out.printf(Locale.US, "latency us: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                latency.percentile(50) / 1e3, latency.percentile(90) / 1e3, latency.percentile(99) / 1e3,
+                latency.percentile(99.9) / 1e3, latency.max() / 1e3);
+    }
+
+    // Tops the session up to `depth` requests in flight and writes what the socket takes.
+    private void send(Conn c, Selector selector) throws IOException {
+        if (c.inFlight < depth && !c.out.hasRemaining()) {
+            StringBuilder batch = new StringBuilder();
+            long now = System.nanoTime();
+            while (c.inFlight < depth) {
+                if (c.script.isEmpty()) nextTransaction(c);
+                batch.append(c.script.remove(0)).append('\n');
+                c.sent[(c.head + c.inFlight) % depth] = now;
+                c.inFlight++;
+            }
+            c.out = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        c.channel.write(c.out);
+        c.channel.keyFor(selector).interestOps(SelectionKey.OP_READ | (c.out.hasRemaining() ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void nextTransaction(Conn c) {
+        int lines = 1 + c.random.nextInt(4);
+        for (int i = 0; i < lines; i++) {
+            c.script.add("ADD " + (1 + c.random.nextInt(3)) + " " + names.get(c.random.nextInt(names.size())));
+        }
+        c.script.add("VIEW");
+        c.script.add("CHECKOUT 100000");
+    }
+
+    private void received(Conn c, byte[] data, int length) {
+        long now = System.nanoTime();
+        int from = 0;
+        for (int i = 0; i < length; i++) {
+            if (data[i] != '\n') continue;
+            // only the first bytes matter: OK or ERR, and whether it answered a checkout
+            boolean error = c.partial.length > 0 ? c.partial[0] == 'E' : data[from] == 'E';
+            boolean paid = !error && startsWith(c, data, from, "OK {\"total\"");
+            c.partial = EMPTY;
+            from = i + 1;
+
+            long sentAt = c.sent[c.head];
+            c.head = (c.head + 1) % depth;
+            c.inFlight--;
+            if (measuring) {
+                latency.record(now - sentAt);
+                replies++;
+                if (error) errors++;
+                if (paid) checkouts++;
+            }
+        }
+        if (from < length) {
+            byte[] grown = new byte[c.partial.length + length - from];
+            System.arraycopy(c.partial, 0, grown, 0, c.partial.length);
+            System.arraycopy(data, from, grown, c.partial.length, length - from);
+            c.partial = grown;
+        }
+    }
+
+    private static boolean startsWith(Conn c, byte[] data, int from, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            int at = i - c.partial.length;
+            byte b = at < 0 ? c.partial[i] : from + at < data.length ? data[from + at] : 0;
+            if (b != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static String option(String[] args, String name, String fallback) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// Soak test: seeded register traffic through Cart, CheckoutEngine and the receipt writer at a
+// steady rate, then a check that the books balance:
+//   java -cp out Soak [--seed N] [--lanes N] [--rate TX/S] [--seconds S] [--products N] [--stock N]
+//                     [--zipf S] [--members F] [--lines N] [--adjust F] [--empty F] [--cancel F]
+// Each lane plays customers through the register menu. A customer is a member with chance
+// --members, adds --lines items on average (option 2), drawn by Zipf popularity with exponent
+// --zipf, then may adjust or remove one (3), empty the cart and start over (4), views it (5)
+// and checks out (6) or cancels (7). Every lane draws from its own seeded generator, so a seed
+// replays the same customers; only the timing, and which of them gets the last units of a
+// product, differ. Transactions are due on a fixed schedule, and every one due within the
+// run is played even when the lanes fall behind (--rate 0 runs flat out for the time given
+// instead). Latency counts from when a transaction was due, so a stall shows in the
+// percentiles instead of quietly slowing the load. At the end:
+//   stock      no published version had negative stock, and nothing is left reserved
+//   receipts   one receipt per sale, their totals add up to what the lanes paid, and their
+//              units per product add up to what left the inventory
+public class Soak {
+
+    private static final long WARMUP_NANOS = 2_000_000_000L;
+    private static final Pattern ROW = Pattern.compile("^(.+?)\\s+(\\d+)\\s+\\$([\\d.]+)\\s+\\$([\\d.]+)\\s*$");
+
+    private final long seed;
+    private final int lanes;
+    private final int rate;
+    private final int seconds;
+    private final int products;
+    private final int stock;
+    private final double zipf;
+    private final double members;
+    private final double lines;
+    private final double adjust;
+    private final double empty;
+    private final double cancel;
+
+    private final Metrics.Histogram transactionTime = new Metrics.Histogram();
+    private final Metrics.Histogram checkoutTime = new Metrics.Histogram();
+    private final AtomicLong negative = new AtomicLong();
+    private Product[] catalog;
+    // cumulative popularity, by rank; rank r is product order[r]
+    private double[] popularity;
+    private int[] order;
+    private CheckoutEngine engine;
+    private long start;
+    private long measureFrom;
+    private long end;
+
+    private final class Lane extends Thread {
+        final Random random;
+        final long offset;
+        final long[] sold = new long[products];
+        long transactions;
+        long measured;
+        long sales;
+        long paidCents;
+        long cancelled;
+        long abandoned;
+        long adds;
+        long outOfStock;
+        long adjusts;
+        long restarts;
+        long errors;
+        long allocated;
+
+        Lane(int index) {
+            super("soak-lane-" + index);
+            this.random = new Random(seed * 1_000_003 + index);
+            this.offset = rate > 0 ? (long) (1e9 * index / rate) : 0;
+        }
+
+        @Override
+        public void run() {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long interval = rate > 0 ? (long) (1e9 * lanes / rate) : 0;
+            long next = start + offset;
+            while (rate > 0 ? next < end : System.nanoTime() < end) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                long scheduled = rate > 0 ? next : now;
+                next += interval;
+                try {
+                    transaction(scheduled);
+                } catch (Exception e) {
+                    if (errors++ == 0) {
+                        System.err.println(getName() + ": " + e);
+                    }
+                }
+            }
+            allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        }
+
+        private void transaction(long scheduled) throws IOException {
+            transactions++;
+            CustomerType type = random.nextDouble() < members ? CustomerType.MEMBER : CustomerType.REGULAR;
+            Cart cart = new Cart(Workloads.FLAT);
+            int count = cartSize();
+            for (int i = 0; i < count; i++) {
+                adds++;
+                if (!cart.addItem(catalog[product()], 1 + random.nextInt(3), type)) {
+                    outOfStock++;
+                }
+                if (random.nextDouble() < empty) {
+                    cart.clear();
+                    restarts++;
+                }
+            }
+            if (!cart.isEmpty() && random.nextDouble() < adjust) {
+                List<CartItem> items = new ArrayList<>(cart.items());
+                String name = items.get(random.nextInt(items.size())).getName();
+                if (random.nextBoolean()) {
+                    cart.reduceItem(name, 1);
+                } else {
+                    cart.removeItem(name);
+                }
+                adjusts++;
+            }
+            long view = cart.getTotalCents();
+            for (CartItem it : cart.items()) view += it.getLineTotalCents();
+            Bench.sink += view;
+
+            if (cart.isEmpty()) {
+                abandoned++;
+                return;
+            }
+            if (random.nextDouble() < cancel) {
+                engine.cancel(cart);
+                cancelled++;
+                return;
+            }
+            long checkoutStart = System.nanoTime();
+            engine.checkout(cart, cart.getTotal(), type);
+            long done = System.nanoTime();
+            if (scheduled >= measureFrom) {
+                checkoutTime.record(done - checkoutStart);
+                transactionTime.record(done - scheduled);
+                measured++;
+            }
+            sales++;
+            paidCents += cart.getTotalCents();
+            for (CartItem it : cart.items()) {
+                sold[it.getProduct().getId()] += it.getQuantity();
+            }
+        }
+
+        // 1 + geometric, averaging `lines`
+        private int cartSize() {
+            if (lines <= 1) return 1;
+            double p = 1 / lines;
+            return 1 + (int) Math.min(50 * lines, Math.log(1 - random.nextDouble()) / Math.log(1 - p));
+        }
+
+        private int product() {
+            int rank = Arrays.binarySearch(popularity, random.nextDouble());
+            rank = rank < 0 ? -rank - 1 : rank;
+            return order[Math.min(rank, order.length - 1)];
+        }
+    }
+
+    private Soak(String[] args) {
+        seed = Long.parseLong(option(args, "--seed", "42"));
+        lanes = Integer.parseInt(option(args, "--lanes", "8"));
+        rate = Integer.parseInt(option(args, "--rate", "1000"));
+        seconds = Integer.parseInt(option(args, "--seconds", "20"));
+        products = Integer.parseInt(option(args, "--products", "10000"));
+        stock = Integer.parseInt(option(args, "--stock", "1000"));
+        zipf = Double.parseDouble(option(args, "--zipf", "1.0"));
+        members = Double.parseDouble(option(args, "--members", "0.4"));
+        lines = Double.parseDouble(option(args, "--lines", "4"));
+        adjust = Double.parseDouble(option(args, "--adjust", "0.15"));
+        empty = Double.parseDouble(option(args, "--empty", "0.01"));
+        cancel = Double.parseDouble(option(args, "--cancel", "0.05"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Soak soak = new Soak(args);
+        Path dir = Files.createTempDirectory("jqm-soak");
+        boolean ok;
+        try {
+            ok = soak.run(dir);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private boolean run(Path dir) throws Exception {
+        Path file = dir.resolve("inventory.txt");
+        Files.move(Workloads.catalogFile(dir, products, seed, stock), file);
+        Inventory inventory = Inventory.load(file);
+        catalog = inventory.all().toArray(new Product[0]);
+        int[] initial = new int[catalog.length];
+        for (int id = 0; id < catalog.length; id++) initial[id] = catalog[id].getOnHand();
+        popularity(new Random(seed));
+        inventory.addStockListener((version, change, ids, deltas) -> {
+            for (int id : ids) {
+                if (version.onHand(id) < 0) negative.incrementAndGet();
+            }
+        });
+
+        Path receipts = dir.resolve("receipts");
+        List<Lane> all = new ArrayList<>();
+        long gcCount;
+        long gcMillis;
+        double elapsed;
+        try (CheckoutEngine engine = new CheckoutEngine(inventory, file, receipts, Workloads.FLAT, false)) {
+            this.engine = engine;
+            System.out.printf(Locale.US, "seed %d, %d lanes, %s, %d s (+2 s warmup), %d products, zipf %.2f, %.0f%% members%n",
+                    seed, lanes, rate > 0 ? rate + " tx/s" : "flat out", seconds, products, zipf, members * 100);
+            start = System.nanoTime();
+            measureFrom = start + WARMUP_NANOS;
+            end = measureFrom + seconds * 1_000_000_000L;
+            for (int i = 0; i < lanes; i++) {
+                Lane lane = new Lane(i);
+                all.add(lane);
+                lane.start();
+            }
+            LockSupport.parkNanos(measureFrom - System.nanoTime());
+            long[] gcBefore = gc();
+            for (Lane lane : all) lane.join();
+            elapsed = Math.max(seconds, (System.nanoTime() - measureFrom) / 1e9);
+            long[] gcAfter = gc();
+            gcCount = gcAfter[0] - gcBefore[0];
+            gcMillis = gcAfter[1] - gcBefore[1];
+        }
+
+        long transactions = 0, measured = 0, sales = 0, paid = 0, cancelled = 0, abandoned = 0;
+        long adds = 0, outOfStock = 0, adjusts = 0, restarts = 0, errors = 0, allocated = 0;
+        long[] sold = new long[catalog.length];
+        for (Lane lane : all) {
+            transactions += lane.transactions;
+            measured += lane.measured;
+            sales += lane.sales;
+            paid += lane.paidCents;
+            cancelled += lane.cancelled;
+            abandoned += lane.abandoned;
+            adds += lane.adds;
+            outOfStock += lane.outOfStock;
+            adjusts += lane.adjusts;
+            restarts += lane.restarts;
+            errors += lane.errors;
+            allocated += lane.allocated;
+            for (int id = 0; id < sold.length; id++) sold[id] += lane.sold[id];
+        }
+        Runtime rt = Runtime.getRuntime();
+        System.out.printf(Locale.US, "transactions: %d, sales: %d (%.0f/s over %.1f s measured), cancelled: %d, abandoned: %d, errors: %d%n",
+                transactions, sales, measured / elapsed, elapsed, cancelled, abandoned, errors);
+        System.out.printf(Locale.US, "adds: %d (out of stock: %d), adjusts: %d, restarts: %d%n", adds, outOfStock, adjusts, restarts);
+        print("transaction latency us", transactionTime);
+        print("checkout latency us", checkoutTime);
+        System.out.printf(Locale.US, "gc: %d collections, %d ms (%.1f%% of the run), lanes allocated %.1f KB/transaction, heap %d MB after%n",
+                gcCount, gcMillis, gcMillis / (elapsed * 10), allocated / 1024.0 / Math.max(1, transactions),
+                (rt.totalMemory() - rt.freeMemory()) >> 20);
+
+        // the engine is closed: receipts are written and the stock is final
+        boolean ok = errors == 0;
+        ok &= check("stock never negative", negative.get() == 0, negative.get() + " versions with negative stock");
+        int reserved = 0;
+        int below = 0;
+        for (Product p : catalog) {
+            if (p.getReserved() != 0) reserved++;
+            if (p.getOnHand() < 0) below++;
+        }
+        ok &= check("stock never negative at the end", below == 0, below + " products below zero");
+        ok &= check("nothing left reserved", reserved == 0, reserved + " products still hold reserved units");
+
+        long[] receiptUnits = new long[catalog.length];
+        long receiptCents = 0;
+        int count = 0;
+        String unknown = null;
+        try (Stream<Path> files = Files.list(receipts)) {
+            for (Path receipt : (Iterable<Path>) files.filter(p -> p.getFileName().toString().startsWith("tx_"))::iterator) {
+                count++;
+                boolean rows = false;
+                for (String line : Files.readAllLines(receipt, StandardCharsets.UTF_8)) {
+                    if (line.startsWith("ITEM")) {
+                        rows = true;
+                    } else if (line.startsWith("*")) {
+                        rows = false;
+                    } else if (line.startsWith("TOTAL: $")) {
+                        receiptCents += Money.toCents(new BigDecimal(line.substring("TOTAL: $".length()).trim()));
+                    } else if (rows) {
+                        Matcher m = ROW.matcher(line);
+                        if (!m.matches()) continue;
+                        int id = inventory.find(m.group(1).trim()).map(Product::getId).orElse(-1);
+                        if (id < 0) {
+                            unknown = m.group(1).trim();
+                            continue;
+                        }
+                        receiptUnits[id] += Integer.parseInt(m.group(2));
+                    }
+                }
+            }
+        }
+        ok &= check("one receipt per sale", count == sales, count + " receipts for " + sales + " sales");
+        ok &= check("receipt totals match payments", receiptCents == paid,
+                "receipts $" + Money.toBigDecimal(receiptCents) + ", paid $" + Money.toBigDecimal(paid));
+        ok &= check("receipt rows name known products", unknown == null, "unknown product " + unknown);
+        String mismatch = null;
+        for (int id = 0; id < catalog.length && mismatch == null; id++) {
+            long delta = initial[id] - catalog[id].getOnHand();
+            if (delta != receiptUnits[id] || delta != sold[id]) {
+                mismatch = catalog[id].getName() + ": stock fell " + delta + ", receipts " + receiptUnits[id] + ", lanes sold " + sold[id];
+            }
+        }
+        ok &= check("receipt units match stock deltas", mismatch == null, mismatch);
+        System.out.println(ok ? "PASSED" : "FAILED");
+        return ok;
+    }
+
+    // Zipf weights by rank, ranks dealt to products in a seeded shuffle
+    private void popularity(Random random) {
+        popularity = new double[catalog.length];
+        double sum = 0;
+        for (int r = 0; r < popularity.length; r++) {
+            sum += 1 / Math.pow(r + 1, zipf);
+            popularity[r] = sum;
+        }
+        for (int r = 0; r < popularity.length; r++) popularity[r] /= sum;
+        order = new int[catalog.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+    }
+
+    private static long[] gc() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+
+    private static void print(String label, Metrics.Histogram h) {
+        System.out.printf(Locale.US, "%s: p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n", label,
+                h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3);
+    }
+
+    private static boolean check(String invariant, boolean holds, String detail) {
+        System.out.println((holds ? "ok      " : "FAILED  ") + invariant + (holds ? "" : ": " + detail));
+        return holds;
+    }
+
+    private static String option(String[] args, String name, String fallback) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) return args[i + 1];
+        }
+        return fallback;
+    }
+}
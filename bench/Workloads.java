@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Seeded generators for synthetic catalogs, carts and promotions.
+public class Workloads {
+
+    public static final Pricing FLAT = Pricing.flat(new BigDecimal("0.065"));
+
+    private static final String[] WORDS = {
+        "Milk", "Bread", "Coffee", "Apple", "Cola", "Chips", "Soap", "Rice", "Beans", "Tea",
+        "Butter", "Cheese", "Juice", "Water", "Sugar", "Flour", "Salt", "Pasta", "Sauce", "Eggs"
+    };
+
+    public static String name(int i) {
+        return WORDS[i % WORDS.length] + " " + WORDS[(i / WORDS.length) % WORDS.length] + " " + i;
+    }
+
+    public static List<Product> products(int count, long seed, int stock) {
+        Random random = new Random(seed);
+        Catalog catalog = new Catalog();
+        List<Product> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long regular = 50 + random.nextInt(2000);
+            long member = regular - random.nextInt((int) Math.min(regular, 100));
+            int id = catalog.add(name(i), stock, regular, member, random.nextBoolean() ? TaxStatus.TAXABLE : TaxStatus.EXEMPT);
+            out.add(catalog.product(id));
+        }
+        return out;
+    }
+
+    public static Inventory inventory(int count, long seed, int stock) {
+        Inventory inventory = new Inventory();
+        inventory.putAll(products(count, seed, stock));
+        return inventory;
+    }
+
+    public static Path catalogFile(Path dir, int count, long seed) throws IOException {
+        return catalogFile(dir, count, seed, 100);
+    }
+
+    public static Path catalogFile(Path dir, int count, long seed, int stock) throws IOException {
+        Path file = dir.resolve("catalog-" + count + ".txt");
+        List<String> lines = new ArrayList<>(count);
+        for (Product p : products(count, seed, stock)) {
+            lines.add(String.format(Locale.US, "%s: %d, $%.2f, $%.2f, %s", p.getName(), p.getQuantity(),
+                    p.getRegularPrice(), p.getMemberPrice(), p.getTaxStatus() == TaxStatus.TAXABLE ? "Taxable" : "Tax-Exempt"));
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        return file;
+    }
+
+    public static Cart cart(Inventory inventory, int lines, long seed, CustomerType type) {
+        return cart(inventory, lines, seed, type, FLAT);
+    }
+
+    public static Cart cart(Inventory inventory, int lines, long seed, CustomerType type, Pricing pricing) {
+        Random random = new Random(seed);
+        List<Product> products = new ArrayList<>(inventory.all());
+        Cart cart = new Cart(pricing);
+        for (int i = 0; i < lines; i++) {
+            cart.addItem(products.get(i % products.size()), 1 + random.nextInt(3), type);
+        }
+        return cart;
+    }
+
+    // count rules spread over the catalog, a few store-wide, with a mix of kinds, tiers and windows
+    public static Pricing pricing(List<Product> products, int count, long seed) {
+        Random random = new Random(seed);
+        List<Promotion> rules = new ArrayList<>(count);
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < count; i++) {
+            String target = i % 500 == 0 ? null : ProductIndex.normalize(products.get(random.nextInt(products.size())).getName());
+            EnumSet<CustomerType> tiers = random.nextInt(4) == 0 ? EnumSet.of(CustomerType.EMPLOYEE) : EnumSet.allOf(CustomerType.class);
+            LocalDateTime from = random.nextBoolean() ? now.minusDays(1) : null;
+            LocalDateTime until = random.nextInt(8) == 0 ? now.minusHours(1) : null;
+            switch (random.nextInt(3)) {
+                case 0 -> rules.add(Promotion.percentOff(target, BigDecimal.valueOf(1 + random.nextInt(30)), tiers, from, until));
+                case 1 -> rules.add(Promotion.multiBuy(target, 2 + random.nextInt(3), BigDecimal.valueOf(100 + random.nextInt(500), 2), tiers, from, until));
+                default -> rules.add(Promotion.buyGet(target, 1 + random.nextInt(3), 1, tiers, from, until));
+            }
+        }
+        TaxTable.Builder taxes = new TaxTable.Builder(new BigDecimal("0.065")).rate("grocery", new BigDecimal("0.02"));
+        for (int i = 0; i < products.size(); i += 3) {
+            taxes.assign(products.get(i).getName(), "grocery");
+        }
+        return Pricing.compile(rules, taxes.build(), Clock.systemDefaultZone());
+    }
+}
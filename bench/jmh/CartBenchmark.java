@@ -0,0 +1,56 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cart.addItem and Cart.getTotal on carts of 10 to 1,000 lines.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class CartBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int lines;
+
+    private LongSupplier addItem;
+    private LongSupplier getTotal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        addItem = Fixture.of("cartAddItem", lines);
+        getTotal = Fixture.of("cartGetTotal", lines);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Fixture.close(addItem);
+        Fixture.close(getTotal);
+    }
+
+    @Benchmark
+    public long addItem() {
+        return addItem.getAsLong();
+    }
+
+    @Benchmark
+    public long getTotal() {
+        return getTotal.getAsLong();
+    }
+}
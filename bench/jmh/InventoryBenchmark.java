@@ -0,0 +1,81 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Inventory.load and save of a text catalog of 1,000 to 100,000 products, and
+// Inventory.find hits and misses on 100,000.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class InventoryBenchmark {
+
+    @State(Scope.Thread)
+    public static class File {
+        @Param({ "1000", "10000", "100000" })
+        public int size;
+
+        LongSupplier load;
+        LongSupplier save;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            load = Fixture.of("inventoryLoad", size);
+            save = Fixture.of("inventorySave", size);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            Fixture.close(load);
+            Fixture.close(save);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Lookup {
+        LongSupplier hit;
+        LongSupplier miss;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            hit = Fixture.of("inventoryFind", true);
+            miss = Fixture.of("inventoryFind", false);
+        }
+    }
+
+    @Benchmark
+    public long load(File file) {
+        return file.load.getAsLong();
+    }
+
+    @Benchmark
+    public long save(File file) {
+        return file.save.getAsLong();
+    }
+
+    @Benchmark
+    public long findHit(Lookup lookup) {
+        return lookup.hit.getAsLong();
+    }
+
+    @Benchmark
+    public long findMiss(Lookup lookup) {
+        return lookup.miss.getAsLong();
+    }
+}
@@ -0,0 +1,56 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A text receipt rendered into a buffer, and rendered and written by ReceiptPrinter.print.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class ReceiptBenchmark {
+
+    @Param({ "10", "100" })
+    public int lines;
+
+    private LongSupplier render;
+    private LongSupplier print;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        render = Fixture.of("receiptRender", lines);
+        print = Fixture.of("receiptPrint", lines);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Fixture.close(render);
+        Fixture.close(print);
+    }
+
+    @Benchmark
+    public long render() {
+        return render.getAsLong();
+    }
+
+    @Benchmark
+    public long print() {
+        return print.getAsLong();
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Replays transactions without the interactive menu. One transaction per line:
+//   CUSTOMER_TYPE|CASH|Name:qty,Name:qty
+// e.g. "MEMBER|20.00|Milk:2,Red Bull:1". Blank lines and lines starting with # are ignored.
+// When running against a StoreRegistry each line starts with the store id: "north|MEMBER|20.00|Milk:2".
+public class BatchRunner {
+
+    private static final int MAX_REPORTED_FAILURES = 20;
+
+    private final CheckoutEngine engine;
+    private final StoreRegistry stores;
+    private final int lanes;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong units = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // sales that committed but whose receipt could not be written; they are not failures
+    private final AtomicLong unprinted = new AtomicLong();
+    // the earliest failing lines, by line number, since lanes finish out of order
+    private final TreeMap<Long, String> failures = new TreeMap<>();
+
+    public BatchRunner(CheckoutEngine engine, int lanes) {
+        this.engine = engine;
+        this.stores = null;
+        this.lanes = lanes;
+    }
+
+    public BatchRunner(StoreRegistry stores, int lanes) {
+        this.engine = null;
+        this.stores = stores;
+        this.lanes = lanes;
+    }
+
+    public void run(BufferedReader in) throws IOException, InterruptedException {
+        ExecutorService pool = CheckoutEngine.newLanePool(lanes);
+        // bounds how many parsed transactions can wait for a lane, so memory stays flat on huge inputs
+        Semaphore inFlight = new Semaphore(lanes * 4);
+        long start = System.nanoTime();
+        long lineNo = 0;
+
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                long at = lineNo;
+                inFlight.acquire();
+                pool.execute(() -> {
+                    try {
+                        process(trimmed, at);
+                    } catch (Exception e) {
+                        fail(at, e.getMessage());
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long ok = completed.get();
+        System.out.printf(Locale.US, "%nProcessed %d transactions (%d units) in %.2f s: %.0f tx/s, %.0f tx/min%n",
+                ok, units.get(), seconds, ok / seconds, ok / seconds * 60);
+        System.out.println("Failed: " + failed.get());
+        if (unprinted.get() > 0) {
+            System.out.println("Receipts not written: " + unprinted.get());
+        }
+        synchronized (failures) {
+            failures.values().forEach(System.out::println);
+            long reported = failed.get() + unprinted.get();
+            if (reported > failures.size()) {
+                System.out.println("  ... " + (reported - failures.size()) + " more");
+            }
+        }
+    }
+
+    private void process(String line, long at) throws IOException {
+        String[] fields = line.split("\\|", -1);
+        CheckoutEngine engine = this.engine;
+        if (stores != null) {
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("expected STORE|TYPE|CASH|Name:qty,...");
+            }
+            String id = fields[0].trim();
+            engine = stores.get(id).orElseThrow(() -> new IllegalArgumentException("unknown store: " + id)).getEngine();
+            fields = Arrays.copyOfRange(fields, 1, 4);
+        } else if (fields.length != 3) {
+            throw new IllegalArgumentException("expected TYPE|CASH|Name:qty,...");
+        }
+        CustomerType type = CustomerType.valueOf(fields[0].trim().toUpperCase(Locale.ROOT));
+        BigDecimal cash = new BigDecimal(fields[1].trim());
+
+        Cart cart = engine.newCart();
+        int count = 0;
+        for (String entry : fields[2].split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0) {
+                cart.clear();
+                throw new IllegalArgumentException("expected Name:qty but got '" + entry.trim() + "'");
+            }
+            String name = entry.substring(0, colon).trim();
+            int qty = Integer.parseInt(entry.substring(colon + 1).trim());
+            Product p = engine.getInventory().find(name).orElse(null);
+            if (p == null || !cart.addItem(p, qty, type)) {
+                cart.clear();
+                throw new IllegalArgumentException((p == null ? "not in inventory: " : "insufficient stock: ") + name);
+            }
+            count += qty;
+        }
+
+        try {
+            engine.checkout(cart, cash, type).whenComplete((receipt, error) -> {
+                if (error != null) {
+                    unprinted.incrementAndGet();
+                    report(at, "sale committed but receipt failed: " + error.getMessage());
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            cart.clear();
+            throw e;
+        }
+        completed.incrementAndGet();
+        units.addAndGet(count);
+    }
+
+    private void fail(long line, String reason) {
+        failed.incrementAndGet();
+        report(line, reason);
+    }
+
+    private void report(long line, String reason) {
+        synchronized (failures) {
+            failures.put(line, "  line " + line + ": " + reason);
+            if (failures.size() > MAX_REPORTED_FAILURES) {
+                failures.pollLastEntry();
+            }
+        }
+    }
+}
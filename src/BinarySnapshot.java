@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+// Binary inventory snapshot:
+//   header  magic, version, count, journal seq, string table offset, last tx (40 bytes; 32 in version 1)
+//   records name offset, name length << 1 | taxable, qty, regular cents, member cents (28 bytes each)
+//   string table with every name as UTF-8, back to back
+public class BinarySnapshot {
+
+    static final int MAGIC = 0x4A514D42; // "JQMB"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    private static final int V1_HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 28;
+
+    public static boolean isBinary(Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) < V1_HEADER_SIZE) {
+            return false;
+        }
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            ch.read(magic, 0);
+            return magic.getInt(0) == MAGIC;
+        }
+    }
+
+    // A truncated or damaged file fails with an IOException naming it, never a buffer error.
+    // The records and the string table are mapped apart, so each stays under the 2 GB a map
+    // can hold; name offsets are ints, so the table starts within the first 2 GB.
+    public static InventoryLoader.Result read(Path path) throws IOException {
+        InventoryLoader.Result result = new InventoryLoader.Result();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < V1_HEADER_SIZE) {
+                throw new IOException(path + " is too short for a binary inventory snapshot");
+            }
+            // a version 1 file may be shorter than this header
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(size, HEADER_SIZE));
+            while (header.hasRemaining()) {
+                if (ch.read(header, header.position()) < 0) {
+                    throw new IOException(path + " is truncated: it ended while its header was read");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a binary inventory snapshot");
+            }
+            int version = header.getInt(4);
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + path);
+            }
+            int headerSize = version == 1 ? V1_HEADER_SIZE : HEADER_SIZE;
+            if (size < headerSize) {
+                throw new IOException(path + " is truncated: " + size + " bytes, header needs " + headerSize);
+            }
+            int count = header.getInt(8);
+            result.snapshotSeq = header.getLong(16);
+            long strings = header.getLong(24);
+            if (version > 1) {
+                result.lastTx = header.getLong(32);
+            }
+            long recordsEnd = headerSize + (long) count * RECORD_SIZE;
+            if (count < 0 || strings < recordsEnd || strings > size) {
+                throw new IOException(path + " is truncated or corrupt: " + count + " records end at " + recordsEnd
+                        + ", string table at " + strings + ", file is " + size + " bytes");
+            }
+            if (strings > Integer.MAX_VALUE) {
+                throw new IOException(path + " has its string table at " + strings + ", past the 2 GB name offsets can reach");
+            }
+
+            MappedByteBuffer records = ch.map(FileChannel.MapMode.READ_ONLY, 0, strings);
+            long tableSize = Math.min(size - strings, Integer.MAX_VALUE);
+            MappedByteBuffer table = ch.map(FileChannel.MapMode.READ_ONLY, strings, tableSize);
+            byte[] scratch = new byte[256];
+            for (int i = 0, at = headerSize; i < count; i++, at += RECORD_SIZE) {
+                int nameOffset = records.getInt(at);
+                int meta = records.getInt(at + 4);
+                int nameLen = meta >>> 1;
+                if (nameOffset < 0 || (long) nameOffset + nameLen > tableSize) {
+                    throw new IOException(path + " is truncated or corrupt: record " + i + " names bytes "
+                            + (strings + nameOffset) + " to " + (strings + nameOffset + nameLen) + ", file is " + size + " bytes");
+                }
+                if (nameLen > scratch.length) {
+                    scratch = new byte[nameLen];
+                }
+                table.get(nameOffset, scratch, 0, nameLen);
+
+                result.catalog.add(
+                        new String(scratch, 0, nameLen, StandardCharsets.UTF_8),
+                        records.getInt(at + 8),
+                        records.getLong(at + 12),
+                        records.getLong(at + 20),
+                        (meta & 1) != 0 ? TaxStatus.TAXABLE : TaxStatus.EXEMPT);
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException(path + " is corrupt: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    public static void write(Path path, Collection<Product> products, int[] counts, long seq, long lastTx) throws IOException {
+        byte[][] names = new byte[products.size()][];
+        int stringBytes = 0;
+        int n = 0;
+        for (Product p : products) {
+            names[n] = p.getName().getBytes(StandardCharsets.UTF_8);
+            stringBytes += names[n].length;
+            n++;
+        }
+
+        long strings = HEADER_SIZE + (long) RECORD_SIZE * n;
+        ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(strings + stringBytes));
+        buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(0).putLong(seq).putLong(strings).putLong(lastTx);
+
+        int i = 0;
+        int nameOffset = 0;
+        for (Product p : products) {
+            int taxable = p.getTaxStatus() == TaxStatus.TAXABLE ? 1 : 0;
+            buf.putInt(nameOffset)
+                    .putInt(names[i].length << 1 | taxable)
+                    .putInt(counts[i])
+                    .putLong(p.getRegularCents())
+                    .putLong(p.getMemberCents());
+            nameOffset += names[i].length;
+            i++;
+        }
+        for (byte[] name : names) {
+            buf.put(name);
+        }
+        buf.flip();
+
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+    }
+}
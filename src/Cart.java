@@ -1,93 +1,288 @@
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.*;
 
 
 public class Cart {
-    private final Map<String, CartItem> lines = new LinkedHashMap<>();
+    // keyed by product; names are looked up through the catalog, see line()
+    private final Map<Product, CartItem> lines = new LinkedHashMap<>();
+    // the catalog of the first product added, and whether another catalog's products joined it
+    private Catalog catalog;
+    private boolean mixedCatalogs;
+    private final Pricing pricing;
+    private boolean committed;
+
+    // running totals in cents, kept up to date on every line change
+    private long subtotalCents;
+    private long discountCents;
+    private long taxableCents;
+    private final long[] taxableByCategory;
+    private long savingsCents;
+    private int units;
+    // tax at the per-category rates, worked out on first read after a change
+    private long taxCents;
+    private boolean taxKnown;
+    // bumped on every change, so a rendered view of the cart can be kept until it moves
+    private int version;
+    private BigDecimal lastRate;
+    private long lastRateScaled;
+
+    public Cart(Pricing pricing) {
+        this.pricing = pricing;
+        this.taxableByCategory = new long[pricing.getTaxes().size()];
+    }
 
     
-    public void addItem(Product p, int qty, CustomerType type) {
-        if (qty <= 0) {
-            return;
+    public boolean addItem(Product p, int qty, CustomerType type) {
+        if (qty <= 0 || committed) {
+            return false;
+        }
+
+        // stock is held for this cart until checkout commits or the cart releases it
+        if (!p.reserve(qty)) {
+            return false;
         }
         
-        String key = p.getName().toLowerCase(Locale.ROOT);
-        CartItem existing = lines.get(key);
+        CartItem existing = lines.get(p);
+        if (existing == null && (catalog == null || p.getCatalog() != catalog)) {
+            // the same name from another catalog is the same line
+            existing = line(p.getName());
+        }
 
         if (existing == null) {
-            lines.put(key, new CartItem(p, type, qty));
-        } else {
-            existing.setQuantity(existing.getQuantity() + qty);
+            existing = new CartItem(p, type, 0, pricing.rulesFor(p, type), pricing.getTaxes().categoryOf(p));
+            lines.put(p, existing);
+            if (catalog == null) {
+                catalog = p.getCatalog();
+            } else if (p.getCatalog() != catalog) {
+                mixedCatalogs = true;
+            }
+        }
+        adjust(existing, qty);
+        return true;
+    }
+
+    // only the changed line is re-priced; its promotions were resolved when it was added
+    private void adjust(CartItem item, int delta) {
+        int qty = item.getQuantity() + delta;
+        item.setQuantity(qty);
+        long amount = Money.times(item.getUnitPriceCents(), delta);
+        long discount = pricing.discount(item.getPromotions(), item.getUnitPriceCents(), qty) - item.getDiscountCents();
+        item.setDiscountCents(item.getDiscountCents() + discount);
+        subtotalCents += amount;
+        discountCents += discount;
+        if (item.getTaxStatus() == TaxStatus.TAXABLE) {
+            taxableCents += amount - discount;
+            taxableByCategory[item.getTaxCategory()] += amount - discount;
         }
+        savingsCents += Money.times(item.getUnitSavingsCents(), delta);
+        units += delta;
+        taxKnown = false;
+        version++;
     }
 
 
     public boolean removeItem(String name) {
-        return lines.remove(name.toLowerCase(Locale.ROOT)) != null;
+        CartItem removed = line(name);
+        if (removed == null) {
+            return false;
+        }
+        lines.remove(removed.getProduct());
+        int qty = removed.getQuantity();
+        adjust(removed, -qty);
+        if (!committed) {
+            removed.getProduct().release(qty);
+        }
+        return true;
+    }
+
+    public boolean reduceItem(String name, int qty) {
+        CartItem existing = line(name);
+
+        if (existing == null || qty <= 0 || committed) {
+            return false;
+        }
+
+        if (qty >= existing.getQuantity()) {
+            return removeItem(name);
+        }
+        adjust(existing, -qty);
+        existing.getProduct().release(qty);
+        return true;
+    }
+
+    // Lines are priced when they change, so a promotion that started or ended since then is
+    // only picked up here; checkout calls this before taking the total.
+    public void reprice() {
+        if (committed || !pricing.isTimed()) {
+            return;
+        }
+        for (CartItem it : lines.values()) {
+            if (it.getPromotions().length > 0) {
+                adjust(it, 0);
+            }
+        }
     }
 
     public void clear() { 
+        if (!committed) {
+            for (CartItem it : lines.values()) {
+                it.getProduct().release(it.getQuantity());
+            }
+        }
         lines.clear(); 
+        catalog = null;
+        mixedCatalogs = false;
+        subtotalCents = 0;
+        discountCents = 0;
+        taxableCents = 0;
+        Arrays.fill(taxableByCategory, 0);
+        savingsCents = 0;
+        units = 0;
+        taxKnown = false;
+        version++;
+    }
+
+    public void commit() {
+        if (committed) {
+            return;
+        }
+        for (CartItem it : lines.values()) {
+            it.getProduct().commit(it.getQuantity());
+        }
+        committed = true;
+        version++;
+    }
+
+    public boolean isCommitted() {
+        return committed;
     }
 
     public Collection<CartItem> items() { 
-        return lines.values(); 
+        return Collections.unmodifiableCollection(lines.values()); 
     }
 
     public boolean decrementItem(String name) {
-        String key = name.toLowerCase(Locale.ROOT);
-        CartItem existing = lines.get(key);
+        CartItem existing = line(name);
 
         if (existing == null) {
             return false; 
         }
 
-        if (existing.getQuantity() > 1) {
-            existing.setQuantity(existing.getQuantity() - 1);
-            return true;
-        } else {
-            return removeItem(name);
-        }
+        return reduceItem(name, 1);
     }
     
 
     public int getTotalUnits() {
-        return lines.values().stream().mapToInt(CartItem::getQuantity).sum();
+        return units;
+    }
+
+
+    public Pricing getPricing() {
+        return pricing;
+    }
+
+    public long getSubtotalCents() {
+        return subtotalCents;
+    }
+
+    public long getDiscountCents() {
+        return discountCents;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // tax at the cart's per-category rates
+    public long getTaxCents() {
+        if (!taxKnown) {
+            taxCents = pricing.getTaxes().taxCents(taxableByCategory);
+            taxKnown = true;
+        }
+        return taxCents;
+    }
+
+    // tax with every taxable line at one rate
+    public long getTaxCents(long rate) {
+        return Money.applyRate(taxableCents, rate);
+    }
+
+    public long getTotalCents() {
+        return subtotalCents - discountCents + getTaxCents();
+    }
+
+    public long getTotalCents(long rate) {
+        return subtotalCents - discountCents + getTaxCents(rate);
+    }
+
+    // price-tier savings plus promotion discounts
+    public long getSavingsCents() {
+        return savingsCents + discountCents;
     }
 
 
     public BigDecimal getSubtotal() {
-        return lines.values().stream()
-                .map(CartItem::getLineTotal)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        return Money.toBigDecimal(subtotalCents);
+    }
+
+    public BigDecimal getDiscount() {
+        return Money.toBigDecimal(discountCents);
+    }
+
+    public BigDecimal getTax() {
+        return Money.toBigDecimal(getTaxCents());
+    }
+
+    public BigDecimal getTotal() {
+        return Money.toBigDecimal(getTotalCents());
     }
 
 
     public BigDecimal getTax(BigDecimal taxRate) {
-        BigDecimal taxBase = lines.values().stream()
-                .filter(it -> it.getTaxStatus() == TaxStatus.TAXABLE)
-                .map(CartItem::getLineTotal)
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
-        return taxBase.multiply(taxRate).setScale(2, RoundingMode.HALF_UP);
+        return Money.toBigDecimal(getTaxCents(scaledRate(taxRate)));
     }
 
     public BigDecimal getTotal(BigDecimal taxRate) {
-        return getSubtotal()
-                .add(getTax(taxRate))
-                .setScale(2, RoundingMode.HALF_UP);
+        return Money.toBigDecimal(getTotalCents(scaledRate(taxRate)));
+    }
+
+    public Optional<CartItem> getItem(String name) {
+        return Optional.ofNullable(line(name));
+    }
+
+    // The line of the product with this name, ignoring case. The catalog matches the name
+    // against its stored bytes, so no line keeps a lower-cased copy of its name.
+    private CartItem line(String name) {
+        if (catalog == null) {
+            return null;
+        }
+        int id = catalog.find(name);
+        CartItem found = id < 0 ? null : lines.get(catalog.product(id));
+        if (found != null || !mixedCatalogs) {
+            return found;
+        }
+        String key = name.toLowerCase(Locale.ROOT);
+        for (CartItem it : lines.values()) {
+            if (it.getName().toLowerCase(Locale.ROOT).equals(key)) {
+                return it;
+            }
+        }
+        return null;
     }
 
     public boolean isEmpty() { 
         return lines.isEmpty(); 
     }
     
-    public BigDecimal getSavings(CustomerType type) {
-        if (type != CustomerType.MEMBER) {
-            return BigDecimal.ZERO;
+    public BigDecimal getSavings() {
+        return Money.toBigDecimal(getSavingsCents());
+    }
+
+    private long scaledRate(BigDecimal taxRate) {
+        if (taxRate != lastRate) {
+            lastRateScaled = Money.toRate(taxRate);
+            lastRate = taxRate;
         }
-        return lines.values().stream()
-                .map(item -> item.getProduct().getRegularPrice().subtract(item.getProduct().getMemberPrice()).multiply(BigDecimal.valueOf(item.getQuantity())))
-                .reduce(BigDecimal.ZERO, BigDecimal::add);
+        return lastRateScaled;
     }
-}
\ No newline at end of file
+}
@@ -1,19 +1,31 @@
 import java.math.BigDecimal;
 
+// A cart line: the product view plus what was fixed when the line was added: the shared
+// price snapshot (prices, tax treatment), the customer's price from it, and the candidate
+// promotions. The name is decoded once, when the line is made.
 public class CartItem {
     
     private final Product product; 
-    private final String name; 
-    private final TaxStatus taxStatus;
-    private final BigDecimal unitPrice; 
+    private final PriceSnapshot prices;
+    private final String name;
+    private final int taxCategory;
+    private final long unitPriceCents;
+    private final Promotion[] promotions;
     private int quantity;
+    private long discountCents;
 
 
     public CartItem(Product product, CustomerType type, int quantity) {
+        this(product, type, quantity, new Promotion[0], 0);
+    }
+
+    public CartItem(Product product, CustomerType type, int quantity, Promotion[] promotions, int taxCategory) {
         this.product = product;
+        this.prices = product.getPrices();
         this.name = product.getName();
-        this.taxStatus = product.getTaxStatus();
-        this.unitPrice = product.getPriceFor(type);
+        this.taxCategory = taxCategory;
+        this.unitPriceCents = prices.getCentsFor(type);
+        this.promotions = promotions;
         this.quantity = quantity;
     }
 
@@ -21,16 +33,46 @@ public class CartItem {
         return product;
     }
 
+    public PriceSnapshot getPrices() {
+        return prices;
+    }
+
     public String getName() { 
         return name; 
     }
 
     public TaxStatus getTaxStatus() { 
-        return taxStatus; 
+        return prices.getTaxStatus(); 
     }
 
     public BigDecimal getUnitPrice() { 
-        return unitPrice; 
+        return Money.toBigDecimal(unitPriceCents); 
+    }
+
+    public long getUnitPriceCents() {
+        return unitPriceCents;
+    }
+
+    // regular minus the customer's price, both as they were when the item was added
+    public long getUnitSavingsCents() {
+        return prices.getRegularCents() - unitPriceCents;
+    }
+
+    public int getTaxCategory() {
+        return taxCategory;
+    }
+
+    // rules that can apply to this line, resolved when it was added
+    Promotion[] getPromotions() {
+        return promotions;
+    }
+
+    public long getDiscountCents() {
+        return discountCents;
+    }
+
+    void setDiscountCents(long discountCents) {
+        this.discountCents = discountCents;
     }
 
     public int getQuantity() { 
@@ -42,6 +84,10 @@ public class CartItem {
     }
 
     public BigDecimal getLineTotal() {
-        return unitPrice.multiply(BigDecimal.valueOf(quantity));
+        return Money.toBigDecimal(getLineTotalCents());
+    }
+
+    public long getLineTotalCents() {
+        return Money.times(unitPriceCents, quantity);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,404 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Column store for the product catalog. Every product gets a dense id and its fields
+// live in primitive arrays. The arrays are split into pages that double in size, so
+// growing the catalog never moves the stock counters of products already in carts and
+// a catalog of one product stays small:
+//   names      UTF-8 bytes in one shared pool, addressed by offset and length
+//   prices     regular and member price in cents
+//   stock      on hand and available, side by side in an AtomicIntegerArray
+//   snapshots  the shared PriceSnapshot cart lines take, made on first use
+// Name, price and flag columns are written once, before the id is published. A later
+// change to a product's prices or tax status is a new PriceSnapshot in its slot, which
+// then wins over the columns, so readers that hold no lock never see a column rewritten
+// under them. A name is fixed when the product is added: snapshots hold no String, and
+// names are decoded from the pool when asked for. Stock only moves by atomic deltas.
+// Lookup by name goes through an open-addressing table of ids, so there is no String
+// key or map entry per product. Product and the search index are views over ids.
+public final class Catalog {
+
+    // page p holds ids [FIRST_PAGE * (2^p - 1), FIRST_PAGE * (2^(p+1) - 1))
+    private static final int FIRST_PAGE_BITS = 4;
+    private static final int FIRST_PAGE = 1 << FIRST_PAGE_BITS;
+
+    private static final byte TAXABLE = 1;
+    // the stored name is plain ASCII, so lookups can compare its bytes without decoding
+    private static final byte ASCII = 2;
+
+    private static final class Page {
+        final long[] regular;
+        final long[] member;
+        // name offset in the pool << 16 | byte length
+        final long[] name;
+        final int[] hash;
+        final byte[] flags;
+        // [2 * i] on hand, [2 * i + 1] available
+        final AtomicIntegerArray stock;
+        // null until asked for or changed; once set, it is what the product's fields read
+        final PriceSnapshot[] snapshots;
+
+        Page(int size) {
+            regular = new long[size];
+            member = new long[size];
+            name = new long[size];
+            hash = new int[size];
+            flags = new byte[size];
+            stock = new AtomicIntegerArray(2 * size);
+            snapshots = new PriceSnapshot[size];
+        }
+    }
+
+    private volatile Page[] pages = new Page[0];
+    private volatile byte[] names = new byte[64];
+    private int namesUsed;
+    // id + 1 per slot, 0 when free
+    private volatile AtomicIntegerArray table = new AtomicIntegerArray(64);
+    private volatile int size;
+
+    public int size() {
+        return size;
+    }
+
+    // Adds a product, or overwrites the one with the same name (ignoring case). Returns its id.
+    public synchronized int add(String name, int quantity, long regularCents, long memberCents, TaxStatus taxStatus) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xFFFF) {
+            throw new IllegalArgumentException("product name longer than 65535 bytes");
+        }
+        String key = name.toLowerCase(Locale.ROOT);
+        int hash = hash(key);
+        int id = find(key, hash);
+        if (id >= 0) {
+            // the stored name matches the key; a change of case alone keeps the first spelling
+            update(id, regularCents, memberCents, taxStatus);
+            setOnHand(id, quantity);
+            return id;
+        }
+
+        id = size;
+        if (pageOf(id) == pages.length) {
+            Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+            grown[pages.length] = new Page(FIRST_PAGE << pages.length);
+            pages = grown;
+        }
+        Page page = page(id);
+        int i = index(id);
+        page.regular[i] = regularCents;
+        page.member[i] = memberCents;
+        page.name[i] = (long) store(utf8) << 16 | utf8.length;
+        page.hash[i] = hash;
+        page.flags[i] = (byte) ((taxStatus == TaxStatus.TAXABLE ? TAXABLE : 0) | (isAscii(utf8) ? ASCII : 0));
+        page.stock.set(2 * i, quantity);
+        page.stock.set(2 * i + 1, quantity);
+
+        size = id + 1;
+        insert(id, hash);
+        return id;
+    }
+
+    // New prices and tax status for a product, leaving its stock alone.
+    synchronized void reprice(int id, long regularCents, long memberCents, TaxStatus taxStatus) {
+        update(id, regularCents, memberCents, taxStatus);
+    }
+
+    private void update(int id, long regularCents, long memberCents, TaxStatus taxStatus) {
+        Page page = page(id);
+        int i = index(id);
+        PriceSnapshot p = page.snapshots[i];
+        if (p != null ? p.getRegularCents() == regularCents && p.getMemberCents() == memberCents && p.getTaxStatus() == taxStatus
+                : page.regular[i] == regularCents && page.member[i] == memberCents && columnTaxStatus(page, i) == taxStatus) {
+            // nothing changed; carts keep sharing what they have, and the columns stay enough
+            return;
+        }
+        page.snapshots[i] = new PriceSnapshot(regularCents, memberCents, taxStatus);
+    }
+
+    // On hand becomes quantity, and available moves by as much, so units that open carts
+    // reserve meanwhile stay reserved.
+    private void setOnHand(int id, int quantity) {
+        AtomicIntegerArray stock = page(id).stock;
+        int i = 2 * index(id);
+        int delta = quantity - stock.getAndSet(i, quantity);
+        while (true) {
+            int current = stock.get(i + 1);
+            if (stock.compareAndSet(i + 1, current, current + delta)) {
+                return;
+            }
+        }
+    }
+
+    public synchronized void addAll(Catalog other) {
+        for (int id = 0; id < other.size(); id++) {
+            add(other.name(id), other.onHand(id), other.regularCents(id), other.memberCents(id), other.taxStatus(id));
+        }
+    }
+
+    // id of the product with this name ignoring case, or -1
+    public int find(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        return find(key, hash(key));
+    }
+
+    private int find(String key, int hash) {
+        AtomicIntegerArray t = table;
+        int mask = t.length() - 1;
+        byte[] keyBytes = null;
+        for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = t.get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            int id = entry - 1;
+            Page page = page(id);
+            int i = index(id);
+            if (page.hash[i] != hash) {
+                continue;
+            }
+            if ((page.flags[i] & ASCII) == 0) {
+                if (name(id).toLowerCase(Locale.ROOT).equals(key)) return id;
+                continue;
+            }
+            if (keyBytes == null) {
+                keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            }
+            if (asciiEqualsIgnoreCase(page.name[i], keyBytes)) {
+                return id;
+            }
+        }
+    }
+
+    private boolean asciiEqualsIgnoreCase(long ref, byte[] lowerKey) {
+        int length = (int) (ref & 0xFFFF);
+        if (length != lowerKey.length) {
+            return false;
+        }
+        byte[] pool = names;
+        int from = (int) (ref >>> 16);
+        for (int j = 0; j < length; j++) {
+            byte b = pool[from + j];
+            if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+            if (b != lowerKey[j]) return false;
+        }
+        return true;
+    }
+
+    // Compares the product's name, trimmed and lower-cased, with a key normalized the same
+    // way, as String.compareTo would. Plain ASCII names are compared from the pool without
+    // decoding them; others are decoded.
+    int compareName(int id, String lowerKey) {
+        Page page = page(id);
+        int i = index(id);
+        if ((page.flags[i] & ASCII) == 0) {
+            return ProductIndex.normalize(name(id)).compareTo(lowerKey);
+        }
+        long ref = page.name[i];
+        byte[] pool = names;
+        int from = (int) (ref >>> 16);
+        int to = from + (int) (ref & 0xFFFF);
+        while (from < to && pool[from] <= ' ') from++;
+        while (to > from && pool[to - 1] <= ' ') to--;
+        int n = Math.min(to - from, lowerKey.length());
+        for (int j = 0; j < n; j++) {
+            int c = pool[from + j];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != lowerKey.charAt(j)) {
+                return c - lowerKey.charAt(j);
+            }
+        }
+        return (to - from) - lowerKey.length();
+    }
+
+    // whether the product's name, trimmed and lower-cased, starts with lowerPrefix
+    boolean nameStartsWith(int id, String lowerPrefix) {
+        Page page = page(id);
+        int i = index(id);
+        if ((page.flags[i] & ASCII) == 0) {
+            return ProductIndex.normalize(name(id)).startsWith(lowerPrefix);
+        }
+        long ref = page.name[i];
+        byte[] pool = names;
+        int from = (int) (ref >>> 16);
+        int to = from + (int) (ref & 0xFFFF);
+        while (from < to && pool[from] <= ' ') from++;
+        while (to > from && pool[to - 1] <= ' ') to--;
+        if (to - from < lowerPrefix.length()) {
+            return false;
+        }
+        for (int j = 0; j < lowerPrefix.length(); j++) {
+            int c = pool[from + j];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != lowerPrefix.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int id, int hash) {
+        AtomicIntegerArray t = table;
+        if (size * 2 > t.length()) {
+            // build the bigger table aside and publish it whole
+            AtomicIntegerArray grown = new AtomicIntegerArray(t.length() * 2);
+            for (int other = 0; other < id; other++) {
+                place(grown, other, page(other).hash[index(other)]);
+            }
+            place(grown, id, hash);
+            table = grown;
+            return;
+        }
+        place(t, id, hash);
+    }
+
+    private static void place(AtomicIntegerArray t, int id, int hash) {
+        int mask = t.length() - 1;
+        int slot = mix(hash) & mask;
+        while (t.get(slot) != 0) slot = (slot + 1) & mask;
+        t.set(slot, id + 1);
+    }
+
+    private int store(byte[] utf8) {
+        byte[] pool = names;
+        if (namesUsed + utf8.length > pool.length) {
+            pool = Arrays.copyOf(pool, Math.max(pool.length * 2, namesUsed + utf8.length));
+        }
+        System.arraycopy(utf8, 0, pool, namesUsed, utf8.length);
+        names = pool;
+        int offset = namesUsed;
+        namesUsed += utf8.length;
+        return offset;
+    }
+
+    private static boolean isAscii(byte[] utf8) {
+        for (byte b : utf8) {
+            if (b < 0) return false;
+        }
+        return true;
+    }
+
+    private static int hash(String lowerKey) {
+        return lowerKey.hashCode();
+    }
+
+    private static int mix(int h) {
+        return h * 0x9E3779B9 ^ (h >>> 16);
+    }
+
+    private static int pageOf(int id) {
+        return 31 - Integer.numberOfLeadingZeros(id + FIRST_PAGE) - FIRST_PAGE_BITS;
+    }
+
+    private static int index(int id) {
+        return id + FIRST_PAGE - Integer.highestOneBit(id + FIRST_PAGE);
+    }
+
+    private Page page(int id) {
+        return pages[pageOf(id)];
+    }
+
+    // A view of product id. Views are cheap and compare equal by catalog and id.
+    public Product product(int id) {
+        return new Product(this, id);
+    }
+
+    public String name(int id) {
+        long ref = page(id).name[index(id)];
+        return new String(names, (int) (ref >>> 16), (int) (ref & 0xFFFF), StandardCharsets.UTF_8);
+    }
+
+    public long regularCents(int id) {
+        Page page = page(id);
+        int i = index(id);
+        PriceSnapshot p = page.snapshots[i];
+        return p != null ? p.getRegularCents() : page.regular[i];
+    }
+
+    public long memberCents(int id) {
+        Page page = page(id);
+        int i = index(id);
+        PriceSnapshot p = page.snapshots[i];
+        return p != null ? p.getMemberCents() : page.member[i];
+    }
+
+    public TaxStatus taxStatus(int id) {
+        Page page = page(id);
+        int i = index(id);
+        PriceSnapshot p = page.snapshots[i];
+        return p != null ? p.getTaxStatus() : columnTaxStatus(page, i);
+    }
+
+    private static TaxStatus columnTaxStatus(Page page, int i) {
+        return (page.flags[i] & TAXABLE) != 0 ? TaxStatus.TAXABLE : TaxStatus.EXEMPT;
+    }
+
+    // The product's current prices as one shared, immutable object. Its fields are final,
+    // so the racy read is safe; a reader racing an update may get the one from just before.
+    public PriceSnapshot prices(int id) {
+        PriceSnapshot p = page(id).snapshots[index(id)];
+        return p != null ? p : snapshot(id);
+    }
+
+    // the first snapshot of a product is made from its columns, which never change
+    private synchronized PriceSnapshot snapshot(int id) {
+        Page page = page(id);
+        int i = index(id);
+        if (page.snapshots[i] == null) {
+            page.snapshots[i] = new PriceSnapshot(page.regular[i], page.member[i], columnTaxStatus(page, i));
+        }
+        return page.snapshots[i];
+    }
+
+    public int onHand(int id) {
+        return page(id).stock.get(2 * (index(id)));
+    }
+
+    public int available(int id) {
+        return page(id).stock.get(2 * (index(id)) + 1);
+    }
+
+    void adjustStock(int id, int delta) {
+        AtomicIntegerArray stock = page(id).stock;
+        int i = 2 * (index(id));
+        stock.addAndGet(i, delta);
+        stock.addAndGet(i + 1, delta);
+    }
+
+    // Like adjustStock, but a cut never takes available below zero: units held by open carts
+    // stay on hand. Returns the delta applied.
+    int adjustStockHeld(int id, int delta) {
+        AtomicIntegerArray stock = page(id).stock;
+        int i = 2 * (index(id));
+        while (true) {
+            int current = stock.get(i + 1);
+            int applied = Math.max(delta, -Math.max(current, 0));
+            if (stock.compareAndSet(i + 1, current, current + applied)) {
+                stock.addAndGet(i, applied);
+                return applied;
+            }
+        }
+    }
+
+    boolean reserve(int id, int qty) {
+        AtomicIntegerArray stock = page(id).stock;
+        int i = 2 * (index(id)) + 1;
+        while (true) {
+            int current = stock.get(i);
+            if (qty > current) {
+                return false;
+            }
+            if (stock.compareAndSet(i, current, current - qty)) {
+                return true;
+            }
+        }
+    }
+
+    void release(int id, int qty) {
+        page(id).stock.addAndGet(2 * (index(id)) + 1, qty);
+    }
+
+    void commit(int id, int qty) {
+        page(id).stock.addAndGet(2 * (index(id)), -qty);
+    }
+}
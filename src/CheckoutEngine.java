@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CheckoutEngine implements AutoCloseable {
+
+    private static final Metrics.Histogram CHECKOUT_TIME = Metrics.histogram("checkout.latency_ns");
+    private static final Metrics.Counter SALES = Metrics.counter("checkout.sales");
+    private static final Metrics.Counter UNITS = Metrics.counter("checkout.units");
+    private static final Metrics.Counter REVENUE = Metrics.counter("checkout.revenue_cents");
+    private static final Metrics.Counter TAX = Metrics.counter("checkout.tax_cents");
+    private static final Metrics.Counter FAILED = Metrics.counter("checkout.failed");
+    private static final Metrics.Counter REFUNDS = Metrics.counter("checkout.refunds");
+    private static final Metrics.Counter REFUNDED = Metrics.counter("checkout.refunded_cents");
+    private static final ThreadLocal<ReceiptTemplate.Buffer> RECEIPT = ThreadLocal.withInitial(ReceiptTemplate.Buffer::new);
+
+    private final Inventory inventory;
+    private final InventoryJournal journal;
+    private final InventoryWatcher watcher;
+    private final ReceiptWriter receipts;
+    private final SalesLog sales;
+    private final Pricing pricing;
+    private final TransactionSequence txSequence;
+    private final ReorderMonitor reorders = new ReorderMonitor();
+    // refunds of one sale must count each other, so they take turns
+    private final Object refunding = new Object();
+
+    public CheckoutEngine(Inventory inventory, Path inventoryPath, Path receiptsDir, BigDecimal taxRate) throws IOException {
+        this(inventory, inventoryPath, receiptsDir, Pricing.flat(taxRate), false);
+    }
+
+    public CheckoutEngine(Inventory inventory, Path inventoryPath, Path receiptsDir, Pricing pricing, boolean segmentedReceipts) throws IOException {
+        this.inventory = inventory;
+        this.receipts = new ReceiptWriter(receiptsDir, 1024, segmentedReceipts);
+        // sales journaled since the last snapshot may have died before their receipt was written
+        int recovered = receipts.recover(InventoryJournal.receipts(inventoryPath, inventory.getSnapshotSeq()));
+        if (recovered > 0) {
+            System.err.println("Writing " + recovered + " receipts lost in a crash");
+        }
+        this.sales = SalesLog.open(receiptsDir.resolveSibling("sales"));
+        // and before their rows reached the sales log
+        int logged = sales.recover(InventoryJournal.sales(inventoryPath, inventory.getSnapshotSeq()));
+        if (logged > 0) {
+            System.err.println("Adding " + logged + " transactions lost in a crash to the sales log");
+        }
+        // a compaction drops journal records only once their receipts and rows are written
+        this.journal = InventoryJournal.open(inventory, inventoryPath, 30, () -> {
+            receipts.flush();
+            sales.flush();
+        });
+        this.watcher = InventoryWatcher.start(inventoryPath, journal);
+        this.pricing = pricing;
+        Path sequenceFile = receiptsDir.resolve("tx-sequence");
+        // the receipts directory is only scanned once, when upgrading a store that has no sequence file yet
+        long lastKnown = Files.exists(sequenceFile)
+                ? inventory.getLastTx()
+                : Math.max(inventory.getLastTx(), ReceiptPrinter.getLastTransactionNumber(receiptsDir));
+        this.txSequence = TransactionSequence.open(sequenceFile, 1000, lastKnown);
+        reorders.attach(inventory);
+    }
+
+    public Inventory getInventory() {
+        return inventory;
+    }
+
+    public SalesLog getSalesLog() {
+        return sales;
+    }
+
+    public ReorderMonitor getReorderMonitor() {
+        return reorders;
+    }
+
+    public Pricing getPricing() {
+        return pricing;
+    }
+
+    // Paged listing of the current stock version; STOCK order comes from the reorder monitor.
+    public InventoryView view(InventoryView.Filter filter, InventoryView.Sort sort, int pageSize) {
+        return new InventoryView(inventory.snapshot(), inventory.index(), reorders, filter, sort, pageSize);
+    }
+
+    public Cart newCart() {
+        return new Cart(pricing);
+    }
+
+    // Safe to call from any number of lanes at once; each lane owns its own Cart.
+    // The stock change, the transaction number, the rendered receipt and the sales log rows go
+    // into one journal record, so a sale is either fully committed or not at all. Returns once
+    // that record is on disk; the receipt and the rows are written in the background and
+    // written again on startup if the process dies first.
+    public CompletableFuture<Path> checkout(Cart cart, BigDecimal cash, CustomerType type) throws IOException {
+        long start = System.nanoTime();
+        if (cart.isCommitted()) {
+            throw new IllegalArgumentException("Cart has already been checked out");
+        }
+        cart.reprice();
+        BigDecimal total = cart.getTotal();
+        if (cash.compareTo(total) < 0) {
+            throw new IllegalArgumentException("Not enough cash provided");
+        }
+
+        long tx = txSequence.next();
+        LocalDateTime when = LocalDateTime.now();
+        String name = ReceiptPrinter.fileName(tx, when);
+        ReceiptTemplate.Buffer buf = RECEIPT.get().reset();
+        ReceiptPrinter.render(tx, when, cart, cash.setScale(2, RoundingMode.HALF_UP), type, ReceiptTemplate.Format.TEXT, buf);
+        byte[] receipt = buf.toByteArray();
+        SalesLog.Entry rows = sales.sale(tx, when, cart, type);
+
+        List<CompletableFuture<Path>> written = new ArrayList<>(1);
+        try {
+            journal.record(tx, cart.items(), -1, name, receipt, rows.encode(), () -> {
+                cart.commit();
+                written.add(receipts.submit(tx, name, receipt));
+            });
+        } catch (IOException e) {
+            FAILED.inc();
+            throw e;
+        }
+        sales.append(rows);
+        SALES.inc();
+        UNITS.add(cart.getTotalUnits());
+        REVENUE.add(cart.getSubtotalCents() - cart.getDiscountCents());
+        TAX.add(cart.getTaxCents());
+        CHECKOUT_TIME.recordSince(start);
+        return written.get(0);
+    }
+
+    // The recorded sale or refund with this transaction number, found through the sales log's
+    // index once the rows queued so far are written.
+    public Optional<SalesLog.Sale> findSale(long tx) throws IOException {
+        sales.flush();
+        return sales.find(tx);
+    }
+
+    // Units of each product on the sale that can still be returned.
+    public Map<String, Integer> returnable(SalesLog.Sale sale) throws IOException {
+        synchronized (refunding) {
+            return Refund.returnable(sale, sales.refunds(sale.getTx()));
+        }
+    }
+
+    // Returns units of an earlier sale (everything still returnable when quantities is empty).
+    // The restock goes through the journal like a sale with the opposite sign, together with
+    // the refund receipt and the refund's sales log rows; the refund is then recorded in the
+    // sales log under its own transaction number and linked to the sale, so it is counted by
+    // the next refund. Rows lost in a crash are added back from the journal on startup, and
+    // rows that fail to write keep further refunds out until they are written.
+    public Refund refund(long originalTx, Map<String, Integer> quantities) throws IOException {
+        synchronized (refunding) {
+            sales.flush();
+            SalesLog.Sale sale = sales.find(originalTx)
+                    .orElseThrow(() -> new IllegalArgumentException("No sale with transaction number " + originalTx));
+            List<SalesLog.Line> lines = Refund.lines(sale, sales.refunds(originalTx), quantities);
+
+            long tx = txSequence.next();
+            Refund refund = new Refund(tx, LocalDateTime.now(), sale, lines);
+            String name = ReceiptPrinter.fileName(tx, refund.getTime());
+            ReceiptTemplate.Buffer buf = RECEIPT.get().reset();
+            ReceiptPrinter.render(refund, ReceiptTemplate.Format.TEXT, buf);
+            byte[] receipt = buf.toByteArray();
+            SalesLog.Entry rows = sales.refund(tx, refund.getTime(), sale, lines);
+
+            // products dropped from the catalog since the sale are refunded but not restocked
+            List<CartItem> restock = new ArrayList<>();
+            for (SalesLog.Line l : lines) {
+                inventory.find(l.getProduct()).ifPresent(p -> restock.add(new CartItem(p, sale.getType(), l.getQuantity())));
+            }
+            try {
+                journal.record(tx, restock, +1, name, receipt, rows.encode(), () -> {
+                    for (CartItem it : restock) {
+                        it.getProduct().adjustStock(it.getQuantity());
+                    }
+                    refund.setReceipt(receipts.submit(tx, name, receipt));
+                });
+            } catch (IOException e) {
+                FAILED.inc();
+                throw e;
+            }
+            sales.append(rows);
+            try {
+                sales.flush();
+            } catch (IOException e) {
+                // committed all the same; the next refund waits for these rows
+                System.err.println("Refund " + tx + " is not in the sales log yet: " + e.getMessage());
+            }
+            REFUNDS.inc();
+            REFUNDED.add(refund.getTotalCents());
+            return refund;
+        }
+    }
+
+    public void cancel(Cart cart) {
+        cart.clear();
+    }
+
+    // The journal goes first: its last compaction waits on the receipt writer and the sales
+    // log, so they must still be running. A part that fails to close does not keep the rest
+    // open; the first failure is thrown with the others suppressed.
+    @Override
+    public void close() throws IOException {
+        AutoCloseable[] parts = {
+                watcher,
+                reorders,
+                journal,
+                receipts,
+                sales,
+                txSequence,
+        };
+        IOException failure = null;
+        for (AutoCloseable part : parts) {
+            try {
+                part.close();
+            } catch (Exception e) {
+                if (failure == null) {
+                    failure = e instanceof IOException io ? io : new IOException("Could not close checkout engine", e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public static ExecutorService newLanePool(int lanes) {
+        AtomicInteger ids = new AtomicInteger(1);
+        return Executors.newFixedThreadPool(lanes, r -> {
+            Thread t = new Thread(r, "lane-" + ids.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
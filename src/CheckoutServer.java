@@ -0,0 +1,515 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Serves checkout over TCP so several registers can sell from one inventory. Each
+// connection is a session with its own Cart. One request per line, one reply line each:
+//   FIND <name>              OK {"name":..,"stock":..,"regular":..,"member":..,"status":..}
+//   TYPE <customer type>     OK; only while the cart is empty, REGULAR until set
+//   ADD <qty> <name>         OK {cart totals}
+//   REMOVE <qty|all> <name>  OK {cart totals}
+//   VIEW                     OK {cart totals,"items":[..]}
+//   CHECKOUT <cash>          OK {"total":..,"cash":..,"change":..} once the sale is journaled
+//   CANCEL                   OK; empties the cart
+//   LOW [n]                  OK {"items":[{"name":..,"stock":..}]}, the n least stocked products
+//   REORDER [n]              OK {"items":[{"name":..,"stock":..,"qty":..}]}, what to order now
+//   QUIT                     OK; then the connection is closed
+// Failures reply ERR <reason>, blank lines get no reply and a trailing \r is ignored.
+// Clients may pipeline: send any number of requests without waiting, replies come back in
+// request order. One selector thread owns every socket; requests run on the lane pool, one
+// at a time per session, so a checkout waiting on the journal never holds up other sessions.
+public class CheckoutServer implements AutoCloseable {
+
+    private static final int MAX_LINE = 8192;
+    // a session is not read while this many requests or reply bytes are waiting on it
+    private static final int MAX_QUEUED = 1024;
+    private static final int MAX_UNSENT = 1 << 20;
+
+    private static final Metrics.Counter REQUESTS = Metrics.counter("server.requests");
+    private static final Metrics.Counter ERRORS = Metrics.counter("server.errors");
+    private static final Metrics.Counter INTERNAL_ERRORS = Metrics.counter("server.internal_errors");
+    private static final Metrics.Counter SESSIONS = Metrics.counter("server.sessions");
+    private static final Metrics.Histogram REQUEST_TIME = Metrics.histogram("server.request_ns");
+
+    private static final ReceiptTemplate PRODUCT = ReceiptTemplate.compile("{name} {stock} {regular} {member} {status}");
+    private static final ReceiptTemplate TOTALS = ReceiptTemplate.compile("{units} {subtotal} {discount} {tax} {total} {savings}");
+    private static final ReceiptTemplate CART = ReceiptTemplate.compile(
+            "{units} {subtotal} {discount} {tax} {total} {savings}",
+            "[row]{name} {qty} {unit} {amount}");
+    private static final ReceiptTemplate PAID = ReceiptTemplate.compile("{total} {cash} {change}");
+    private static final ReceiptTemplate LOW = ReceiptTemplate.compile("[row]{name} {stock}");
+    private static final ReceiptTemplate REORDER = ReceiptTemplate.compile("[row]{name} {stock} {qty}");
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY = new byte[0];
+    private static final ThreadLocal<ReceiptTemplate.Buffer> REPLY = ThreadLocal.withInitial(ReceiptTemplate.Buffer::new);
+
+    private final CheckoutEngine engine;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final ExecutorService lanes;
+    // sessions with new replies, or room for more requests, for the selector to look at
+    private final Queue<Session> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private volatile boolean running = true;
+
+    private final class Session {
+        final SocketChannel channel;
+        SelectionKey key;
+        // selector thread only: the start of a line that has not fully arrived
+        byte[] partial = EMPTY;
+
+        // guarded by this
+        final ArrayDeque<String> requests = new ArrayDeque<>();
+        final ReceiptTemplate.Buffer replies = new ReceiptTemplate.Buffer(256);
+        boolean scheduled;
+        boolean quitting;
+        boolean closed;
+
+        // only touched by the lane serving the session
+        Cart cart = engine.newCart();
+        CustomerType type = CustomerType.REGULAR;
+        // the last VIEW reply, good while the cart is at viewVersion
+        ReceiptTemplate.Buffer view;
+        Cart viewOf;
+        int viewVersion;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    public CheckoutServer(CheckoutEngine engine, int port, int lanes) throws IOException {
+        this.engine = engine;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port), 1024);
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        this.lanes = CheckoutEngine.newLanePool(lanes);
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    // Runs the selector loop on the calling thread until close().
+    public void run() throws IOException {
+        try {
+            while (running) {
+                selector.select();
+                woken.set(false);
+                for (Session s; (s = ready.poll()) != null; ) {
+                    flush(s);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session s = (Session) key.attachment();
+                    if (key.isReadable()) {
+                        read(s);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(s);
+                    }
+                }
+            }
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Session s = new Session(ch);
+            s.key = ch.register(selector, SelectionKey.OP_READ, s);
+            SESSIONS.inc();
+        }
+    }
+
+    private void read(Session s) {
+        ByteBuffer in = readBuffer;
+        in.clear();
+        int n;
+        try {
+            n = s.channel.read(in);
+        } catch (IOException e) {
+            n = -1;
+        }
+        if (n < 0) {
+            close(s);
+            return;
+        }
+
+        byte[] data = in.array();
+        int end = in.position();
+        int from = 0;
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < end; i++) {
+            if (data[i] != '\n') continue;
+            String line = decode(s, data, from, i);
+            if (!line.isEmpty()) lines.add(line);
+            from = i + 1;
+        }
+        if (from < end) {
+            if (s.partial.length + end - from > MAX_LINE) {
+                // not a register talking to us
+                close(s);
+                return;
+            }
+            byte[] grown = Arrays.copyOf(s.partial, s.partial.length + end - from);
+            System.arraycopy(data, from, grown, s.partial.length, end - from);
+            s.partial = grown;
+        }
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        boolean schedule;
+        synchronized (s) {
+            if (s.quitting) return;
+            s.requests.addAll(lines);
+            schedule = !s.scheduled;
+            s.scheduled = true;
+        }
+        if (schedule) {
+            lanes.execute(() -> serve(s));
+        }
+        flush(s);
+    }
+
+    private static String decode(Session s, byte[] data, int from, int to) {
+        byte[] bytes = data;
+        if (s.partial.length > 0) {
+            bytes = Arrays.copyOf(s.partial, s.partial.length + to - from);
+            System.arraycopy(data, from, bytes, s.partial.length, to - from);
+            from = 0;
+            to = bytes.length;
+            s.partial = EMPTY;
+        }
+        if (to > from && bytes[to - 1] == '\r') to--;
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8).trim();
+    }
+
+    // Sends what the socket takes and decides what to wait for next. Selector thread only.
+    private void flush(Session s) {
+        if (!s.key.isValid()) {
+            return;
+        }
+        int ops;
+        boolean done;
+        try {
+            synchronized (s) {
+                if (s.replies.length() > 0) {
+                    s.replies.writeSome(s.channel);
+                }
+                boolean unsent = s.replies.length() > 0;
+                boolean reading = !s.quitting && s.requests.size() < MAX_QUEUED && s.replies.length() < MAX_UNSENT;
+                ops = (reading ? SelectionKey.OP_READ : 0) | (unsent ? SelectionKey.OP_WRITE : 0);
+                done = s.quitting && !unsent && !s.scheduled;
+            }
+        } catch (IOException e) {
+            done = true;
+            ops = 0;
+        }
+        if (done) {
+            close(s);
+        } else {
+            s.key.interestOps(ops);
+        }
+    }
+
+    // Hands a session back to the selector thread, waking it at most once per pass.
+    private void ready(Session s) {
+        ready.add(s);
+        if (!woken.getAndSet(true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void close(Session s) {
+        s.key.cancel();
+        try {
+            s.channel.close();
+        } catch (IOException e) {
+            // already gone
+        }
+        boolean cleanUp;
+        synchronized (s) {
+            if (s.closed) return;
+            s.closed = true;
+            cleanUp = !s.scheduled;
+            s.scheduled = true;
+        }
+        // the lane releases the cart's reservations, so carts are only ever touched by lanes
+        if (cleanUp) {
+            lanes.execute(() -> serve(s));
+        }
+    }
+
+    // Runs a session's queued requests in order. Only one lane serves a session at a time.
+    private void serve(Session s) {
+        ReceiptTemplate.Buffer reply = REPLY.get();
+        boolean closed;
+        while (true) {
+            String line;
+            synchronized (s) {
+                closed = s.closed;
+                line = closed || s.quitting ? null : s.requests.poll();
+                if (line == null) {
+                    s.scheduled = false;
+                    break;
+                }
+            }
+            long start = System.nanoTime();
+            boolean more = handle(s, line, reply.reset());
+            REQUEST_TIME.recordSince(start);
+            boolean wake;
+            synchronized (s) {
+                wake = s.replies.length() == 0;
+                s.replies.put(reply);
+                if (!more) {
+                    s.quitting = true;
+                    s.requests.clear();
+                }
+            }
+            if (wake) ready(s);
+        }
+        if (closed) {
+            engine.cancel(s.cart);
+        } else {
+            // lets the selector resume reading a session that had too much queued
+            ready(s);
+        }
+    }
+
+    // Runs one request and writes its reply. Returns false when the session should end.
+    private boolean handle(Session s, String line, ReceiptTemplate.Buffer out) {
+        REQUESTS.inc();
+        int space = line.indexOf(' ');
+        String command = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+        String arg = space < 0 ? "" : line.substring(space + 1).trim();
+        try {
+            switch (command) {
+                case "FIND" -> find(arg, out);
+                case "TYPE" -> type(s, arg, out);
+                case "ADD" -> add(s, arg, out);
+                case "REMOVE" -> remove(s, arg, out);
+                case "VIEW" -> view(s, out);
+                case "CHECKOUT" -> checkout(s, arg, out);
+                case "CANCEL" -> {
+                    engine.cancel(s.cart);
+                    out.ascii("OK").put(NEWLINE);
+                }
+                case "LOW" -> LOW.render(new ReceiptTemplate.Values(), engine.getReorderMonitor().lowest(limit(arg)),
+                        (level, v) -> v
+                                .set(ReceiptTemplate.Field.NAME, level.getProduct().getName())
+                                .set(ReceiptTemplate.Field.STOCK, level.getOnHand()),
+                        ReceiptTemplate.Format.JSON, out.ascii("OK "));
+                case "REORDER" -> REORDER.render(new ReceiptTemplate.Values(), engine.getReorderMonitor().suggestions(limit(arg)),
+                        (suggestion, v) -> v
+                                .set(ReceiptTemplate.Field.NAME, suggestion.getProduct().getName())
+                                .set(ReceiptTemplate.Field.STOCK, suggestion.getOnHand())
+                                .set(ReceiptTemplate.Field.QTY, suggestion.getQuantity()),
+                        ReceiptTemplate.Format.JSON, out.ascii("OK "));
+                case "QUIT" -> {
+                    out.ascii("OK").put(NEWLINE);
+                    return false;
+                }
+                default -> throw new IllegalArgumentException("unknown command " + command);
+            }
+        } catch (IllegalArgumentException e) {
+            error(out, e.getMessage());
+        } catch (IOException e) {
+            error(out, "checkout failed: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // a broken engine part must not leave the session waiting for a reply that never comes
+            INTERNAL_ERRORS.inc();
+            System.err.println("Request failed: " + line + ": " + e);
+            error(out, "internal error: " + e);
+        }
+        return true;
+    }
+
+    private static void error(ReceiptTemplate.Buffer out, String message) {
+        ERRORS.inc();
+        out.reset().ascii("ERR ");
+        out.text(message, 0, true, false);
+        out.put(NEWLINE);
+    }
+
+    private void find(String name, ReceiptTemplate.Buffer out) {
+        Product p = product(name);
+        ReceiptTemplate.Values v = new ReceiptTemplate.Values()
+                .set(ReceiptTemplate.Field.NAME, p.getName())
+                .set(ReceiptTemplate.Field.STOCK, p.getQuantity())
+                .set(ReceiptTemplate.Field.REGULAR, p.getRegularCents())
+                .set(ReceiptTemplate.Field.MEMBER, p.getMemberCents())
+                .set(ReceiptTemplate.Field.STATUS, p.getTaxStatus().name());
+        PRODUCT.render(v, List.<Product>of(), (r, rv) -> { }, ReceiptTemplate.Format.JSON, out.ascii("OK "));
+    }
+
+    private void type(Session s, String arg, ReceiptTemplate.Buffer out) {
+        if (!s.cart.isEmpty()) {
+            throw new IllegalArgumentException("cart is not empty");
+        }
+        try {
+            s.type = CustomerType.valueOf(arg.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown customer type " + arg);
+        }
+        out.ascii("OK").put(NEWLINE);
+    }
+
+    private void add(Session s, String arg, ReceiptTemplate.Buffer out) {
+        int space = arg.indexOf(' ');
+        if (space < 0) {
+            throw new IllegalArgumentException("usage: ADD <qty> <name>");
+        }
+        int qty = quantity(arg.substring(0, space));
+        Product p = product(arg.substring(space + 1).trim());
+        if (!s.cart.addItem(p, qty, s.type)) {
+            throw new IllegalArgumentException("insufficient stock, available " + p.getQuantity());
+        }
+        cart(s.cart, TOTALS, out);
+    }
+
+    private void remove(Session s, String arg, ReceiptTemplate.Buffer out) {
+        int space = arg.indexOf(' ');
+        if (space < 0) {
+            throw new IllegalArgumentException("usage: REMOVE <qty|all> <name>");
+        }
+        String name = arg.substring(space + 1).trim();
+        Optional<CartItem> item = s.cart.getItem(name);
+        if (item.isEmpty()) {
+            throw new IllegalArgumentException("not in cart: " + name);
+        }
+        String qty = arg.substring(0, space);
+        if (qty.equalsIgnoreCase("all") || quantity(qty) >= item.get().getQuantity()) {
+            s.cart.removeItem(name);
+        } else {
+            s.cart.reduceItem(name, quantity(qty));
+        }
+        cart(s.cart, TOTALS, out);
+    }
+
+    private void checkout(Session s, String arg, ReceiptTemplate.Buffer out) throws IOException {
+        if (s.cart.isEmpty()) {
+            throw new IllegalArgumentException("cart is empty");
+        }
+        BigDecimal cash;
+        try {
+            cash = new BigDecimal(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid cash amount " + arg);
+        }
+        Cart cart = s.cart;
+        engine.checkout(cart, cash, s.type);
+        long cashCents = Money.toCents(cash);
+        ReceiptTemplate.Values v = new ReceiptTemplate.Values()
+                .set(ReceiptTemplate.Field.TOTAL, cart.getTotalCents())
+                .set(ReceiptTemplate.Field.CASH, cashCents)
+                .set(ReceiptTemplate.Field.CHANGE, cashCents - cart.getTotalCents());
+        PAID.render(v, List.<CartItem>of(), ReceiptPrinter.LINES, ReceiptTemplate.Format.JSON, out.ascii("OK "));
+        s.cart = engine.newCart();
+    }
+
+    // A large cart viewed again without changes is not rendered again.
+    private static void view(Session s, ReceiptTemplate.Buffer out) {
+        if (s.view == null) {
+            s.view = new ReceiptTemplate.Buffer();
+        }
+        if (s.viewOf != s.cart || s.viewVersion != s.cart.getVersion()) {
+            cart(s.cart, CART, s.view.reset());
+            s.viewOf = s.cart;
+            s.viewVersion = s.cart.getVersion();
+        }
+        out.put(s.view);
+    }
+
+    private static void cart(Cart cart, ReceiptTemplate template, ReceiptTemplate.Buffer out) {
+        ReceiptTemplate.Values v = new ReceiptTemplate.Values()
+                .set(ReceiptTemplate.Field.UNITS, cart.getTotalUnits())
+                .set(ReceiptTemplate.Field.SUBTOTAL, cart.getSubtotalCents())
+                .set(ReceiptTemplate.Field.DISCOUNT, cart.getDiscountCents())
+                .set(ReceiptTemplate.Field.TAX, cart.getTaxCents())
+                .set(ReceiptTemplate.Field.TOTAL, cart.getTotalCents())
+                .set(ReceiptTemplate.Field.SAVINGS, cart.getSavingsCents());
+        template.render(v, cart.items(), ReceiptPrinter.LINES, ReceiptTemplate.Format.JSON, out.ascii("OK "));
+    }
+
+    private Product product(String name) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("missing product name");
+        }
+        return engine.getInventory().find(name).orElseThrow(() -> new IllegalArgumentException("not found: " + name));
+    }
+
+    private static int quantity(String s) {
+        try {
+            int qty = Integer.parseInt(s);
+            if (qty > 0) return qty;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("invalid quantity " + s);
+    }
+
+    private static int limit(String arg) {
+        return arg.isEmpty() ? 10 : quantity(arg);
+    }
+
+    private void shutdown() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Session) {
+                close((Session) key.attachment());
+            }
+        }
+        lanes.shutdown();
+        try {
+            lanes.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.close();
+        selector.close();
+    }
+
+    // Stops accepting and serving; run() returns once open carts are released.
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
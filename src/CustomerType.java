@@ -1,4 +1,5 @@
 public enum CustomerType {
     REGULAR,
-    MEMBER
+    MEMBER,
+    EMPLOYEE
 }
@@ -1,88 +1,398 @@
 import java.util.*;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Inventory {
 
-    private final Map<String, Product> products = new LinkedHashMap<>();
+    // What moved the stock: a journaled sale or return, a reload of head office's file, or
+    // products added or replaced. Only a sale is units leaving the shelf through the till.
+    public enum Change { SALE, RETURN, RELOAD, PUT }
+
+    // Told about every committed stock change, after the new version is published. ids and
+    // deltas are parallel; on hand counts are read from the version the change produced.
+    // Changes from several lanes may arrive out of order, so compare versions. Sales are told
+    // from the commit path, so a listener must be quick and must not block.
+    public interface StockListener {
+        void stockChanged(StockSnapshot version, Change change, int[] ids, int[] deltas);
+    }
+
+    // snapshot header naming the last journal record already folded into the file
+    static final String SEQ_HEADER = "# journal-seq: ";
+    // and the newest transaction number the snapshot accounts for
+    static final String TX_HEADER = "# last-tx: ";
+
+    private static final Metrics.Histogram FIND_TIME = Metrics.histogram("inventory.find_ns");
+    private static final Metrics.Counter FIND_MISSES = Metrics.counter("inventory.find_misses");
+    private static final Metrics.Histogram SAVE_TIME = Metrics.histogram("inventory.save_ns");
+    private static final Metrics.Counter SAVE_FAILED = Metrics.counter("inventory.save_failed");
+    private static final Metrics.Histogram RELOAD_TIME = Metrics.histogram("inventory.reload_ns");
+    private static final Metrics.Counter RELOADED = Metrics.counter("inventory.reloaded_products");
+    private static final Metrics.Counter RELOAD_CONFLICTS = Metrics.counter("inventory.reload_conflicts");
+
+    private final Catalog catalog;
+    // catalog and committed stock as of the last journaled sale; readers never lock
+    private final AtomicReference<StockSnapshot> stock;
+    private ProductIndex index;
+    private final List<StockListener> listeners = new CopyOnWriteArrayList<>();
+    private final List<String> loadErrors = new ArrayList<>();
+    private long snapshotSeq;
+    private long journalSeq;
+    private long lastTx;
+    private boolean binary;
+    // the text file as this inventory last read or wrote it: its line hashes, the stock it
+    // gave each id, and its size and time, to tell someone else's edit from our own write
+    private long[] fileLines;
+    private int[] fileStock = new int[0];
+    private long fileSize = -1;
+    private FileTime fileTime;
+
+    public Inventory() {
+        this(new Catalog());
+    }
+
+    private Inventory(Catalog catalog) {
+        this.catalog = catalog;
+        this.stock = new AtomicReference<>(StockSnapshot.empty(catalog));
+        this.index = new ProductIndex(catalog);
+    }
 
     public static Inventory load(Path path) throws IOException{
         
-        Inventory inventory = new Inventory();
-        
-        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        boolean binary = BinarySnapshot.isBinary(path);
+        InventoryLoader.Result parsed = binary ? BinarySnapshot.read(path) : InventoryLoader.load(path);
+        Inventory inventory = new Inventory(parsed.catalog);
+        inventory.binary = binary;
+        inventory.index = ProductIndex.buildAsync(parsed.catalog);
+        inventory.snapshotSeq = parsed.snapshotSeq;
+        inventory.lastTx = parsed.lastTx;
+        inventory.loadErrors.addAll(parsed.errors);
+        if (!binary) {
+            inventory.fileLines = parsed.lines;
+            inventory.fileStock = new int[parsed.catalog.size()];
+            for (int id = 0; id < inventory.fileStock.length; id++) {
+                inventory.fileStock[id] = parsed.catalog.onHand(id);
+            }
+            inventory.stamp(path);
+        }
 
-        for (String raw : lines) {
+        // sales committed after the snapshot was written live in the journal
+        inventory.journalSeq = InventoryJournal.replay(inventory, path, inventory.snapshotSeq);
+        int[] onHand = new int[parsed.catalog.size()];
+        for (int id = 0; id < onHand.length; id++) {
+            onHand[id] = parsed.catalog.onHand(id);
+        }
+        inventory.stock.set(StockSnapshot.of(1, parsed.catalog, onHand.length, onHand));
+        return inventory;
+    }
 
-            String line = raw.trim();
+    public void save(Path path) throws IOException {
+        writeSnapshot(path, captureOnHand(), journalSeq, lastTx);
+    }
 
-            if (line.isEmpty() || line.startsWith("#")) {
-                continue;
-            }
+    public void save(Path path, boolean binary) throws IOException {
+        this.binary = binary;
+        save(path);
+    }
 
-            // Name: qty, $reg, $member, Taxable|Exempt
-            String[] parts = line.split(":");
+    // Current catalog and committed stock. O(1) and never blocks; the returned version
+    // does not change, however many sales commit after it was taken.
+    public StockSnapshot snapshot() {
+        return stock.get();
+    }
 
-            if (parts.length != 2) {
-                continue;
+    public StockSnapshot captureOnHand() {
+        return stock.get();
+    }
+
+    // Publishes the stock change of a journaled sale (sign -1) or return (sign +1) as a new version.
+    void publish(Collection<CartItem> items, int sign) {
+        while (true) {
+            StockSnapshot current = stock.get();
+            int[] slots = new int[items.size()];
+            int[] deltas = new int[items.size()];
+            int n = 0;
+            for (CartItem it : items) {
+                Product p = it.getProduct();
+                if (p.getCatalog() == catalog && p.getId() < current.size()) {
+                    slots[n] = p.getId();
+                    deltas[n++] = sign * it.getQuantity();
+                }
+            }
+            if (publish(current, sign < 0 ? Change.SALE : Change.RETURN, Arrays.copyOf(slots, n), Arrays.copyOf(deltas, n))) {
+                return;
             }
+        }
+    }
+
+    private boolean publish(StockSnapshot current, Change change, int[] slots, int[] deltas) {
+        StockSnapshot next = current.adjust(slots, deltas);
+        if (!stock.compareAndSet(current, next)) {
+            return false;
+        }
+        notify(next, change, slots, deltas);
+        return true;
+    }
 
-            String name = parts[0].trim();
-            String[] rest = parts[1].split(",");
+    // Applies what someone else changed in the text inventory file since this inventory last
+    // read or wrote it, and returns how many products that touched. Only lines that are new
+    // since then are parsed. A changed product takes the file's prices and tax status, and
+    // its stock moves by as much as the file's count moved, so sales made since the file was
+    // written still count, as they would after a restart and journal replay. A cut stops
+    // where it would take units held by open carts, and the shortfall is reported. New products
+    // are added. Products gone from the file are kept. Items already in carts keep the price
+    // they were added at.
+    synchronized int reload(Path path) throws IOException {
+        if (binary || fileLines == null || !changedOnDisk(path)) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        long size = Files.size(path);
+        FileTime time = Files.getLastModifiedTime(path);
+        InventoryLoader.Result changes = InventoryLoader.changes(path, fileLines);
+        if (size != Files.size(path) || !time.equals(Files.getLastModifiedTime(path))) {
+            // still being written; its last write brings another change
+            return 0;
+        }
+        for (String error : changes.errors) {
+            System.err.println("Skipped " + error);
+        }
 
-            if (rest.length != 4) {
+        Catalog changed = changes.catalog;
+        int[] slots = new int[changed.size()];
+        int[] deltas = new int[changed.size()];
+        int n = 0;
+        List<Product> added = new ArrayList<>();
+        int[] repriced = new int[changed.size()];
+        int r = 0;
+        for (int k = 0; k < changed.size(); k++) {
+            int id = catalog.find(changed.name(k));
+            int count = changed.onHand(k);
+            if (id < 0) {
+                added.add(changed.product(k));
                 continue;
             }
+            catalog.reprice(id, changed.regularCents(k), changed.memberCents(k), changed.taxStatus(k));
+            repriced[r++] = id;
+            int was = id < fileStock.length ? fileStock[id] : catalog.onHand(id);
+            if (count != was) {
+                int applied = catalog.adjustStockHeld(id, count - was);
+                if (applied != count - was) {
+                    RELOAD_CONFLICTS.inc();
+                    System.err.println("Stock of " + changed.name(k) + " cut by " + -applied + " instead of " + (was - count)
+                            + ": the rest is held by open carts");
+                }
+                if (applied != 0) {
+                    slots[n] = id;
+                    deltas[n++] = applied;
+                }
+            }
+            fileStock = grow(fileStock, id);
+            fileStock[id] = count;
+        }
+        // one merge into the price order for the whole reload
+        index.addAll(Arrays.copyOf(repriced, r));
+        if (n > 0) {
+            slots = Arrays.copyOf(slots, n);
+            deltas = Arrays.copyOf(deltas, n);
+            while (!publish(stock.get(), Change.RELOAD, slots, deltas)) {
+                // a sale published first; its change is in the newer version already
+            }
+        }
+        if (!added.isEmpty()) {
+            putAll(added);
+            for (Product p : added) {
+                int id = catalog.find(p.getName());
+                fileStock = grow(fileStock, id);
+                fileStock[id] = p.getOnHand();
+            }
+        }
 
+        fileLines = changes.lines;
+        fileSize = size;
+        fileTime = time;
+        RELOADED.add(changed.size());
+        RELOAD_TIME.recordSince(start);
+        return changed.size();
+    }
 
-            int qty = Integer.parseInt(rest[0].trim());
-            BigDecimal reg = parseMoney(rest[1]);
-            BigDecimal mem = parseMoney(rest[2]);
-            TaxStatus tax = parseTax(rest[3].trim());
+    private boolean changedOnDisk(Path path) throws IOException {
+        return Files.exists(path) && (Files.size(path) != fileSize || !Files.getLastModifiedTime(path).equals(fileTime));
+    }
+
+    private void stamp(Path path) throws IOException {
+        fileSize = Files.size(path);
+        fileTime = Files.getLastModifiedTime(path);
+    }
+
+    private static int[] grow(int[] a, int id) {
+        return id < a.length ? a : Arrays.copyOf(a, Math.max(id + 1, a.length * 2));
+    }
 
+    public void addStockListener(StockListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeStockListener(StockListener listener) {
+        listeners.remove(listener);
+    }
 
-            Product p = new Product(name, qty, reg, mem, tax);
-            inventory.products.put(name.toLowerCase(Locale.ROOT), p);
+    private void notify(StockSnapshot version, Change change, int[] ids, int[] deltas) {
+        for (StockListener l : listeners) {
+            try {
+                l.stockChanged(version, change, ids, deltas);
+            } catch (RuntimeException e) {
+                // the change is committed either way; a broken listener must not fail the sale
+                System.err.println("Stock listener failed: " + e);
+            }
         }
-        return inventory;
     }
 
-    public void save(Path path) throws IOException {
+    // Writes to a temp file and renames it over the old snapshot so a crash never leaves it truncated.
+    synchronized void writeSnapshot(Path path, StockSnapshot snap, long seq, long tx) throws IOException {
+        long start = System.nanoTime();
+        int[] counts = snap.toArray();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            long[] lines = null;
+            if (binary) {
+                BinarySnapshot.write(tmp, snap.products(), counts, seq, tx);
+            } else {
+                lines = writeText(tmp, snap.products(), counts, seq, tx);
+            }
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (lines != null) {
+                // what we wrote is the baseline the next reload diffs against
+                fileLines = lines;
+                fileStock = counts;
+                stamp(path);
+            }
+        } catch (IOException e) {
+            SAVE_FAILED.inc();
+            throw e;
+        }
+        SAVE_TIME.recordSince(start);
+        snapshotSeq = seq;
+        journalSeq = Math.max(journalSeq, seq);
+        noteTx(tx);
+    }
+
+    private long[] writeText(Path path, List<Product> catalog, int[] counts, long seq, long tx) throws IOException {
         List<String> out = new ArrayList<>();
-        for (Product p : products.values()) {
+        if (seq > 0) {
+            out.add(SEQ_HEADER + seq);
+        }
+        if (tx > 0) {
+            out.add(TX_HEADER + tx);
+        }
+        int i = 0;
+        for (Product p : catalog) {
             String taxStr = (p.getTaxStatus() == TaxStatus.TAXABLE) ? "Taxable" : "Tax-Exempt";
             out.add(String.format(Locale.US, "%s: %d, $%.2f, $%.2f, %s",
                     p.getName(),
-                    p.getQuantity(),
+                    counts[i++],
                     p.getRegularPrice(),
                     p.getMemberPrice(),
                     taxStr));
         }
         Files.write(path, out, StandardCharsets.UTF_8);
+        long[] lines = new long[out.size()];
+        for (int k = 0; k < lines.length; k++) {
+            lines[k] = InventoryLoader.hash(out.get(k).getBytes(StandardCharsets.UTF_8));
+        }
+        return lines;
     }
 
-    private static BigDecimal parseMoney(String s) {
-        String cleaned = s.replace("$", "").trim();
-        return new BigDecimal(cleaned);
+    public List<String> getLoadErrors() {
+        return Collections.unmodifiableList(loadErrors);
     }
 
+    public long getSnapshotSeq() {
+        return snapshotSeq;
+    }
 
-    private static TaxStatus parseTax(String s) {
-        String t = s.toLowerCase(Locale.ROOT);
-        if (t.contains("taxable")) return TaxStatus.TAXABLE;
-        return TaxStatus.EXEMPT;
+    public long getJournalSeq() {
+        return journalSeq;
     }
 
+    public synchronized long getLastTx() {
+        return lastTx;
+    }
+
+    synchronized void noteTx(long tx) {
+        lastTx = Math.max(lastTx, tx);
+    }
 
     public Optional<Product> find(String name) {
         if (name == null) return Optional.empty();
-        return Optional.ofNullable(products.get(name.toLowerCase(Locale.ROOT)));
+        long start = System.nanoTime();
+        int id = catalog.find(name);
+        FIND_TIME.recordSince(start);
+        if (id < 0) {
+            FIND_MISSES.inc();
+            return Optional.empty();
+        }
+        return Optional.of(catalog.product(id));
+    }
+
+    public List<Product> findByPrefix(String prefix, int limit) {
+        if (prefix == null) return List.of();
+        return index.findByPrefix(prefix, limit);
+    }
+
+    public List<Product> findFuzzy(String name, int limit) {
+        if (name == null) return List.of();
+        return index.findFuzzy(name, limit);
+    }
+
+    ProductIndex index() {
+        return index;
+    }
+
+    public void put(Product p) {
+        putAll(List.of(p));
+    }
+
+    // Adds products, or replaces those with the same name in place, as one new version.
+    // The products are copied into this inventory's catalog; look them up again with find.
+    public synchronized void putAll(Collection<Product> added) {
+        int[] ids = new int[added.size()];
+        int i = 0;
+        for (Product p : added) {
+            ids[i++] = catalog.add(p.getName(), p.getOnHand(), p.getRegularCents(), p.getMemberCents(), p.getTaxStatus());
+        }
+        index.addAll(ids);
+        while (true) {
+            // only the paths to the written ids are copied, so a put costs the batch, not the catalog
+            StockSnapshot current = stock.get();
+            int[] values = new int[ids.length];
+            int[] deltas = new int[ids.length];
+            Map<Integer, Integer> seen = new HashMap<>();
+            for (int k = 0; k < ids.length; k++) {
+                values[k] = catalog.onHand(ids[k]);
+                Integer before = seen.put(ids[k], values[k]);
+                int was = before != null ? before : ids[k] < current.size() ? current.onHand(ids[k]) : 0;
+                deltas[k] = values[k] - was;
+            }
+            StockSnapshot next = current.with(catalog.size(), ids, values);
+            if (stock.compareAndSet(current, next)) {
+                notify(next, Change.PUT, ids, deltas);
+                return;
+            }
+        }
     }
 
+    // Products in catalog order as of the current version.
+    public List<Product> all() { return snapshot().products(); }
 
-    public Collection<Product> all() { return products.values(); }
-    
 }
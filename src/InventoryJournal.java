@@ -0,0 +1,480 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Append-only log of stock deltas that sits next to the inventory snapshot.
+// Each line is one sale or return: seq, tx, then name/delta pairs, all tab separated. A
+// record with a receipt is preceded by an "R", seq, file name, receipt text line, and one
+// with sales log rows by an "S", seq, rows line (both backslash-escaped), in the same write;
+// the stock line commits them, so a line without one is ignored.
+public class InventoryJournal implements AutoCloseable {
+
+    private static final int MAX_BATCH = 512;
+    private static final Metrics.Histogram APPEND_TIME = Metrics.histogram("journal.append_ns");
+    private static final Metrics.Histogram BATCH_SIZE = Metrics.histogram("journal.batch_size");
+    private static final Metrics.Histogram COMPACT_TIME = Metrics.histogram("journal.compact_ns");
+    private static final Metrics.Counter WRITE_FAILED = Metrics.counter("journal.write_failed");
+    private static final Metrics.Counter COMPACT_FAILED = Metrics.counter("journal.compact_failed");
+    private static final String SUFFIX = ".journal";
+
+    private final Inventory inventory;
+    private final Path snapshotPath;
+    private final AtomicLong seq;
+    private final AtomicLong lastTx;
+    // sales share the read lock; compaction takes the write lock to get a consistent cut
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final ScheduledExecutorService compactor;
+    private volatile FileChannel channel;
+    private volatile Path segmentPath;
+    private volatile long compactedSeq;
+    // receipts and sales rows of the records a compaction drops must be on disk first
+    private final Flushable receipts;
+
+    // A receipt kept in the journal, for writing again after a crash.
+    static final class Receipt {
+        final long tx;
+        final String name;
+        final byte[] text;
+
+        Receipt(long tx, String name, byte[] text) {
+            this.tx = tx;
+            this.name = name;
+            this.text = text;
+        }
+    }
+
+    private static final class Pending {
+        final byte[] line;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(byte[] line) {
+            this.line = line;
+        }
+    }
+
+    private static final Pending STOP = new Pending(new byte[0]);
+
+    private InventoryJournal(Inventory inventory, Path snapshotPath, long compactEverySeconds, Flushable receipts) throws IOException {
+        this.inventory = inventory;
+        this.receipts = receipts;
+        this.snapshotPath = snapshotPath;
+        this.seq = new AtomicLong(inventory.getJournalSeq());
+        this.lastTx = new AtomicLong(inventory.getLastTx());
+        this.compactedSeq = inventory.getSnapshotSeq();
+        this.channel = openSegment(seq.get() + 1);
+
+        this.writer = new Thread(this::runWriter, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        if (compactEverySeconds > 0) {
+            compactor.scheduleWithFixedDelay(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    COMPACT_FAILED.inc();
+                    System.err.println("Journal compaction failed: " + e.getMessage());
+                }
+            }, compactEverySeconds, compactEverySeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public static InventoryJournal open(Inventory inventory, Path snapshotPath) throws IOException {
+        return new InventoryJournal(inventory, snapshotPath, 30, null);
+    }
+
+    public static InventoryJournal open(Inventory inventory, Path snapshotPath, long compactEverySeconds) throws IOException {
+        return new InventoryJournal(inventory, snapshotPath, compactEverySeconds, null);
+    }
+
+    public static InventoryJournal open(Inventory inventory, Path snapshotPath, long compactEverySeconds, Flushable receipts) throws IOException {
+        return new InventoryJournal(inventory, snapshotPath, compactEverySeconds, receipts);
+    }
+
+    public void record(long tx, Collection<CartItem> items, Runnable apply) throws IOException {
+        record(tx, items, null, null, apply);
+    }
+
+    // Blocks until the record is on disk, then applies it in memory and publishes a new stock
+    // version; the batch it lands in shares one fsync. A receipt journaled with the sale is
+    // handed to the receipt writer from apply, so compaction never cuts between the two.
+    public void record(long tx, Collection<CartItem> items, String receiptName, byte[] receipt, Runnable apply) throws IOException {
+        record(tx, items, -1, receiptName, receipt, apply);
+    }
+
+    // sign is -1 for a sale and +1 for returned units going back on the shelf.
+    public void record(long tx, Collection<CartItem> items, int sign, String receiptName, byte[] receipt, Runnable apply) throws IOException {
+        record(tx, items, sign, receiptName, receipt, null, apply);
+    }
+
+    // sales holds the transaction's sales log rows, kept for appending again after a crash.
+    public void record(long tx, Collection<CartItem> items, int sign, String receiptName, byte[] receipt, byte[] sales, Runnable apply) throws IOException {
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            long s = seq.incrementAndGet();
+            StringBuilder sb = new StringBuilder(32 + items.size() * 24);
+            sb.append(s).append('\t').append(tx);
+            lastTx.accumulateAndGet(tx, Math::max);
+            for (CartItem it : items) {
+                sb.append('\t').append(it.getName()).append('\t').append(sign * it.getQuantity());
+            }
+            sb.append('\n');
+            byte[] sale = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+            byte[] receiptHead = receipt == null ? null : ("R\t" + s + "\t" + receiptName + "\t").getBytes(StandardCharsets.UTF_8);
+            byte[] salesHead = sales == null ? null : ("S\t" + s + "\t").getBytes(StandardCharsets.UTF_8);
+            int size = sale.length;
+            if (receipt != null) size += receiptHead.length + escapedLength(receipt) + 1;
+            if (sales != null) size += salesHead.length + escapedLength(sales) + 1;
+            byte[] line = sale;
+            if (size > sale.length) {
+                line = new byte[size];
+                int at = 0;
+                if (receipt != null) {
+                    System.arraycopy(receiptHead, 0, line, at, receiptHead.length);
+                    at = escape(receipt, line, at + receiptHead.length);
+                    line[at++] = '\n';
+                }
+                if (sales != null) {
+                    System.arraycopy(salesHead, 0, line, at, salesHead.length);
+                    at = escape(sales, line, at + salesHead.length);
+                    line[at++] = '\n';
+                }
+                System.arraycopy(sale, 0, line, at, sale.length);
+            }
+
+            Pending p = new Pending(line);
+            queue.add(p);
+            try {
+                p.done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing journal", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Journal write failed", e.getCause());
+            }
+            apply.run();
+            // still under the read lock, so compaction never sees a commit without its version
+            inventory.publish(items, sign);
+            APPEND_TIME.recordSince(start);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void runWriter() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            boolean stop = batch.remove(STOP);
+            try {
+                if (!batch.isEmpty()) {
+                    int size = 0;
+                    for (Pending p : batch) size += p.line.length;
+                    ByteBuffer buf = ByteBuffer.allocate(size);
+                    for (Pending p : batch) buf.put(p.line);
+                    buf.flip();
+                    while (buf.hasRemaining()) channel.write(buf);
+                    channel.force(false);
+                    BATCH_SIZE.record(batch.size());
+                }
+                for (Pending p : batch) p.done.complete(null);
+            } catch (IOException e) {
+                WRITE_FAILED.add(batch.size());
+                for (Pending p : batch) p.done.completeExceptionally(e);
+            }
+            batch.clear();
+            if (stop) {
+                return;
+            }
+        }
+    }
+
+    // Picks up edits someone else made to the snapshot file, then folds them into a fresh
+    // snapshot. Holding the compaction monitor keeps a compaction from writing over the file
+    // between the two. Returns how many products changed.
+    public synchronized int reload() throws IOException {
+        int changed = inventory.reload(snapshotPath);
+        if (changed > 0) {
+            compact();
+        }
+        return changed;
+    }
+
+    // Folds everything journaled so far into a fresh snapshot and drops the segments it covers.
+    // The file is reloaded first, so an edit made to it since the last snapshot is not lost.
+    public synchronized void compact() throws IOException {
+        long start = System.nanoTime();
+        StockSnapshot counts;
+        long upTo;
+
+        inventory.reload(snapshotPath);
+
+        lock.writeLock().lock();
+        try {
+            upTo = seq.get();
+            if (upTo == compactedSeq) {
+                return;
+            }
+            counts = inventory.captureOnHand();
+            FileChannel old = channel;
+            channel = openSegment(upTo + 1);
+            old.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // every record up to the cut has handed its receipt over; they must be written before
+        // the records go. If they cannot be, the segments stay for the next try or for recovery.
+        if (receipts != null) {
+            receipts.flush();
+        }
+
+        inventory.writeSnapshot(snapshotPath, counts, upTo, lastTx.get());
+        for (Path segment : segments(snapshotPath)) {
+            if (segmentStart(segment) <= upTo) {
+                Files.deleteIfExists(segment);
+            }
+        }
+        compactedSeq = upTo;
+        COMPACT_TIME.recordSince(start);
+    }
+
+    @Override
+    // A failed last compaction still stops the writer and closes the segment; the records
+    // stay on disk for the next start.
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        try {
+            compact();
+        } finally {
+            queue.add(STOP);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            boolean empty = channel.size() == 0;
+            channel.close();
+            if (empty) {
+                Files.deleteIfExists(segmentPath);
+            }
+        }
+    }
+
+    private FileChannel openSegment(long startSeq) throws IOException {
+        Path segment = snapshotPath.resolveSibling(String.format(Locale.US, "%s.%012d%s", snapshotPath.getFileName(), startSeq, SUFFIX));
+        FileChannel ch = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ch.truncate(completeLength(ch));
+        ch.position(ch.size());
+        segmentPath = segment;
+        return ch;
+    }
+
+    // Length of the file up to and including its last newline; anything after it was never acknowledged.
+    private static long completeLength(FileChannel ch) throws IOException {
+        long pos = ch.size();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        while (pos > 0) {
+            one.clear();
+            ch.read(one, pos - 1);
+            if (one.get(0) == '\n') {
+                return pos;
+            }
+            pos--;
+        }
+        return 0;
+    }
+
+    private static List<Path> segments(Path snapshotPath) throws IOException {
+        Path dir = snapshotPath.toAbsolutePath().getParent();
+        String prefix = snapshotPath.getFileName() + ".";
+        List<Path> out = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, prefix + "*" + SUFFIX)) {
+            for (Path p : ds) {
+                if (segmentStart(p) >= 0) out.add(p);
+            }
+        }
+        out.sort(Comparator.comparingLong(InventoryJournal::segmentStart));
+        return out;
+    }
+
+    private static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        int end = name.length() - SUFFIX.length();
+        int start = name.lastIndexOf('.', end - 1) + 1;
+        try {
+            return Long.parseLong(name.substring(start, end));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    // Receipts of the journaled sales newer than afterSeq, oldest first.
+    static List<Receipt> receipts(Path snapshotPath, long afterSeq) throws IOException {
+        List<Receipt> out = new ArrayList<>();
+        for (String[] r : tagged(snapshotPath, afterSeq, "R", 4)) {
+            out.add(new Receipt(Long.parseLong(r[0]), r[3], unescape(r[4])));
+        }
+        return out;
+    }
+
+    // Sales log rows of the journaled sales and returns newer than afterSeq, oldest first.
+    static List<byte[]> sales(Path snapshotPath, long afterSeq) throws IOException {
+        List<byte[]> out = new ArrayList<>();
+        for (String[] r : tagged(snapshotPath, afterSeq, "S", 3)) {
+            out.add(unescape(r[3]));
+        }
+        return out;
+    }
+
+    // The tag lines of committed records newer than afterSeq, split into fields fields, each
+    // with the record's tx in front.
+    private static List<String[]> tagged(Path snapshotPath, long afterSeq, String tag, int fields) throws IOException {
+        List<String[]> out = new ArrayList<>();
+        String prefix = tag + "\t";
+        for (Path segment : segments(snapshotPath)) {
+            boolean tornTail;
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                tornTail = completeLength(ch) != ch.size();
+            }
+            try (BufferedReader in = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                String[] found = null;
+                String line = in.readLine();
+                while (line != null) {
+                    String next = in.readLine();
+                    if (next == null && tornTail) {
+                        break;
+                    }
+                    if (line.startsWith(prefix)) {
+                        found = line.split("\t", fields);
+                    } else if (line.length() > 1 && line.charAt(1) == '\t' && Character.isLetter(line.charAt(0))) {
+                        // another tag line of the same record
+                    } else {
+                        String[] f = line.split("\t", 3);
+                        if (found != null && found.length == fields && f.length >= 2 && f[0].equals(found[1])) {
+                            try {
+                                if (Long.parseLong(f[0]) > afterSeq) {
+                                    String[] r = new String[fields + 1];
+                                    r[0] = String.valueOf(Long.parseLong(f[1]));
+                                    System.arraycopy(found, 0, r, 1, fields);
+                                    out.add(r);
+                                }
+                            } catch (NumberFormatException e) {
+                                // not a sale line
+                            }
+                        }
+                        found = null;
+                    }
+                    line = next;
+                }
+            }
+        }
+        return out;
+    }
+
+    private static int escapedLength(byte[] text) {
+        int n = text.length;
+        for (byte b : text) {
+            if (b == '\\' || b == '\n' || b == '\r' || b == '\t') n++;
+        }
+        return n;
+    }
+
+    // Writes text into out from at with line breaks, tabs and backslashes escaped; returns the end.
+    private static int escape(byte[] text, byte[] out, int at) {
+        for (byte b : text) {
+            switch (b) {
+                case '\\' -> { out[at++] = '\\'; out[at++] = '\\'; }
+                case '\n' -> { out[at++] = '\\'; out[at++] = 'n'; }
+                case '\r' -> { out[at++] = '\\'; out[at++] = 'r'; }
+                case '\t' -> { out[at++] = '\\'; out[at++] = 't'; }
+                default -> out[at++] = b;
+            }
+        }
+        return at;
+    }
+
+    private static byte[] unescape(String escaped) {
+        byte[] in = escaped.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.length);
+        for (int i = 0; i < in.length; i++) {
+            if (in[i] != '\\' || i + 1 == in.length) {
+                out.write(in[i]);
+                continue;
+            }
+            switch (in[++i]) {
+                case 'n' -> out.write('\n');
+                case 'r' -> out.write('\r');
+                case 't' -> out.write('\t');
+                default -> out.write(in[i]);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Applies every journaled sale newer than afterSeq and returns the highest seq seen;
+    // the inventory's last transaction number is advanced to the newest one replayed.
+    static long replay(Inventory inventory, Path snapshotPath, long afterSeq) throws IOException {
+        long last = afterSeq;
+        for (Path segment : segments(snapshotPath)) {
+            boolean tornTail;
+            try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+                tornTail = completeLength(ch) != ch.size();
+            }
+            try (BufferedReader in = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+                String line = in.readLine();
+                while (line != null) {
+                    String next = in.readLine();
+                    if (next == null && tornTail) {
+                        break; // crash mid-write; the sale was never acknowledged
+                    }
+                    String[] f = line.split("\t");
+                    line = next;
+                    if (f.length < 2 || f.length % 2 != 0) {
+                        continue;
+                    }
+                    long s;
+                    try {
+                        s = Long.parseLong(f[0]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    if (s <= afterSeq) {
+                        continue;
+                    }
+                    for (int i = 2; i < f.length; i += 2) {
+                        int delta = Integer.parseInt(f[i + 1]);
+                        inventory.find(f[i]).ifPresent(p -> p.adjustStock(delta));
+                    }
+                    last = Math.max(last, s);
+                    inventory.noteTx(Long.parseLong(f[1]));
+                }
+            }
+        }
+        return last;
+    }
+}
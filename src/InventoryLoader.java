@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Parses the text inventory format straight from a memory-mapped file.
+// The file is cut into chunks on line boundaries and the chunks are parsed in parallel.
+// Every line is also hashed, so a later read of the same file can skip the lines it has
+// already seen and parse only what changed.
+public class InventoryLoader {
+
+    private static final int CHUNK_SIZE = 4 << 20;
+    private static final String FORMAT = "expected 'Name: qty, $regular, $member, Taxable|Tax-Exempt'";
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+    // how far ahead of where it should be a re-read looks for a line it has seen
+    private static final int LOOKAHEAD = 64;
+
+    public static final class Result {
+        Catalog catalog = new Catalog();
+        final List<String> errors = new ArrayList<>();
+        long snapshotSeq;
+        long lastTx;
+        // a hash of every line, in file order
+        long[] lines;
+    }
+
+    private static final class Chunk {
+        final long start;
+        final long end;
+        final Catalog catalog = new Catalog();
+        final List<Integer> errorLines = new ArrayList<>();
+        final List<String> errorMessages = new ArrayList<>();
+        long[] hashes = new long[1024];
+        int lines;
+        long snapshotSeq;
+        long lastTx;
+        // when re-reading: the lines last seen, and the one the next line should match
+        long[] seen;
+        int next;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    public static Result load(Path path) throws IOException {
+        Result result = new Result();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<Chunk> chunks = split(ch);
+            try {
+                ForkJoinPool.commonPool().invoke(new ParseTask(ch, chunks, 0, chunks.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            int lineCount = 0;
+            for (Chunk c : chunks) lineCount += c.lines;
+            result.lines = new long[lineCount];
+
+            int lineOffset = 0;
+            for (Chunk c : chunks) {
+                // chunks keep file order; a repeated name keeps its first id and its last values
+                if (result.catalog.size() == 0) {
+                    result.catalog = c.catalog;
+                } else {
+                    result.catalog.addAll(c.catalog);
+                }
+                for (int i = 0; i < c.errorLines.size(); i++) {
+                    int line = lineOffset + c.errorLines.get(i);
+                    result.errors.add(path.getFileName() + ":" + line + ": " + c.errorMessages.get(i));
+                }
+                result.snapshotSeq = Math.max(result.snapshotSeq, c.snapshotSeq);
+                result.lastTx = Math.max(result.lastTx, c.lastTx);
+                System.arraycopy(c.hashes, 0, result.lines, lineOffset, c.lines);
+                lineOffset += c.lines;
+            }
+        }
+        return result;
+    }
+
+    // Re-reads a file whose lines were `seen` (as Result.lines) and parses only the lines that
+    // are new or edited since; the result's catalog holds just their products. Lines are
+    // matched in order: a line equal to the next seen line, or to one a little further on
+    // (those between were removed), is unchanged. Anything else is parsed and the next line
+    // is matched from the same place, which covers inserted lines. A line moved far, or a
+    // block of more than LOOKAHEAD lines removed at once, is read as changed: parsed again
+    // for nothing, but never missed. One pass, in order, so it runs on the calling thread.
+    static Result changes(Path path, long[] seen) throws IOException {
+        Result result = new Result();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            Chunk all = new Chunk(0, ch.size());
+            all.seen = seen;
+            all.hashes = new long[seen.length + 1024];
+            for (Chunk c : split(ch)) {
+                parse(ch.map(FileChannel.MapMode.READ_ONLY, c.start, c.end - c.start), all);
+            }
+            result.catalog = all.catalog;
+            for (int i = 0; i < all.errorLines.size(); i++) {
+                result.errors.add(path.getFileName() + ":" + all.errorLines.get(i) + ": " + all.errorMessages.get(i));
+            }
+            result.snapshotSeq = all.snapshotSeq;
+            result.lastTx = all.lastTx;
+            result.lines = all.lines == all.hashes.length ? all.hashes : Arrays.copyOf(all.hashes, all.lines);
+        }
+        return result;
+    }
+
+    // The hash parse() gives a line, without its newline: the bytes are taken eight at a
+    // time, little-endian, the last few zero-padded, and then the length.
+    static long hash(byte[] line) {
+        long h = 0;
+        int i = 0;
+        for (; i + 8 <= line.length; i += 8) {
+            long w = 0;
+            for (int k = 7; k >= 0; k--) w = w << 8 | (line[i + k] & 0xFF);
+            h = mix(h, w);
+        }
+        if (i < line.length) {
+            long w = 0;
+            for (int k = line.length - 1; k >= i; k--) w = w << 8 | (line[k] & 0xFF);
+            h = mix(h, w);
+        }
+        return finish(h, line.length);
+    }
+
+    private static long mix(long h, long word) {
+        return Long.rotateLeft((h ^ word) * MIX, 29);
+    }
+
+    private static long finish(long h, int length) {
+        h = (h ^ length) * MIX;
+        return h ^ h >>> 32;
+    }
+
+    private static List<Chunk> split(FileChannel ch) throws IOException {
+        long size = ch.size();
+        List<Chunk> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(256);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + CHUNK_SIZE);
+            // push the cut forward to just past the next newline
+            while (end < size) {
+                probe.clear();
+                int n = ch.read(probe, end);
+                if (n <= 0) {
+                    end = size;
+                    break;
+                }
+                int i = 0;
+                while (i < n && probe.get(i) != '\n') i++;
+                end += i;
+                if (i < n) {
+                    end++;
+                    break;
+                }
+            }
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static final class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel ch;
+        private final List<Chunk> chunks;
+        private final int from;
+        private final int to;
+
+        ParseTask(FileChannel ch, List<Chunk> chunks, int from, int to) {
+            this.ch = ch;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ParseTask(ch, chunks, from, mid), new ParseTask(ch, chunks, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                Chunk c = chunks.get(i);
+                try {
+                    parse(ch.map(FileChannel.MapMode.READ_ONLY, c.start, c.end - c.start), c);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    private static void parse(ByteBuffer buf, Chunk c) {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] scratch = new byte[64];
+        int limit = buf.limit();
+        int pos = 0;
+        while (pos < limit) {
+            // find the newline a word at a time, hashing the words before it
+            long h = 0;
+            int eol = pos;
+            while (true) {
+                if (eol + 8 > limit) {
+                    long w = 0;
+                    int k = 0;
+                    byte b;
+                    while (eol + k < limit && (b = buf.get(eol + k)) != '\n') {
+                        w |= (b & 0xFFL) << 8 * k++;
+                    }
+                    if (k > 0) h = mix(h, w);
+                    eol += k;
+                    break;
+                }
+                long w = buf.getLong(eol);
+                long x = w ^ NEWLINES;
+                long newline = (x - ONES) & ~x & HIGHS;
+                if (newline == 0) {
+                    h = mix(h, w);
+                    eol += 8;
+                    continue;
+                }
+                int k = Long.numberOfTrailingZeros(newline) >>> 3;
+                if (k > 0) h = mix(h, w & -1L >>> 64 - 8 * k);
+                eol += k;
+                break;
+            }
+            h = finish(h, eol - pos);
+
+            if (c.lines == c.hashes.length) {
+                c.hashes = Arrays.copyOf(c.hashes, c.lines * 2);
+            }
+            c.hashes[c.lines++] = h;
+            if (c.seen == null || !seen(c, h)) {
+                String error = parseLine(buf, pos, eol, c, scratch);
+                if (error != null) {
+                    c.errorLines.add(c.lines);
+                    c.errorMessages.add(error);
+                }
+            }
+            pos = eol + 1;
+        }
+    }
+
+    private static boolean seen(Chunk c, long h) {
+        int end = Math.min(c.next + LOOKAHEAD, c.seen.length);
+        for (int j = c.next; j < end; j++) {
+            if (c.seen[j] == h) {
+                c.next = j + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String parseLine(ByteBuffer buf, int from, int to, Chunk c, byte[] scratch) {
+        int s = skipSpace(buf, from, to);
+        int e = trimEnd(buf, s, to);
+        if (s == e) {
+            return null;
+        }
+        if (buf.get(s) == '#') {
+            String comment = decode(buf, s, e, scratch);
+            if (comment.startsWith(Inventory.SEQ_HEADER)) {
+                try {
+                    c.snapshotSeq = Long.parseLong(comment.substring(Inventory.SEQ_HEADER.length()).trim());
+                } catch (NumberFormatException ex) {
+                    return "invalid journal sequence header";
+                }
+            } else if (comment.startsWith(Inventory.TX_HEADER)) {
+                try {
+                    c.lastTx = Long.parseLong(comment.substring(Inventory.TX_HEADER.length()).trim());
+                } catch (NumberFormatException ex) {
+                    return "invalid last transaction header";
+                }
+            }
+            return null;
+        }
+
+        // Name: qty, $reg, $member, Taxable|Exempt
+        int colon = indexOf(buf, s, e, (byte) ':');
+        if (colon < 0 || indexOf(buf, colon + 1, e, (byte) ':') >= 0) {
+            return FORMAT;
+        }
+        int[] commas = new int[3];
+        int field = colon + 1;
+        for (int i = 0; i < 3; i++) {
+            commas[i] = indexOf(buf, field, e, (byte) ',');
+            if (commas[i] < 0) {
+                return FORMAT;
+            }
+            field = commas[i] + 1;
+        }
+        if (indexOf(buf, field, e, (byte) ',') >= 0) {
+            return FORMAT;
+        }
+
+        String name = decode(buf, s, trimEnd(buf, s, colon), scratch);
+        if (name.isEmpty()) {
+            return "missing product name";
+        }
+        long qty = parseNumber(buf, colon + 1, commas[0], false);
+        if (qty < 0 || qty > Integer.MAX_VALUE) {
+            return "invalid quantity for " + name;
+        }
+        long reg = parseNumber(buf, commas[0] + 1, commas[1], true);
+        if (reg < 0) {
+            return "invalid regular price for " + name;
+        }
+        long mem = parseNumber(buf, commas[1] + 1, commas[2], true);
+        if (mem < 0) {
+            return "invalid member price for " + name;
+        }
+        TaxStatus tax = parseTax(buf, commas[2] + 1, e);
+
+        c.catalog.add(name, (int) qty, reg, mem, tax);
+        return null;
+    }
+
+    // Reads "12" or "$3.75" style fields; money comes back in cents. Returns -1 when malformed.
+    private static long parseNumber(ByteBuffer buf, int from, int to, boolean money) {
+        int s = skipSpace(buf, from, to);
+        int e = trimEnd(buf, s, to);
+        if (money && s < e && buf.get(s) == '$') {
+            s++;
+        }
+        long value = 0;
+        int digits = 0;
+        int fraction = -1;
+        for (int i = s; i < e; i++) {
+            byte b = buf.get(i);
+            if (b == '.' && money && fraction < 0) {
+                fraction = 0;
+            } else if (b >= '0' && b <= '9') {
+                if (fraction >= 0 && ++fraction > 2) {
+                    return -1;
+                }
+                value = value * 10 + (b - '0');
+                if (++digits > 15) {
+                    return -1;
+                }
+            } else {
+                return -1;
+            }
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        if (money) {
+            for (int f = Math.max(fraction, 0); f < 2; f++) value *= 10;
+        }
+        return value;
+    }
+
+    private static TaxStatus parseTax(ByteBuffer buf, int from, int to) {
+        byte[] word = "taxable".getBytes(StandardCharsets.US_ASCII);
+        for (int i = from; i + word.length <= to; i++) {
+            int j = 0;
+            while (j < word.length && Character.toLowerCase((char) buf.get(i + j)) == word[j]) j++;
+            if (j == word.length) return TaxStatus.TAXABLE;
+        }
+        return TaxStatus.EXEMPT;
+    }
+
+    private static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    private static int skipSpace(ByteBuffer buf, int from, int to) {
+        while (from < to && isSpace(buf.get(from))) from++;
+        return from;
+    }
+
+    private static int trimEnd(ByteBuffer buf, int from, int to) {
+        while (to > from && isSpace(buf.get(to - 1))) to--;
+        return to;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static String decode(ByteBuffer buf, int from, int to, byte[] scratch) {
+        int len = to - from;
+        byte[] bytes = len <= scratch.length ? scratch : new byte[len];
+        buf.get(from, bytes, 0, len);
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+}
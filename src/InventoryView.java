@@ -0,0 +1,186 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// A paged listing of the inventory: the products matching a filter, in one sort order, with
+// stock read from one version. Each page resumes after the last product of the previous one
+// in an index that is already kept in that order, so a page costs the products it visits,
+// not the size of the catalog:
+//   CATALOG  catalog ids, in file order
+//   NAME     ProductIndex name order; a name prefix is where the walk starts and ends
+//   PRICE    ProductIndex regular price order; so is a price range
+//   STOCK    ReorderMonitor stock order, lowest first; so is a stock range
+// The other filters are checked per product, so a filter that matches little visits more.
+public class InventoryView {
+
+    public enum Sort {
+        CATALOG, NAME, PRICE, STOCK
+    }
+
+    public static final class Filter {
+        private String prefix = "";
+        private TaxStatus taxStatus;
+        private int minStock = Integer.MIN_VALUE;
+        private int maxStock = Integer.MAX_VALUE;
+        private long minPriceCents = Long.MIN_VALUE;
+        private long maxPriceCents = Long.MAX_VALUE;
+
+        public Filter prefix(String prefix) {
+            this.prefix = ProductIndex.normalize(prefix);
+            return this;
+        }
+
+        public Filter taxStatus(TaxStatus taxStatus) {
+            this.taxStatus = taxStatus;
+            return this;
+        }
+
+        public Filter stock(int min, int max) {
+            this.minStock = min;
+            this.maxStock = max;
+            return this;
+        }
+
+        // regular price, inclusive
+        public Filter price(long minCents, long maxCents) {
+            this.minPriceCents = minCents;
+            this.maxPriceCents = maxCents;
+            return this;
+        }
+
+        // Parses terms like "red bull tax=taxable stock=0-10 price=1.00-4.50". Words without
+        // "=" make up the name prefix; either end of a range can be left out ("stock=-5"),
+        // and a single value matches only itself.
+        public static Filter parse(String text) {
+            Filter f = new Filter();
+            StringBuilder prefix = new StringBuilder();
+            for (String term : text.trim().split("\\s+")) {
+                if (term.isEmpty()) continue;
+                int eq = term.indexOf('=');
+                if (eq < 0) {
+                    if (prefix.length() > 0) prefix.append(' ');
+                    prefix.append(term);
+                    continue;
+                }
+                String key = term.substring(0, eq).toLowerCase(Locale.ROOT);
+                String value = term.substring(eq + 1);
+                String[] range = value.split("-", -1);
+                String lo = range[0];
+                String hi = range[range.length - 1];
+                try {
+                    if (range.length > 2) {
+                        throw new NumberFormatException();
+                    }
+                    switch (key) {
+                        case "name" -> prefix.append(value);
+                        case "tax" -> f.taxStatus(value.toLowerCase(Locale.ROOT).contains("exempt")
+                                ? TaxStatus.EXEMPT : TaxStatus.TAXABLE);
+                        case "stock" -> f.stock(lo.isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(lo),
+                                hi.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(hi));
+                        case "price" -> f.price(lo.isEmpty() ? Long.MIN_VALUE : Money.toCents(new BigDecimal(lo)),
+                                hi.isEmpty() ? Long.MAX_VALUE : Money.toCents(new BigDecimal(hi)));
+                        default -> throw new IllegalArgumentException("Unknown filter " + key);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid range " + value);
+                }
+            }
+            return f.prefix(prefix.toString());
+        }
+
+        boolean matches(Product p, int onHand) {
+            return (taxStatus == null || p.getTaxStatus() == taxStatus)
+                    && onHand >= minStock && onHand <= maxStock
+                    && p.getRegularCents() >= minPriceCents && p.getRegularCents() <= maxPriceCents
+                    && (prefix.isEmpty() || ProductIndex.normalize(p.getName()).startsWith(prefix));
+        }
+    }
+
+    private final StockSnapshot snap;
+    private final ProductIndex index;
+    private final ReorderMonitor stockOrder;
+    private final Filter filter;
+    private final Sort sort;
+    private final int pageSize;
+
+    // the last product shown, as the sort order keys it
+    private int lastId = -1;
+    private String lastName;
+    private long lastPrice;
+    private int lastStock;
+    private boolean more = true;
+
+    InventoryView(StockSnapshot snap, ProductIndex index, ReorderMonitor stockOrder, Filter filter, Sort sort, int pageSize) {
+        this.snap = snap;
+        this.index = index;
+        this.stockOrder = stockOrder;
+        this.filter = filter;
+        this.sort = sort;
+        this.pageSize = pageSize;
+    }
+
+    public StockSnapshot getSnapshot() {
+        return snap;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+
+    // The next page, empty once the listing is done. One product past the page is looked at
+    // to tell whether another page follows.
+    public List<Product> next() {
+        List<Product> page = new ArrayList<>(pageSize + 1);
+        if (!more) {
+            return page;
+        }
+        switch (sort) {
+            case CATALOG -> {
+                for (int id = lastId + 1; id < snap.size() && page.size() <= pageSize; id++) {
+                    take(id, page);
+                }
+            }
+            case NAME -> index.scanByName(lastName == null ? filter.prefix : lastName, lastName != null, filter.prefix,
+                    id -> take(id, page));
+            case PRICE -> index.scanByPrice(lastId < 0 ? filter.minPriceCents : lastPrice, lastId, filter.maxPriceCents,
+                    id -> take(id, page));
+            case STOCK -> stockOrder.scanByStock(lastId < 0 ? filter.minStock : lastStock, lastId, filter.maxStock, (id, onHand) -> {
+                if (!take(id, page)) {
+                    return false;
+                }
+                // the monitor's own count keys the cursor, even if it moved on since snap
+                if (page.size() <= pageSize && !page.isEmpty() && page.get(page.size() - 1).getId() == id) {
+                    lastStock = onHand;
+                }
+                return true;
+            });
+        }
+
+        more = page.size() > pageSize;
+        if (more) {
+            page.remove(pageSize);
+        }
+        if (!page.isEmpty()) {
+            Product last = page.get(page.size() - 1);
+            lastId = last.getId();
+            lastName = last.getName();
+            lastPrice = last.getRegularCents();
+        }
+        return page;
+    }
+
+    // adds the product if it is in this version and matches; false once the page is full
+    private boolean take(int id, List<Product> page) {
+        if (page.size() > pageSize) {
+            return false;
+        }
+        if (id < snap.size()) {
+            Product p = snap.product(id);
+            if (filter.matches(p, snap.onHand(id))) {
+                page.add(p);
+            }
+        }
+        return page.size() <= pageSize;
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+// Reloads the inventory through its journal when the inventory file changes on disk, so
+// price and stock updates dropped in by head office apply without a restart. Events are
+// left to settle for a moment first, since an editor or a copy touches the file several
+// times. The journal's own snapshot writes come back as events too; they match what the
+// inventory last wrote and reload nothing.
+public class InventoryWatcher implements AutoCloseable {
+
+    private static final long SETTLE_MILLIS = 200;
+
+    private final Path file;
+    private final InventoryJournal journal;
+    private final WatchService watcher;
+    private final Thread thread;
+
+    private InventoryWatcher(Path file, InventoryJournal journal) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.journal = journal;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        // renaming a new file into place shows up as a create
+        this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::run, "inventory-watcher");
+        thread.setDaemon(true);
+    }
+
+    public static InventoryWatcher start(Path inventoryPath, InventoryJournal journal) throws IOException {
+        InventoryWatcher w = new InventoryWatcher(inventoryPath, journal);
+        w.thread.start();
+        return w;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!touched(watcher.take())) {
+                    continue;
+                }
+                Thread.sleep(SETTLE_MILLIS);
+                WatchKey more;
+                while ((more = watcher.poll()) != null) {
+                    touched(more);
+                }
+                try {
+                    int changed = journal.reload();
+                    if (changed > 0) {
+                        System.err.println("Reloaded " + changed + " products from " + file.getFileName());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Could not reload " + file.getFileName() + ": " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private boolean touched(WatchKey key) {
+        boolean touched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                touched = true;
+            }
+        }
+        key.reset();
+        return touched;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
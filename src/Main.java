@@ -1,41 +1,186 @@
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Scanner;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletionException;
 
 public class Main {
+
+    private static final ReceiptTemplate INVENTORY_VIEW = ReceiptTemplate.compile(
+            "",
+            "ITEM                 STOCK  REGULAR    MEMBER     TAX     ",
+            "[row]{name:-20} {stock:-6} ${regular:-9} ${member:-9} {status:-8}");
+
+    private static final ReceiptTemplate CART_VIEW = ReceiptTemplate.compile(
+            "",
+            "ITEM                 QTY    UNIT       TOTAL     ",
+            "[row]{name:-20} {qty:-6} ${unit:-9} ${amount:-9}");
+
+    private static final ReceiptTemplate CART_TOTALS = ReceiptTemplate.compile(
+            "************************",
+            "SUB-TOTAL: ${subtotal}",
+            "[discount]PROMOTIONS: -${discount}",
+            "TAX: ${tax}",
+            "TOTAL: ${total}",
+            "[savings]YOU WILL SAVE: ${savings}!");
+
+    private static final ReceiptTemplate RETURN_VIEW = ReceiptTemplate.compile(
+            "",
+            "ITEM                 RETURNABLE  UNIT      ",
+            "[row]{name:-20} {qty:-11} ${unit:-9}");
+
+    // the register runs on one thread, so one buffer serves every screen
+    private static final ReceiptTemplate.Buffer CONSOLE = new ReceiptTemplate.Buffer();
+    // the buffer holds UTF-8; other consoles get it re-encoded through System.out
+    private static final boolean UTF8_CONSOLE = Charset.forName(
+            System.getProperty("sun.stdout.encoding", Charset.defaultCharset().name())).equals(StandardCharsets.UTF_8);
     private static final BigDecimal TAX_RATE = new BigDecimal("0.065");
-    private static final AtomicLong TX_COUNTER = new AtomicLong(1 + ReceiptPrinter.getLastTransactionNumber(Path.of("receipts")));
+    // rows per screen in the inventory and cart views
+    private static final int PAGE = 20;
 
     public static void main(String[] args) throws Exception {
         Locale.setDefault(Locale.US);
         
         if (args.length < 1) {
-            System.out.println("Usage: java Main <path/to/inventory.txt>");
+            System.out.println("Usage: java Main <path/to/inventory.txt | stores-dir> [--pricing <file>] [--metrics <file.json>] [--batch <file|-> [--lanes N] [--segments]]");
+            System.out.println("       java Main <path/to/inventory.txt> --serve <port> [--lanes N] [--segments]");
+            System.out.println("       java Main <stores-dir> [--stock <name> | --low-stock N]");
             return;
         }
         
+        Pricing pricing = Pricing.flat(TAX_RATE);
+        String pricingFile = option(args, "--pricing");
+        if (pricingFile != null) {
+            pricing = Pricing.load(Path.of(pricingFile), TAX_RATE);
+            for (String error : pricing.getLoadErrors()) {
+                System.out.println("Skipped malformed pricing line " + error);
+            }
+        }
+
+        String metrics = option(args, "--metrics");
+        if (metrics != null) {
+            Path metricsFile = Path.of(metrics);
+            Metrics.exportEvery(metricsFile, 5);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Metrics.writeTo(metricsFile);
+                } catch (IOException e) {
+                    System.err.println("Could not write metrics: " + e.getMessage());
+                }
+            }));
+        }
+
         Path inventoryPath = Path.of(args[0]);
+        if (Files.isDirectory(inventoryPath)) {
+            runStores(args, inventoryPath, pricing);
+            return;
+        }
+
         Inventory inventory = Inventory.load(inventoryPath);
-        Scanner sc = new Scanner(System.in);
+        for (String error : inventory.getLoadErrors()) {
+            System.out.println("Skipped malformed line " + error);
+        }
+
+        String batch = option(args, "--batch");
+        if (batch != null) {
+            boolean segments = Arrays.asList(args).contains("--segments");
+            try (CheckoutEngine engine = new CheckoutEngine(inventory, inventoryPath, Path.of("receipts"), pricing, segments);
+                 BufferedReader in = openBatch(batch)) {
+                new BatchRunner(engine, lanes(args)).run(in);
+            }
+            return;
+        }
+
+        String serve = option(args, "--serve");
+        if (serve != null) {
+            boolean segments = Arrays.asList(args).contains("--segments");
+            try (CheckoutEngine engine = new CheckoutEngine(inventory, inventoryPath, Path.of("receipts"), pricing, segments)) {
+                final CheckoutServer server = new CheckoutServer(engine, Integer.parseInt(serve), lanes(args));
+                try {
+                    // Ctrl-C stops the server, then waits for open carts to be released and receipts written
+                    Thread main = Thread.currentThread();
+                    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                        server.close();
+                        try {
+                            main.join();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }));
+                    System.out.println("Serving checkout on port " + server.getPort() + ". Press Ctrl-C to stop.");
+                    server.run();
+                } finally {
+                    server.close();
+                }
+            }
+            return;
+        }
+
+        try (CheckoutEngine engine = new CheckoutEngine(inventory, inventoryPath, Path.of("receipts"), pricing, false)) {
+            runRegister(new Scanner(System.in), engine);
+        }
+    }
+
+    // One process, many stores: each subdirectory of root with an inventory.txt is a store.
+    private static void runStores(String[] args, Path root, Pricing pricing) throws Exception {
+        boolean segments = Arrays.asList(args).contains("--segments");
+        try (StoreRegistry stores = StoreRegistry.open(root, pricing, segments)) {
+            for (StoreRegistry.Store store : stores.all()) {
+                for (String error : store.getInventory().getLoadErrors()) {
+                    System.out.println("Skipped malformed line " + store.getId() + "/" + error);
+                }
+            }
+
+            String stock = option(args, "--stock");
+            String lowStock = option(args, "--low-stock");
+            String batch = option(args, "--batch");
+            if (stock != null) {
+                stores.stockByStore(stock).forEach((id, qty) -> System.out.printf("%-20s %d%n", id, qty));
+                System.out.printf("%-20s %d%n", "TOTAL", stores.totalStock(stock));
+            } else if (lowStock != null) {
+                for (StoreRegistry.StockLevel level : stores.lowStock(Integer.parseInt(lowStock))) {
+                    System.out.printf("%-20s %-20s %d%n", level.getStore(), level.getProduct(), level.getQuantity());
+                }
+            } else if (batch != null) {
+                try (BufferedReader in = openBatch(batch)) {
+                    new BatchRunner(stores, lanes(args)).run(in);
+                }
+            } else {
+                Scanner sc = new Scanner(System.in);
+                runRegister(sc, chooseStore(sc, stores).getEngine());
+            }
+        }
+    }
+
+    private static void runRegister(Scanner sc, CheckoutEngine engine) {
+        Inventory inventory = engine.getInventory();
 
         System.out.println("\nGRAND OPENING OF JERRY'S QUICK MART!\n");
         
         while(true) {
             CustomerType customerType = chooseCustomerType(sc);
-            Cart cart = new Cart();
+            Cart cart = engine.newCart();
 
             boolean transactionActive = true;
             while (transactionActive) {
                 printMenu();
                 String op = sc.nextLine().trim();
                 switch (op) {
-                    case "1" -> listInventory(inventory);
+                    case "1" -> listInventory(sc, engine);
                     case "2" -> addToCart(sc, inventory, cart, customerType);
                     case "3" -> removeAdjustItem(sc, cart); 
                     case "4" -> {
@@ -65,7 +210,7 @@ public class Main {
                             break; 
                         }
                         else {
-                            viewCart(cart, customerType); 
+                            viewCart(sc, cart); 
                         }
                     }
                     case "6" -> {
@@ -73,15 +218,17 @@ public class Main {
                             System.out.println("\nCart is empty.\n"); 
                             break; 
                         }
-                        boolean ok = checkout(sc, cart, inventory, inventoryPath, customerType);
+                        boolean ok = checkout(sc, cart, engine, customerType);
                         if (ok){
                             transactionActive = false;
                         } 
                     }
                     case "7" -> { 
+                        engine.cancel(cart);
                         System.out.println("\nTransaction canceled. Returning to main menu.\n"); 
                         transactionActive = false; 
                     }
+                    case "8" -> returnItems(sc, engine);
                     default -> System.out.println("\nInvalid option. Please, try again.\n");
                 }
             }
@@ -95,9 +242,48 @@ public class Main {
         }
     }
 
+    private static int lanes(String[] args) {
+        return Integer.parseInt(Optional.ofNullable(option(args, "--lanes")).orElse("32"));
+    }
+
+    private static BufferedReader openBatch(String batch) throws IOException {
+        return batch.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Path.of(batch), StandardCharsets.UTF_8);
+    }
+
+    private static StoreRegistry.Store chooseStore(Scanner sc, StoreRegistry stores) {
+        List<StoreRegistry.Store> all = new ArrayList<>(stores.all());
+        while (true) {
+            System.out.println("\nStore:");
+            for (int i = 0; i < all.size(); i++) {
+                System.out.println(" " + (i + 1) + " - " + all.get(i).getId());
+            }
+            System.out.println();
+            String s = sc.nextLine().trim();
+            Optional<StoreRegistry.Store> byId = stores.get(s);
+            if (byId.isPresent()) {
+                return byId.get();
+            }
+            if (s.matches("\\d{1,4}") && Integer.parseInt(s) >= 1 && Integer.parseInt(s) <= all.size()) {
+                return all.get(Integer.parseInt(s) - 1);
+            }
+            System.out.println("\nInvalid option. Please, try again.\n");
+        }
+    }
+
+    private static String option(String[] args, String name) {
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
     private static CustomerType chooseCustomerType(Scanner sc) {
         while (true) {
-            System.out.println("\nCustomer Type:\n 1 - REGULAR\n 2 - MEMBER\n");
+            System.out.println("\nCustomer Type:\n 1 - REGULAR\n 2 - MEMBER\n 3 - EMPLOYEE\n");
             String s = sc.nextLine().trim();
             
             if ("1".equals(s)){
@@ -106,6 +292,9 @@ public class Main {
             if ("2".equals(s)){ 
                 return CustomerType.MEMBER;
             }
+            if ("3".equals(s)){
+                return CustomerType.EMPLOYEE;
+            }
             
             System.out.println("\nInvalid option. Please, try again.\n");
         }
@@ -120,26 +309,87 @@ public class Main {
         System.out.println("5 - View cart");
         System.out.println("6 - Checkout");
         System.out.println("7 - Cancel transaction");
+        System.out.println("8 - Return items");
         System.out.print("\nSelect an option: ");
     }
 
-    private static void listInventory(Inventory inventory) {
-        System.out.printf("\n%-20s %-6s %-10s %-10s %-8s%n", "ITEM", "STOCK", "REGULAR", "MEMBER", "TAX");
-        for (Product p : inventory.all()) {
-            System.out.printf(Locale.US, "%-20s %-6d $%-9.2f $%-9.2f %-8s%n", 
-            p.getName(), 
-            p.getQuantity(), 
-            p.getRegularPrice(), 
-            p.getMemberPrice(), 
-            p.getTaxStatus());
+    // One page at a time, from one consistent version however many lanes are selling
+    // meanwhile. Sorting or filtering starts the listing over.
+    private static void listInventory(Scanner sc, CheckoutEngine engine) {
+        InventoryView.Filter filter = new InventoryView.Filter();
+        InventoryView.Sort sort = InventoryView.Sort.CATALOG;
+        InventoryView view = engine.view(filter, sort, PAGE);
+        boolean nextPage = true;
+        while (true) {
+            if (nextPage) {
+                StockSnapshot snap = view.getSnapshot();
+                List<Product> page = view.next();
+                if (page.isEmpty()) {
+                    System.out.println("\nNo products match.");
+                } else {
+                    ReceiptTemplate.Buffer buf = CONSOLE.reset();
+                    INVENTORY_VIEW.render(new ReceiptTemplate.Values(), page, (p, v) -> v
+                            .set(ReceiptTemplate.Field.NAME, p.getName())
+                            .set(ReceiptTemplate.Field.STOCK, snap.onHand(p))
+                            .set(ReceiptTemplate.Field.REGULAR, p.getRegularCents())
+                            .set(ReceiptTemplate.Field.MEMBER, p.getMemberCents())
+                            .set(ReceiptTemplate.Field.STATUS, p.getTaxStatus().name()), ReceiptTemplate.Format.TEXT, buf);
+                    flush(buf);
+                }
+            }
+            System.out.print(view.hasMore()
+                    ? "\n[Enter] next page, s <catalog|name|price|stock> sort, f <filter> filter, q back: "
+                    : "\nEnd of list. s <catalog|name|price|stock> sort, f <filter> filter, [Enter] back: ");
+            String cmd = sc.nextLine().trim();
+            nextPage = true;
+            if (cmd.isEmpty() && view.hasMore()) {
+                continue;
+            }
+            if (cmd.isEmpty() || cmd.equalsIgnoreCase("q")) {
+                return;
+            }
+            try {
+                if (cmd.startsWith("s ")) {
+                    sort = InventoryView.Sort.valueOf(cmd.substring(2).trim().toUpperCase(Locale.ROOT));
+                } else if (cmd.startsWith("f")) {
+                    // "f" alone clears the filter
+                    filter = InventoryView.Filter.parse(cmd.substring(1));
+                } else {
+                    System.out.println("\nInvalid option. Please, try again.");
+                    nextPage = false;
+                    continue;
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("\nInvalid sort or filter. Filters look like: red tax=taxable stock=0-10 price=1.00-4.50");
+                nextPage = false;
+                continue;
+            }
+            view = engine.view(filter, sort, PAGE);
+        }
+    }
+
+    private static void flush(ReceiptTemplate.Buffer buf) {
+        if (UTF8_CONSOLE) {
+            try {
+                buf.writeTo(System.out);
+            } catch (IOException e) {
+                // System.out never throws; it sets its error flag instead
+            }
+        } else {
+            System.out.print(buf);
         }
+        System.out.flush();
     }
 
     private static void addToCart(Scanner sc, Inventory inventory, Cart cart, CustomerType type) {
         System.out.print("\nProduct name: ");
         String name = sc.nextLine().trim();
         Optional<Product> opt = inventory.find(name);
-        if (opt.isEmpty()) { System.out.println("Not found in inventory"); return; }
+        if (opt.isEmpty()) { 
+            System.out.println("Not found in inventory");
+            suggest(inventory, name);
+            return; 
+        }
         Product p = opt.get();
         System.out.print("Quantity: ");
         int qty;
@@ -153,14 +403,28 @@ public class Main {
             System.out.println("\nQuantity must be greater than 0."); 
             return; 
         }
-        if (qty > p.getQuantity()) { 
+        if (!cart.addItem(p, qty, type)) { 
             System.out.println("\nInsufficient stock. Available: " + p.getQuantity()); 
             return; 
         }
-        cart.addItem(p, qty, type);
         System.out.println("\nAdded: " + p.getName() + " x" + qty + " at $" + p.getPriceFor(type));
     }
     
+    private static void suggest(Inventory inventory, String name) {
+        if (name.isEmpty()) {
+            return;
+        }
+        List<Product> matches = new ArrayList<>(inventory.findByPrefix(name, 3));
+        if (matches.isEmpty()) {
+            matches.addAll(inventory.findFuzzy(name, 3));
+        }
+        if (!matches.isEmpty()) {
+            StringJoiner names = new StringJoiner(", ");
+            matches.forEach(p -> names.add(p.getName()));
+            System.out.println("Did you mean: " + names + "?");
+        }
+    }
+    
     private static void removeAdjustItem(Scanner sc, Cart cart) {
         if (cart.isEmpty()) {
             System.out.println("\nCart is empty.\n");
@@ -179,9 +443,7 @@ public class Main {
                 return;
             }
 
-            itemInCart = cart.items().stream()
-                    .filter(item -> item.getName().equalsIgnoreCase(finalName))
-                    .findFirst();
+            itemInCart = cart.getItem(finalName);
 
             if (itemInCart.isPresent()) {
                 name = finalName;
@@ -212,7 +474,7 @@ public class Main {
                         cart.removeItem(name);
                         System.out.println("\nAll units of " + name + " removed from cart.");
                     } else {
-                        itemInCart.get().setQuantity(currentQty - qtyToRemove);
+                        cart.reduceItem(name, qtyToRemove);
                         System.out.println(qtyToRemove + " units of " + name + " removed. New quantity is " + itemInCart.get().getQuantity() + ".");
                     }
                 }
@@ -222,30 +484,99 @@ public class Main {
         }
     }
 
-    private static void viewCart(Cart cart, CustomerType type) {
-        System.out.printf("\n%-20s %-6s %-10s %-10s%n", "ITEM", "QTY", "UNIT", "TOTAL");
-        for (CartItem it : cart.items()) {
-            System.out.printf(Locale.US, "%-20s %-6d $%-9.2f $%-9.2f%n", 
-                it.getName(), 
-                it.getQuantity(), 
-                it.getUnitPrice(), 
-                it.getLineTotal());
-        }
-        System.out.println("************************");
-        System.out.printf(Locale.US, "SUB-TOTAL: $%.2f%n", cart.getSubtotal());
-        System.out.printf(Locale.US, "TAX: $%.2f%n", cart.getTax(TAX_RATE));
-        System.out.printf(Locale.US, "TOTAL: $%.2f%n", cart.getTotal(TAX_RATE));
-
-        BigDecimal savings = cart.getSavings(type);
-        if (savings.compareTo(BigDecimal.ZERO) > 0) {
-            System.out.printf(Locale.US, "YOU WILL SAVE: $%.2f!%n", savings);
+    // Lines a page at a time from an iterator over the cart, then the totals.
+    private static void viewCart(Scanner sc, Cart cart) {
+        Iterator<CartItem> lines = cart.items().iterator();
+        List<CartItem> page = new ArrayList<>(PAGE);
+        while (lines.hasNext()) {
+            page.clear();
+            while (lines.hasNext() && page.size() < PAGE) {
+                page.add(lines.next());
+            }
+            ReceiptTemplate.Buffer buf = CONSOLE.reset();
+            CART_VIEW.render(new ReceiptTemplate.Values(), page, ReceiptPrinter.LINES, ReceiptTemplate.Format.TEXT, buf);
+            flush(buf);
+            if (lines.hasNext()) {
+                System.out.print("\n[Enter] more lines, q skip to totals: ");
+                if (sc.nextLine().trim().equalsIgnoreCase("q")) {
+                    break;
+                }
+            }
         }
+
+        ReceiptTemplate.Values totals = new ReceiptTemplate.Values()
+                .set(ReceiptTemplate.Field.SUBTOTAL, cart.getSubtotalCents())
+                .set(ReceiptTemplate.Field.DISCOUNT, cart.getDiscountCents())
+                .set(ReceiptTemplate.Field.TAX, cart.getTaxCents())
+                .set(ReceiptTemplate.Field.TOTAL, cart.getTotalCents())
+                .set(ReceiptTemplate.Field.SAVINGS, cart.getSavingsCents());
+        ReceiptTemplate.Buffer buf = CONSOLE.reset();
+        CART_TOTALS.render(totals, List.<CartItem>of(), ReceiptPrinter.LINES, ReceiptTemplate.Format.TEXT, buf);
+        flush(buf);
     }
     
-    
-    private static boolean checkout(Scanner sc, Cart cart, Inventory inventory, Path inventoryPath, CustomerType type) {
-        viewCart(cart, type); 
-        BigDecimal total = cart.getTotal(TAX_RATE);
+    private static void returnItems(Scanner sc, CheckoutEngine engine) {
+        System.out.print("\nTransaction number: ");
+        long tx;
+        try {
+            tx = Long.parseLong(sc.nextLine().trim());
+        } catch (NumberFormatException e) {
+            System.out.println("\nInvalid transaction number.");
+            return;
+        }
+
+        try {
+            Optional<SalesLog.Sale> sale = engine.findSale(tx);
+            if (sale.isEmpty() || sale.get().isRefund()) {
+                System.out.println("\nNo sale found with that transaction number.");
+                return;
+            }
+            Map<String, Integer> left = engine.returnable(sale.get());
+            if (left.isEmpty()) {
+                System.out.println("\nEverything from that sale has already been returned.");
+                return;
+            }
+            List<SalesLog.Line> rows = new ArrayList<>();
+            for (SalesLog.Line l : sale.get().getLines()) {
+                if (left.containsKey(l.getProduct())) {
+                    rows.add(new SalesLog.Line(l.getProduct(), left.get(l.getProduct()), l.getUnitPriceCents(), 0, 0, l.isTaxable()));
+                }
+            }
+            ReceiptTemplate.Buffer buf = CONSOLE.reset();
+            RETURN_VIEW.render(new ReceiptTemplate.Values(), rows, ReceiptPrinter.RETURNED, ReceiptTemplate.Format.TEXT, buf);
+            flush(buf);
+
+            System.out.print("\nItem to return (or 'all'): ");
+            String name = sc.nextLine().trim();
+            Map<String, Integer> quantities = new HashMap<>();
+            if (!name.equalsIgnoreCase("all")) {
+                System.out.print("Quantity: ");
+                int qty;
+                try {
+                    qty = Integer.parseInt(sc.nextLine().trim());
+                } catch (NumberFormatException e) {
+                    System.out.println("\nInvalid quantity.");
+                    return;
+                }
+                quantities.put(name, qty);
+            }
+
+            Refund refund = engine.refund(tx, quantities);
+            System.out.printf("\nRefund: $%.2f%n", refund.getTotal());
+            System.out.println("\nReceipt created: " + refund.getReceipt().join().toAbsolutePath());
+        } catch (IllegalArgumentException e) {
+            System.out.println("\n" + e.getMessage() + ".");
+        } catch (IOException e) {
+            System.out.println("\nError recording the refund " + e.getMessage());
+        } catch (CompletionException e) {
+            System.out.println("\nRefund recorded, but the receipt could not be written yet: " + e.getCause().getMessage());
+        }
+    }
+
+    private static boolean checkout(Scanner sc, Cart cart, CheckoutEngine engine, CustomerType type) {
+        cart.reprice();
+        viewCart(sc, cart); 
+        BigDecimal total = cart.getTotal();
 
         BigDecimal cash;
         while (true) {
@@ -262,23 +593,22 @@ public class Main {
             }
         }
 
-        BigDecimal change = cash.subtract(total);
-        System.out.printf("\nChange: $%.2f%n", change);
-
-        for (CartItem it : cart.items()) {
-            inventory.find(it.getName()).ifPresent(p -> p.setQuantity(p.getQuantity() - it.getQuantity()));
-        }
-
         try {
-            inventory.save(inventoryPath);
-            long tx = TX_COUNTER.getAndIncrement();
-            var when = LocalDateTime.now();
-            var receipt = ReceiptPrinter.print(tx, when, cart, TAX_RATE, cash.setScale(2, RoundingMode.HALF_UP), Path.of("receipts"), type);
-            System.out.println("\nReceipt created: " + receipt.toAbsolutePath());
+            var done = engine.checkout(cart, cash, type);
+            // a promotion may have ended while the cash was counted; checkout priced it again
+            System.out.printf("\nChange: $%.2f%n", cash.subtract(cart.getTotal()));
+            System.out.println("\nReceipt created: " + done.join().toAbsolutePath());
             return true;
+        } catch (IllegalArgumentException e) {
+            System.out.println("\n" + e.getMessage() + ". The total is now $" + cart.getTotal() + ".");
+            return false;
         } catch (IOException e) {
             System.out.println("\nError saving receipt or inventory " + e.getMessage());
             return false;
+        } catch (CompletionException e) {
+            // the sale is journaled with its receipt, which is retried in the background
+            System.out.println("\nSale recorded, but the receipt could not be written yet: " + e.getCause().getMessage());
+            return true;
         }
     }
 }
\ No newline at end of file
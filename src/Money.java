@@ -0,0 +1,34 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+// Fixed-point money helpers over primitive long cents.
+// Rates are scaled by RATE_SCALE (0.065 -> 65_000) and results round HALF_UP like BigDecimal.setScale(2, HALF_UP).
+public final class Money {
+
+    public static final long RATE_SCALE = 1_000_000;
+
+    private Money() {
+    }
+
+    public static long toCents(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    public static BigDecimal toBigDecimal(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    public static long toRate(BigDecimal rate) {
+        return rate.multiply(BigDecimal.valueOf(RATE_SCALE)).setScale(0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    public static long times(long cents, int qty) {
+        return Math.multiplyExact(cents, (long) qty);
+    }
+
+    public static long applyRate(long cents, long rate) {
+        long scaled = Math.multiplyExact(cents, rate);
+        long half = RATE_SCALE / 2;
+        return scaled >= 0 ? (scaled + half) / RATE_SCALE : -((-scaled + half) / RATE_SCALE);
+    }
+}
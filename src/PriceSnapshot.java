@@ -0,0 +1,33 @@
+// A product's prices and tax status as of one catalog update. Immutable: the catalog hands
+// the same snapshot to every cart line that adds the product until its price changes, then
+// starts a new one, so a line holds one shared reference instead of copying fields, and
+// what it charges and what it reports as saved come from the same prices. The name is not
+// in it; names never change and stay in the catalog's byte pool.
+public final class PriceSnapshot {
+
+    private final long regularCents;
+    private final long memberCents;
+    private final TaxStatus taxStatus;
+
+    PriceSnapshot(long regularCents, long memberCents, TaxStatus taxStatus) {
+        this.regularCents = regularCents;
+        this.memberCents = memberCents;
+        this.taxStatus = taxStatus;
+    }
+
+    public long getRegularCents() {
+        return regularCents;
+    }
+
+    public long getMemberCents() {
+        return memberCents;
+    }
+
+    public TaxStatus getTaxStatus() {
+        return taxStatus;
+    }
+
+    public long getCentsFor(CustomerType type) {
+        return type == CustomerType.REGULAR ? regularCents : memberCents;
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.*;
+
+// Promotions compiled for evaluation, plus the tax table. Rules are grouped by product
+// and customer type when they are loaded, so a cart line resolves its candidate rules
+// once, when it is created, and re-pricing a line after a change only walks those.
+// Rules do not stack: a line gets the single largest discount among its active rules.
+public class Pricing {
+
+    private static final Promotion[] NO_RULES = new Promotion[0];
+
+    private final Map<String, Promotion[][]> byProduct;
+    private final Promotion[][] storeWide;
+    private final TaxTable taxes;
+    private final Clock clock;
+    private final int ruleCount;
+    // some rule starts or ends at a set time, so a discount can change while a cart is open
+    private final boolean timed;
+    private final List<String> loadErrors;
+
+    private Pricing(Map<String, Promotion[][]> byProduct, Promotion[][] storeWide, TaxTable taxes, Clock clock, int ruleCount, boolean timed, List<String> loadErrors) {
+        this.byProduct = byProduct;
+        this.storeWide = storeWide;
+        this.taxes = taxes;
+        this.clock = clock;
+        this.ruleCount = ruleCount;
+        this.timed = timed;
+        this.loadErrors = loadErrors;
+    }
+
+    public static Pricing flat(BigDecimal taxRate) {
+        return compile(List.of(), TaxTable.flat(taxRate), Clock.systemDefaultZone());
+    }
+
+    public static Pricing compile(Collection<Promotion> rules, TaxTable taxes, Clock clock) {
+        return compile(rules, taxes, clock, List.of());
+    }
+
+    private static Pricing compile(Collection<Promotion> rules, TaxTable taxes, Clock clock, List<String> errors) {
+        CustomerType[] types = CustomerType.values();
+        Map<String, List<List<Promotion>>> grouped = new HashMap<>();
+        List<List<Promotion>> wide = perType(types.length);
+        boolean timed = false;
+        for (Promotion rule : rules) {
+            timed |= rule.isTimed();
+            List<List<Promotion>> slots = rule.getTarget() == null
+                    ? wide
+                    : grouped.computeIfAbsent(rule.getTarget(), k -> perType(types.length));
+            for (CustomerType t : types) {
+                if (rule.appliesTo(t)) slots.get(t.ordinal()).add(rule);
+            }
+        }
+
+        Map<String, Promotion[][]> byProduct = new HashMap<>(grouped.size() * 2);
+        for (Map.Entry<String, List<List<Promotion>>> e : grouped.entrySet()) {
+            byProduct.put(e.getKey(), toArrays(e.getValue()));
+        }
+        return new Pricing(byProduct, toArrays(wide), taxes, clock, rules.size(), timed, errors);
+    }
+
+    private static List<List<Promotion>> perType(int n) {
+        List<List<Promotion>> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) out.add(new ArrayList<>(2));
+        return out;
+    }
+
+    private static Promotion[][] toArrays(List<List<Promotion>> lists) {
+        Promotion[][] out = new Promotion[lists.size()][];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = lists.get(i).isEmpty() ? NO_RULES : lists.get(i).toArray(NO_RULES);
+        }
+        return out;
+    }
+
+    // Reads a pricing file with one entry per line:
+    //   PERCENT|Product or *|10|TIERS|from|until
+    //   MULTIBUY|Product|3 for 5.00|TIERS|from|until
+    //   BUYGET|Product|2+1|TIERS|from|until
+    //   TAX|category|0.02          (TAX|default|rate replaces the default rate)
+    //   CATEGORY|category|Product,Product
+    // Malformed lines are skipped and reported through getLoadErrors().
+    public static Pricing load(Path path, BigDecimal defaultRate) throws IOException {
+        List<Promotion> rules = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        List<String[]> assignments = new ArrayList<>();
+        List<Integer> assignmentLines = new ArrayList<>();
+        TaxTable.Builder taxes = new TaxTable.Builder(defaultRate);
+
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int n = 0;
+            while ((line = in.readLine()) != null) {
+                n++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] f = line.split("\\|", -1);
+                try {
+                    String kind = f[0].trim().toUpperCase(Locale.ROOT);
+                    if (kind.equals("TAX") && f.length == 3) {
+                        taxes.rate(f[1].trim(), new BigDecimal(f[2].trim()));
+                    } else if (kind.equals("CATEGORY") && f.length == 3) {
+                        assignments.add(f);
+                        assignmentLines.add(n);
+                    } else {
+                        rules.add(Promotion.parse(f));
+                    }
+                } catch (IllegalArgumentException | DateTimeException e) {
+                    errors.add(path.getFileName() + ":" + n + ": " + describe(e));
+                }
+            }
+        }
+
+        // categories can be assigned before or after their TAX line
+        for (int i = 0; i < assignments.size(); i++) {
+            String[] f = assignments.get(i);
+            try {
+                for (String name : f[2].split(",")) {
+                    if (!name.isBlank()) taxes.assign(name.trim(), f[1].trim());
+                }
+            } catch (IllegalArgumentException e) {
+                errors.add(path.getFileName() + ":" + assignmentLines.get(i) + ": " + describe(e));
+            }
+        }
+        return compile(rules, taxes.build(), Clock.systemDefaultZone(), errors);
+    }
+
+    private static String describe(Exception e) {
+        if (e instanceof NumberFormatException) {
+            return "invalid number";
+        }
+        if (e instanceof DateTimeException) {
+            return "invalid date-time, expected e.g. 2025-09-01T08:00";
+        }
+        return e.getMessage();
+    }
+
+    // Candidate rules for one product and customer type; resolved once per cart line.
+    public Promotion[] rulesFor(Product p, CustomerType type) {
+        Promotion[] wide = storeWide[type.ordinal()];
+        Promotion[][] own = byProduct.isEmpty() ? null : byProduct.get(ProductIndex.normalize(p.getName()));
+        if (own == null || own[type.ordinal()].length == 0) {
+            return wide;
+        }
+        Promotion[] mine = own[type.ordinal()];
+        if (wide.length == 0) {
+            return mine;
+        }
+        Promotion[] all = Arrays.copyOf(mine, mine.length + wide.length);
+        System.arraycopy(wide, 0, all, mine.length, wide.length);
+        return all;
+    }
+
+    // Largest discount among the active rules for a line of qty units at unitCents each.
+    public long discount(Promotion[] rules, long unitCents, int qty) {
+        if (rules.length == 0 || qty <= 0) {
+            return 0;
+        }
+        LocalDateTime now = LocalDateTime.now(clock);
+        long best = 0;
+        for (Promotion rule : rules) {
+            if (rule.isActive(now)) {
+                best = Math.max(best, rule.discount(unitCents, qty));
+            }
+        }
+        return Math.min(best, Money.times(unitCents, qty));
+    }
+
+    public boolean isTimed() {
+        return timed;
+    }
+
+    public TaxTable getTaxes() {
+        return taxes;
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public List<String> getLoadErrors() {
+        return loadErrors;
+    }
+}
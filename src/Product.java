@@ -1,51 +1,114 @@
 import java.math.BigDecimal;
 
+// A view of one product in a Catalog. It holds only the catalog and the product's id;
+// name, prices and stock are read from the catalog's columns.
 public class Product {
 
-    private final String name;
-    private int quantity;
-    private final BigDecimal regularPrice;
-    private final BigDecimal memberPrice;
-    private final TaxStatus taxStatus;
+    private final Catalog catalog;
+    private final int id;
 
+    // a product outside any inventory, kept in a catalog of its own
     public Product(String name, int quantity, BigDecimal regularPrice, BigDecimal memberPrice, TaxStatus taxStatus){
-        this.name = name;
-        this.quantity = quantity;
-        this.regularPrice = regularPrice;
-        this.memberPrice = memberPrice;
-        this.taxStatus = taxStatus; 
+        this.catalog = new Catalog();
+        this.id = catalog.add(name, quantity, Money.toCents(regularPrice), Money.toCents(memberPrice), taxStatus);
+    }
+
+    Product(Catalog catalog, int id){
+        this.catalog = catalog;
+        this.id = id;
+    }
+
+    Catalog getCatalog(){
+        return catalog;
+    }
+
+    public int getId(){
+        return id;
     }
 
     public String getName(){
-        return name;
+        return catalog.name(id);
     }
 
     public int getQuantity(){
-        return quantity;
+        return catalog.available(id);
     }
 
     public void setQuantity(int quantity){
-        this.quantity = quantity;
+        adjustStock(quantity - getOnHand());
+    }
+
+    public void adjustStock(int delta){
+        catalog.adjustStock(id, delta);
+    }
+
+    public int getReserved(){
+        return catalog.onHand(id) - catalog.available(id);
+    }
+
+    // onHand only drops when a sale commits; available also excludes units held by open carts
+    public int getOnHand(){
+        return catalog.onHand(id);
+    }
+
+    public boolean reserve(int qty){
+        return catalog.reserve(id, qty);
+    }
+
+    public void release(int qty){
+        catalog.release(id, qty);
+    }
+
+    public void commit(int qty){
+        catalog.commit(id, qty);
     }
 
     public BigDecimal getRegularPrice(){
-        return regularPrice;
+        return Money.toBigDecimal(catalog.regularCents(id));
     }
 
     public BigDecimal getMemberPrice(){
-        return memberPrice;
+        return Money.toBigDecimal(catalog.memberCents(id));
+    }
+
+    public long getRegularCents(){
+        return catalog.regularCents(id);
+    }
+
+    public long getMemberCents(){
+        return catalog.memberCents(id);
     }
 
     public TaxStatus getTaxStatus(){
-        return taxStatus;
+        return catalog.taxStatus(id);
     }
 
+    // employees pay the member price; their extra discounts come from promotions
     public BigDecimal getPriceFor(CustomerType customerType){
-        if(customerType == CustomerType.MEMBER){
-            return memberPrice;
+        return Money.toBigDecimal(getPriceCentsFor(customerType));
+    }
+
+    // name, prices and tax status together, shared with every cart that adds this product
+    public PriceSnapshot getPrices(){
+        return catalog.prices(id);
+    }
+
+    public long getPriceCentsFor(CustomerType customerType){
+        if(customerType == CustomerType.REGULAR){
+            return catalog.regularCents(id);
         } else {
-            return regularPrice;
+            return catalog.memberCents(id);
         }
     }
-    
+
+    @Override
+    public boolean equals(Object o){
+        return o instanceof Product && ((Product) o).catalog == catalog && ((Product) o).id == id;
+    }
+
+    @Override
+    public int hashCode(){
+        return System.identityHashCode(catalog) * 31 + id;
+    }
+
 }
@@ -0,0 +1,500 @@
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntPredicate;
+
+// Search index over product names: catalog ids sorted by name for prefix lookups and
+// trigram postings for typo-tolerant lookups ranked by edit distance. Names are read
+// from the Catalog, so the index holds no strings of its own. Ids are also kept sorted by
+// regular price, so paged listings can walk either order from a cursor.
+public class ProductIndex {
+
+    // trigrams shared by more products than this are too common to narrow a fuzzy search
+    private static final int COMMON_TRIGRAM = 50_000;
+    private static final int MAX_CANDIDATES = 256;
+
+    private final Catalog catalog;
+    // ids in name order
+    private int[] sorted = new int[16];
+    private int size;
+    // the same ids by regular price, then id, and the price each was placed under
+    private int[] byPrice = new int[16];
+    private long[] pricedAt = new long[16];
+    private int priced;
+    // ids below this are indexed; removed ones stay in the postings and are skipped
+    private int indexed;
+    private final BitSet removed = new BitSet();
+
+    // open-addressing map from packed trigram to its postings list
+    private long[] gramKeys = new long[1024];
+    private int[][] gramIds = new int[1024][];
+    private int[] gramSizes = new int[1024];
+    private int grams;
+
+    // scratch for fuzzy scoring, reused under the index lock
+    private int[] counts = new int[16];
+    private int[] touched = new int[64];
+
+    private final CountDownLatch built = new CountDownLatch(1);
+
+    private static final class Match {
+        final Product product;
+        final int distance;
+        final int shared;
+
+        Match(Product product, int distance, int shared) {
+            this.product = product;
+            this.distance = distance;
+            this.shared = shared;
+        }
+    }
+
+    static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public ProductIndex(Catalog catalog) {
+        this.catalog = catalog;
+        built.countDown();
+    }
+
+    private ProductIndex(Catalog catalog, boolean pending) {
+        this.catalog = catalog;
+    }
+
+    // Indexes a freshly loaded catalog off the calling thread; lookups wait until it is done.
+    public static ProductIndex buildAsync(Catalog catalog) {
+        ProductIndex index = new ProductIndex(catalog, true);
+        int n = catalog.size();
+        Thread t = new Thread(() -> {
+            try {
+                synchronized (index) {
+                    index.build(n);
+                }
+            } finally {
+                index.built.countDown();
+            }
+        }, "product-index");
+        t.setDaemon(true);
+        t.start();
+        return index;
+    }
+
+    private void build(int n) {
+        String[] keys = new String[n];
+        Integer[] order = new Integer[n];
+        for (int id = 0; id < n; id++) {
+            keys[id] = normalize(catalog.name(id));
+            order[id] = id;
+        }
+        Arrays.sort(order, Comparator.comparing(id -> keys[id]));
+        sorted = new int[Math.max(16, n)];
+        for (int i = 0; i < n; i++) sorted[i] = order[i];
+        size = n;
+        pricedAt = new long[Math.max(16, n)];
+        for (int id = 0; id < n; id++) pricedAt[id] = catalog.regularCents(id);
+        Arrays.sort(order, (a, b) -> pricedAt[a] != pricedAt[b] ? Long.compare(pricedAt[a], pricedAt[b]) : Integer.compare(a, b));
+        byPrice = new int[Math.max(16, n)];
+        for (int i = 0; i < n; i++) byPrice[i] = order[i];
+        priced = n;
+        counts = new int[Math.max(16, n)];
+        for (int id = 0; id < n; id++) {
+            for (long t : trigramsOf(keys[id])) {
+                addPosting(t, id);
+            }
+        }
+        indexed = n;
+    }
+
+    private void awaitBuilt() {
+        try {
+            built.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Indexes catalog ids up to and including id. An id that is already indexed keeps its
+    // postings: replacing a product in the catalog never changes its name beyond case. It
+    // moves in price order if its price changed.
+    public void add(int id) {
+        addAll(new int[] { id });
+    }
+
+    // The same for a batch of ids. The ids to place are sorted among themselves and merged
+    // into the name and price orders in one pass each, so adding k products to an index of
+    // n costs O(n + k log n) rather than a shift of both orders per product.
+    public void addAll(int[] ids) {
+        if (ids.length == 0) {
+            return;
+        }
+        awaitBuilt();
+        synchronized (this) {
+            int top = -1;
+            // ids to place in name order, and in price order
+            List<Integer> named = new ArrayList<>();
+            List<Integer> moved = new ArrayList<>();
+            BitSet repriced = new BitSet();
+            BitSet seen = new BitSet();
+            for (int id : ids) {
+                top = Math.max(top, id);
+                if (id >= indexed || seen.get(id)) {
+                    continue;
+                }
+                seen.set(id);
+                if (removed.get(id)) {
+                    removed.clear(id);
+                    named.add(id);
+                    moved.add(id);
+                } else if (pricedAt[id] != catalog.regularCents(id)) {
+                    repriced.set(id);
+                    moved.add(id);
+                }
+            }
+            if (!repriced.isEmpty()) {
+                int kept = 0;
+                for (int i = 0; i < priced; i++) {
+                    if (!repriced.get(byPrice[i])) byPrice[kept++] = byPrice[i];
+                }
+                priced = kept;
+            }
+            if (top >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(top + 1, counts.length * 2));
+            }
+            int fresh = named.size();
+            for (; indexed <= top; indexed++) {
+                named.add(indexed);
+                moved.add(indexed);
+            }
+            String[] keys = new String[named.size()];
+            for (int j = 0; j < keys.length; j++) {
+                keys[j] = normalize(catalog.name(named.get(j)));
+                if (j >= fresh) {
+                    for (long t : trigramsOf(keys[j])) {
+                        addPosting(t, named.get(j));
+                    }
+                }
+            }
+            mergeSorted(named, keys);
+            mergePriced(moved);
+        }
+    }
+
+    // Merges ids into the name order. Ids already in place are compared by the catalog from
+    // their name bytes, so finding where each goes decodes nothing.
+    private void mergeSorted(List<Integer> ids, String[] keys) {
+        int k = ids.size();
+        if (k == 0) {
+            return;
+        }
+        Integer[] order = new Integer[k];
+        for (int j = 0; j < k; j++) order[j] = j;
+        Arrays.sort(order, Comparator.comparing(j -> keys[j]));
+        int[] at = new int[k];
+        for (int j = 0; j < k; j++) {
+            at[j] = lowerBound(keys[order[j]]);
+        }
+        if (size + k > sorted.length) {
+            sorted = Arrays.copyOf(sorted, Math.max(size + k, sorted.length * 2));
+        }
+        // from the back, so every id moves once, a run at a time
+        int from = size - 1;
+        int to = size + k - 1;
+        for (int j = k - 1; j >= 0; j--) {
+            int n = from - at[j] + 1;
+            System.arraycopy(sorted, at[j], sorted, to - n + 1, n);
+            from -= n;
+            to -= n;
+            sorted[to--] = ids.get(order[j]);
+        }
+        size += k;
+    }
+
+    // Merges ids into the price order at their current regular prices.
+    private void mergePriced(List<Integer> ids) {
+        int k = ids.size();
+        if (k == 0) {
+            return;
+        }
+        int top = Collections.max(ids);
+        if (top >= pricedAt.length) {
+            pricedAt = Arrays.copyOf(pricedAt, Math.max(top + 1, pricedAt.length * 2));
+        }
+        long[] prices = new long[k];
+        Integer[] order = new Integer[k];
+        for (int j = 0; j < k; j++) {
+            prices[j] = catalog.regularCents(ids.get(j));
+            order[j] = j;
+        }
+        Arrays.sort(order, (a, b) -> prices[a] != prices[b] ? Long.compare(prices[a], prices[b]) : Integer.compare(ids.get(a), ids.get(b)));
+        // positions are found among the ids already placed, before any batch price is set
+        int[] at = new int[k];
+        for (int j = 0; j < k; j++) {
+            at[j] = priceBound(prices[order[j]], ids.get(order[j]));
+        }
+        for (int j = 0; j < k; j++) {
+            pricedAt[ids.get(j)] = prices[j];
+        }
+        if (priced + k > byPrice.length) {
+            byPrice = Arrays.copyOf(byPrice, Math.max(priced + k, byPrice.length * 2));
+        }
+        int from = priced - 1;
+        int to = priced + k - 1;
+        for (int j = k - 1; j >= 0; j--) {
+            int n = from - at[j] + 1;
+            System.arraycopy(byPrice, at[j], byPrice, to - n + 1, n);
+            from -= n;
+            to -= n;
+            byPrice[to--] = ids.get(order[j]);
+        }
+        priced += k;
+    }
+
+    private void deletePriced(int id) {
+        int at = priceBound(pricedAt[id], id);
+        System.arraycopy(byPrice, at + 1, byPrice, at, priced - at - 1);
+        priced--;
+    }
+
+    // first position in byPrice not below (price, id)
+    private int priceBound(long price, int id) {
+        int lo = 0;
+        int hi = priced;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int other = byPrice[mid];
+            long p = pricedAt[other];
+            if (p < price || (p == price && other < id)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // first position in sorted whose name is not below key
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (catalog.compareName(sorted[mid], key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public void remove(String name) {
+        awaitBuilt();
+        synchronized (this) {
+            delete(name);
+        }
+    }
+
+    private void delete(String name) {
+        int id = catalog.find(name.trim());
+        if (id < 0 || id >= indexed || removed.get(id)) {
+            return;
+        }
+        removed.set(id);
+        int at = lowerBound(normalize(catalog.name(id)));
+        while (at < size && sorted[at] != id) at++;
+        if (at < size) {
+            System.arraycopy(sorted, at + 1, sorted, at, size - at - 1);
+            size--;
+        }
+        deletePriced(id);
+    }
+
+    public List<Product> findByPrefix(String prefix, int limit) {
+        awaitBuilt();
+        String key = normalize(prefix);
+        List<Product> out = new ArrayList<>(Math.min(limit, 64));
+        synchronized (this) {
+            for (int i = lowerBound(key); i < size && out.size() < limit; i++) {
+                if (!catalog.nameStartsWith(sorted[i], key)) break;
+                out.add(catalog.product(sorted[i]));
+            }
+        }
+        return out;
+    }
+
+    // Visits ids in name order, from the first name not below from (or after it), while
+    // names start with prefix and visit returns true.
+    public void scanByName(String from, boolean after, String prefix, IntPredicate visit) {
+        awaitBuilt();
+        String key = normalize(from);
+        String start = normalize(prefix);
+        synchronized (this) {
+            for (int i = lowerBound(key); i < size; i++) {
+                if (after && catalog.compareName(sorted[i], key) == 0) continue;
+                if (!catalog.nameStartsWith(sorted[i], start) || !visit.test(sorted[i])) return;
+            }
+        }
+    }
+
+    // Visits ids by regular price, then id, from the first after (from, afterId) up to a price
+    // of to, while visit returns true. afterId -1 starts at the first product priced from.
+    public void scanByPrice(long from, int afterId, long to, IntPredicate visit) {
+        awaitBuilt();
+        synchronized (this) {
+            for (int i = priceBound(from, afterId + 1); i < priced; i++) {
+                if (pricedAt[byPrice[i]] > to || !visit.test(byPrice[i])) return;
+            }
+        }
+    }
+
+    // Products whose names are closest to the query, best match first.
+    public List<Product> findFuzzy(String query, int limit) {
+        awaitBuilt();
+        synchronized (this) {
+            return fuzzy(normalize(query), limit);
+        }
+    }
+
+    private List<Product> fuzzy(String key, int limit) {
+        if (key.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+
+        // count shared trigrams per candidate, rarest trigrams first
+        long[] qgrams = trigramsOf(key);
+        Integer[] order = new Integer[qgrams.length];
+        int[] slots = new int[qgrams.length];
+        for (int i = 0; i < qgrams.length; i++) {
+            order[i] = i;
+            slots[i] = slot(qgrams[i]);
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> slots[i] < 0 ? 0 : gramSizes[slots[i]]));
+
+        int nTouched = 0;
+        for (int i : order) {
+            int slot = slots[i];
+            if (slot < 0) continue;
+            int n = gramSizes[slot];
+            if (n > COMMON_TRIGRAM && nTouched > 0) break;
+            int[] ids = gramIds[slot];
+            for (int k = 0; k < n; k++) {
+                int id = ids[k];
+                if (counts[id]++ == 0) {
+                    if (nTouched == touched.length) touched = Arrays.copyOf(touched, nTouched * 2);
+                    touched[nTouched++] = id;
+                }
+            }
+        }
+
+        // keep the candidates sharing the most trigrams, then rank those by edit distance
+        int[] histogram = new int[qgrams.length + 1];
+        for (int t = 0; t < nTouched; t++) {
+            histogram[counts[touched[t]]]++;
+        }
+        int threshold = qgrams.length;
+        int kept = histogram[threshold];
+        while (threshold > 1 && kept + histogram[threshold - 1] <= MAX_CANDIDATES) {
+            kept += histogram[--threshold];
+        }
+        if (kept == 0) {
+            threshold = 1;
+        }
+        int[] top = new int[Math.min(nTouched, MAX_CANDIDATES)];
+        int nTop = 0;
+        for (int t = 0; t < nTouched && nTop < top.length; t++) {
+            if (counts[touched[t]] >= threshold) top[nTop++] = touched[t];
+        }
+
+        // worst match on top so it can be evicted once we hold more than limit
+        PriorityQueue<Match> best = new PriorityQueue<>(
+                Comparator.comparingInt((Match m) -> m.distance).thenComparingInt(m -> -m.shared).reversed());
+        for (int t = 0; t < nTop; t++) {
+            int id = top[t];
+            if (removed.get(id)) continue;
+            best.add(new Match(catalog.product(id), editDistance(key, normalize(catalog.name(id))), counts[id]));
+            if (best.size() > limit) best.poll();
+        }
+        for (int t = 0; t < nTouched; t++) {
+            counts[touched[t]] = 0;
+        }
+
+        List<Product> out = new ArrayList<>(best.size());
+        while (!best.isEmpty()) out.add(best.poll().product);
+        Collections.reverse(out);
+        return out;
+    }
+
+    private int slot(long gram) {
+        int mask = gramKeys.length - 1;
+        int i = Long.hashCode(gram * 0x9E3779B97F4A7C15L) & mask;
+        while (gramIds[i] != null) {
+            if (gramKeys[i] == gram) return i;
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    private void addPosting(long gram, int id) {
+        int slot = slot(gram);
+        if (slot < 0) {
+            if ((grams + 1) * 2 > gramKeys.length) {
+                rehash();
+                slot = slot(gram);
+            }
+            slot = -1 - slot;
+            gramKeys[slot] = gram;
+            gramIds[slot] = new int[2];
+            grams++;
+        }
+        int n = gramSizes[slot];
+        if (n == gramIds[slot].length) gramIds[slot] = Arrays.copyOf(gramIds[slot], n * 2);
+        gramIds[slot][n] = id;
+        gramSizes[slot] = n + 1;
+    }
+
+    private void rehash() {
+        long[] keys = gramKeys;
+        int[][] ids = gramIds;
+        int[] sizes = gramSizes;
+        gramKeys = new long[keys.length * 2];
+        gramIds = new int[keys.length * 2][];
+        gramSizes = new int[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (ids[i] == null) continue;
+            int slot = -1 - slot(keys[i]);
+            gramKeys[slot] = keys[i];
+            gramIds[slot] = ids[i];
+            gramSizes[slot] = sizes[i];
+        }
+    }
+
+    private static long[] trigramsOf(String key) {
+        String padded = "  " + key + " ";
+        long[] out = new long[padded.length() - 2];
+        int n = 0;
+        for (int i = 0; i < out.length; i++) {
+            long gram = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+            boolean seen = false;
+            for (int j = 0; j < n && !seen; j++) seen = out[j] == gram;
+            if (!seen) out[n++] = gram;
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    static int editDistance(String a, String b) {
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) prev[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+            }
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[b.length()];
+    }
+}
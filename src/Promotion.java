@@ -0,0 +1,143 @@
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+// One promotion rule: what it takes off a cart line, which product it targets
+// (or every product), which customer types get it and when it runs.
+public class Promotion {
+
+    public enum Kind {
+        PERCENT,  // "10" takes 10% off the line
+        MULTIBUY, // "3 for 5.00" sells every group of 3 for $5.00
+        BUYGET    // "2+1" gives 1 free with every 2 bought
+    }
+
+    private final Kind kind;
+    private final String target;
+    private final Set<CustomerType> tiers;
+    private final LocalDateTime from;
+    private final LocalDateTime until;
+    // PERCENT: rate scaled like Money.toRate; MULTIBUY: group price in cents; BUYGET: free units
+    private final long amount;
+    private final int groupSize;
+
+    private Promotion(Kind kind, String target, Set<CustomerType> tiers, LocalDateTime from, LocalDateTime until, long amount, int groupSize) {
+        this.kind = kind;
+        this.target = target;
+        this.tiers = tiers;
+        this.from = from;
+        this.until = until;
+        this.amount = amount;
+        this.groupSize = groupSize;
+    }
+
+    public static Promotion percentOff(String target, BigDecimal percent, Set<CustomerType> tiers, LocalDateTime from, LocalDateTime until) {
+        if (percent.signum() <= 0 || percent.compareTo(BigDecimal.valueOf(100)) > 0) {
+            throw new IllegalArgumentException("percent must be between 0 and 100");
+        }
+        return new Promotion(Kind.PERCENT, target, tiers, from, until, Money.toRate(percent.movePointLeft(2)), 1);
+    }
+
+    public static Promotion multiBuy(String target, int count, BigDecimal price, Set<CustomerType> tiers, LocalDateTime from, LocalDateTime until) {
+        if (count < 2 || price.signum() < 0) {
+            throw new IllegalArgumentException("multi-buy needs at least 2 units and a price");
+        }
+        return new Promotion(Kind.MULTIBUY, target, tiers, from, until, Money.toCents(price), count);
+    }
+
+    public static Promotion buyGet(String target, int buy, int free, Set<CustomerType> tiers, LocalDateTime from, LocalDateTime until) {
+        if (buy < 1 || free < 1) {
+            throw new IllegalArgumentException("buy and free counts must be positive");
+        }
+        return new Promotion(Kind.BUYGET, target, tiers, from, until, free, buy + free);
+    }
+
+    // Parses "KIND|Product or *|value|TIERS|from|until"; tiers are ALL or a comma list,
+    // times are ISO local date-times and may be left empty.
+    public static Promotion parse(String[] f) {
+        if (f.length < 3 || f.length > 6) {
+            throw new IllegalArgumentException("expected KIND|Product|value|TIERS|from|until");
+        }
+        Kind kind = parseEnum(Kind.class, f[0], "promotion kind");
+        String target = f[1].trim();
+        if (target.isEmpty()) {
+            throw new IllegalArgumentException("missing product name");
+        }
+        target = target.equals("*") ? null : ProductIndex.normalize(target);
+        String value = f[2].trim().toLowerCase(Locale.ROOT);
+        Set<CustomerType> tiers = parseTiers(f.length > 3 ? f[3].trim() : "");
+        LocalDateTime from = f.length > 4 && !f[4].isBlank() ? LocalDateTime.parse(f[4].trim()) : null;
+        LocalDateTime until = f.length > 5 && !f[5].isBlank() ? LocalDateTime.parse(f[5].trim()) : null;
+
+        switch (kind) {
+            case PERCENT:
+                return percentOff(target, new BigDecimal(value.replace("%", "").trim()), tiers, from, until);
+            case MULTIBUY: {
+                int at = value.indexOf(" for ");
+                if (at < 0) throw new IllegalArgumentException("expected 'N for PRICE'");
+                return multiBuy(target, Integer.parseInt(value.substring(0, at).trim()),
+                        new BigDecimal(value.substring(at + 5).replace("$", "").trim()), tiers, from, until);
+            }
+            default: {
+                int plus = value.indexOf('+');
+                if (plus < 0) throw new IllegalArgumentException("expected 'BUY+FREE'");
+                return buyGet(target, Integer.parseInt(value.substring(0, plus).trim()),
+                        Integer.parseInt(value.substring(plus + 1).trim()), tiers, from, until);
+            }
+        }
+    }
+
+    private static Set<CustomerType> parseTiers(String s) {
+        if (s.isEmpty() || s.equalsIgnoreCase("ALL")) {
+            return EnumSet.allOf(CustomerType.class);
+        }
+        Set<CustomerType> tiers = EnumSet.noneOf(CustomerType.class);
+        for (String t : s.split(",")) {
+            tiers.add(parseEnum(CustomerType.class, t, "customer type"));
+        }
+        return tiers;
+    }
+
+    private static <E extends Enum<E>> E parseEnum(Class<E> type, String s, String what) {
+        try {
+            return Enum.valueOf(type, s.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown " + what + " '" + s.trim() + "'");
+        }
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    // normalized product name, or null when the rule applies to every product
+    public String getTarget() {
+        return target;
+    }
+
+    public boolean appliesTo(CustomerType type) {
+        return tiers.contains(type);
+    }
+
+    public boolean isTimed() {
+        return from != null || until != null;
+    }
+
+    public boolean isActive(LocalDateTime now) {
+        return (from == null || !now.isBefore(from)) && (until == null || now.isBefore(until));
+    }
+
+    // Cents taken off a line of qty units at unitCents each.
+    public long discount(long unitCents, int qty) {
+        switch (kind) {
+            case PERCENT:
+                return Money.applyRate(Money.times(unitCents, qty), amount);
+            case MULTIBUY:
+                return Math.max(0, (qty / groupSize) * (unitCents * groupSize - amount));
+            default:
+                return (qty / groupSize) * amount * unitCents;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.nio.charset.StandardCharsets;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -13,43 +14,123 @@ public class ReceiptPrinter {
     private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("MMMM d, uuuu", Locale.US);
     private static final DateTimeFormatter TS = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
 
-    public static Path print(long txNumber, LocalDateTime when, Cart cart, BigDecimal taxRate, BigDecimal cash, Path outDir, CustomerType customerType) throws IOException {
+    static final ReceiptTemplate RECEIPT = ReceiptTemplate.compile(
+            "{date}",
+            "TRANSACTION: {tx:06}",
+            "",
+            "ITEM                 QTY        UNIT PRICE   TOTAL     ",
+            "[row]{name:-20} {qty:-10} ${unit:-11} ${amount:-10}",
+            "************************",
+            "TOTAL NUMBER OF ITEMS SOLD: {units}",
+            "SUB-TOTAL: ${subtotal}",
+            "[discount]PROMOTIONS: -${discount}",
+            "[rate]TAX ({rate}%): ${tax}",
+            "[!rate]TAX: ${tax}",
+            "TOTAL: ${total}",
+            "CASH: ${cash}",
+            "CHANGE: ${change}",
+            "************************",
+            "[savings]",
+            "[savings]YOU SAVED: ${savings}!");
+
+    static final ReceiptTemplate REFUND = ReceiptTemplate.compile(
+            "{date}",
+            "REFUND: {tx:06}",
+            "ORIGINAL TRANSACTION: {original:06}",
+            "",
+            "ITEM                 QTY        UNIT PRICE   TOTAL     ",
+            "[row]{name:-20} {qty:-10} ${unit:-11} ${amount:-10}",
+            "************************",
+            "TOTAL NUMBER OF ITEMS RETURNED: {units}",
+            "SUB-TOTAL: ${subtotal}",
+            "[discount]PROMOTIONS: -${discount}",
+            "TAX: ${tax}",
+            "REFUND TOTAL: ${total}",
+            "************************");
+
+    static final ReceiptTemplate.RowFiller<SalesLog.Line> RETURNED = (l, v) -> v
+            .set(ReceiptTemplate.Field.NAME, l.getProduct())
+            .set(ReceiptTemplate.Field.QTY, l.getQuantity())
+            .set(ReceiptTemplate.Field.UNIT, l.getUnitPriceCents())
+            .set(ReceiptTemplate.Field.AMOUNT, Money.times(l.getUnitPriceCents(), l.getQuantity()));
+
+    static final ReceiptTemplate.RowFiller<CartItem> LINES = (it, v) -> v
+            .set(ReceiptTemplate.Field.NAME, it.getName())
+            .set(ReceiptTemplate.Field.QTY, it.getQuantity())
+            .set(ReceiptTemplate.Field.UNIT, it.getUnitPriceCents())
+            .set(ReceiptTemplate.Field.AMOUNT, it.getLineTotalCents());
+
+    private static final ThreadLocal<ReceiptTemplate.Buffer> BUFFER = ThreadLocal.withInitial(ReceiptTemplate.Buffer::new);
+
+    // the "6.5" in "TAX (6.5%)", kept for the last tax table seen
+    private static volatile Object[] rateLabel = { null, null };
+
+    public static Path print(long txNumber, LocalDateTime when, Cart cart, BigDecimal cash, Path outDir, CustomerType customerType) throws IOException {
         if (!Files.exists(outDir)) Files.createDirectories(outDir);
-        String txId = String.format(Locale.US, "%06d", txNumber);
-        String fileName = String.format(Locale.US, "tx_%s_%s.txt", txId, when.format(TS));
-        Path file = outDir.resolve(fileName);
+        Path file = outDir.resolve(fileName(txNumber, when));
+        ReceiptTemplate.Buffer buf = BUFFER.get().reset();
+        render(txNumber, when, cart, cash, customerType, ReceiptTemplate.Format.TEXT, buf);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buf.writeTo(ch);
+        }
+        return file;
+    }
 
-        BigDecimal subtotal = cart.getSubtotal();
-        BigDecimal tax = cart.getTax(taxRate);
-        BigDecimal total = subtotal.add(tax);
-        BigDecimal change = cash.subtract(total);
+    public static String fileName(long txNumber, LocalDateTime when) {
+        return String.format(Locale.US, "tx_%06d_%s.txt", txNumber, when.format(TS));
+    }
+
+    public static List<String> render(long txNumber, LocalDateTime when, Cart cart, BigDecimal cash, CustomerType customerType) {
+        ReceiptTemplate.Buffer buf = BUFFER.get().reset();
+        render(txNumber, when, cart, cash, customerType, ReceiptTemplate.Format.TEXT, buf);
+        String text = buf.toString();
+        String nl = System.lineSeparator();
+        return List.of(text.substring(0, text.length() - nl.length()).split(Pattern.quote(nl), -1));
+    }
+
+    // Appends the receipt to out in the given format.
+    public static void render(long txNumber, LocalDateTime when, Cart cart, BigDecimal cash, CustomerType customerType,
+                              ReceiptTemplate.Format format, ReceiptTemplate.Buffer out) {
+        long cashCents = Money.toCents(cash);
+        ReceiptTemplate.Values v = new ReceiptTemplate.Values()
+                .set(ReceiptTemplate.Field.DATE, when.format(DATE))
+                .set(ReceiptTemplate.Field.TX, txNumber)
+                .set(ReceiptTemplate.Field.UNITS, cart.getTotalUnits())
+                .set(ReceiptTemplate.Field.SUBTOTAL, cart.getSubtotalCents())
+                .set(ReceiptTemplate.Field.DISCOUNT, cart.getDiscountCents())
+                .set(ReceiptTemplate.Field.RATE, rateLabel(cart.getPricing().getTaxes()))
+                .set(ReceiptTemplate.Field.TAX, cart.getTaxCents())
+                .set(ReceiptTemplate.Field.TOTAL, cart.getTotalCents())
+                .set(ReceiptTemplate.Field.CASH, cashCents)
+                .set(ReceiptTemplate.Field.CHANGE, cashCents - cart.getTotalCents())
+                .set(ReceiptTemplate.Field.SAVINGS, cart.getSavingsCents());
+        RECEIPT.render(v, cart.items(), LINES, format, out);
+    }
 
-        BigDecimal savings = cart.getSavings(customerType);
+    public static void render(Refund refund, ReceiptTemplate.Format format, ReceiptTemplate.Buffer out) {
+        ReceiptTemplate.Values v = new ReceiptTemplate.Values()
+                .set(ReceiptTemplate.Field.DATE, refund.getTime().format(DATE))
+                .set(ReceiptTemplate.Field.TX, refund.getTx())
+                .set(ReceiptTemplate.Field.ORIGINAL, refund.getOriginal().getTx())
+                .set(ReceiptTemplate.Field.UNITS, refund.getUnits())
+                .set(ReceiptTemplate.Field.SUBTOTAL, refund.getSubtotalCents())
+                .set(ReceiptTemplate.Field.DISCOUNT, refund.getDiscountCents())
+                .set(ReceiptTemplate.Field.TAX, refund.getTaxCents())
+                .set(ReceiptTemplate.Field.TOTAL, refund.getTotalCents());
+        REFUND.render(v, refund.getLines(), RETURNED, format, out);
+    }
 
-        List<String> lines = new ArrayList<>();
-        lines.add(when.format(DATE));
-        lines.add("TRANSACTION: " + txId);
-        lines.add("");
-        lines.add(String.format("%-20s %-10s %-12s %-10s", "ITEM", "QTY", "UNIT PRICE", "TOTAL"));
-        for (CartItem it : cart.items()) {
-            lines.add(String.format(Locale.US, "%-20s %-10d $%-11.2f $%-10.2f",
-            it.getName(), it.getQuantity(), it.getUnitPrice(), it.getLineTotal()));
+    // null when products pay different rates and the receipt shows a plain "TAX:" line
+    private static String rateLabel(TaxTable taxes) {
+        if (!taxes.isFlat()) {
+            return null;
         }
-        lines.add("************************");
-        lines.add("TOTAL NUMBER OF ITEMS SOLD: " + cart.getTotalUnits());
-        lines.add(String.format(Locale.US, "SUB-TOTAL: $%.2f", subtotal));
-        lines.add(String.format(Locale.US, "TAX (%.1f%%): $%.2f", taxRate.multiply(BigDecimal.valueOf(100)), tax));
-        lines.add(String.format(Locale.US, "TOTAL: $%.2f", total));
-        lines.add(String.format(Locale.US, "CASH: $%.2f", cash));
-        lines.add(String.format(Locale.US, "CHANGE: $%.2f", change));
-        lines.add("************************");
-        if (savings.compareTo(BigDecimal.ZERO) > 0) {
-            lines.add("");
-            lines.add(String.format(Locale.US, "YOU SAVED: $%.2f!", savings));
+        Object[] cached = rateLabel;
+        if (cached[0] != taxes) {
+            cached = new Object[] { taxes, taxes.getDefaultRate().multiply(BigDecimal.valueOf(100)).setScale(1, RoundingMode.HALF_UP).toPlainString() };
+            rateLabel = cached;
         }
-
-        Files.write(file, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-        return file;
+        return (String) cached[1];
     }
     
     public static long getLastTransactionNumber(Path receiptsDir) {
@@ -59,7 +140,7 @@ public class ReceiptPrinter {
         }
 
         long maxTxNumber = 0;
-        Pattern pattern = Pattern.compile("tx_(\\d{6})_.*\\.txt");
+        Pattern pattern = Pattern.compile("tx_(\\d{6,})_.*\\.txt");
 
         for (File file : dir.listFiles()) {
             Matcher matcher = pattern.matcher(file.getName());
@@ -0,0 +1,461 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// A receipt layout compiled once into lines of literal bytes and fixed-width field writers.
+// Rendering writes numbers and money straight into a reusable byte buffer, so nothing is
+// parsed or boxed per receipt. Template syntax, one entry per output line:
+//   TOTAL: ${total}          literal text and a field; money prints as 12.34
+//   {name:-20} {qty:10}      padded to 20 characters left-aligned, or 10 right-aligned
+//   {tx:06}                  zero-padded to 6 digits
+//   [discount]PROMOTIONS...  only when the field is positive (or set, for text); [!rate] when not
+//   [row]{name:-20} ...      once per row, such as a cart line or an inventory product
+// The same compiled template renders as plain text, as JSON (fields only, rows under
+// "items") or as an ESC/POS byte stream for receipt printers.
+public final class ReceiptTemplate {
+
+    public enum Format { TEXT, JSON, ESCPOS }
+
+    private enum Kind { TEXT, INT, MONEY }
+
+    public enum Field {
+        DATE(Kind.TEXT), TX(Kind.INT), UNITS(Kind.INT), SUBTOTAL(Kind.MONEY), DISCOUNT(Kind.MONEY),
+        RATE(Kind.TEXT), TAX(Kind.MONEY), TOTAL(Kind.MONEY), CASH(Kind.MONEY), CHANGE(Kind.MONEY),
+        SAVINGS(Kind.MONEY), ORIGINAL(Kind.INT),
+        // row fields
+        NAME(Kind.TEXT), QTY(Kind.INT), UNIT(Kind.MONEY), AMOUNT(Kind.MONEY),
+        STOCK(Kind.INT), REGULAR(Kind.MONEY), MEMBER(Kind.MONEY), STATUS(Kind.TEXT);
+
+        private final Kind kind;
+        private final byte[] jsonKey;
+
+        Field(Kind kind) {
+            this.kind = kind;
+            this.jsonKey = ("\"" + name().toLowerCase(Locale.ROOT) + "\":").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    // Field values for the receipt as a whole, or for one row.
+    public static final class Values {
+        private final long[] numbers = new long[Field.values().length];
+        private final String[] texts = new String[Field.values().length];
+
+        public Values set(Field f, long value) {
+            numbers[f.ordinal()] = value;
+            return this;
+        }
+
+        public Values set(Field f, String value) {
+            texts[f.ordinal()] = value;
+            return this;
+        }
+
+        boolean holds(Field f) {
+            return f.kind == Kind.TEXT ? texts[f.ordinal()] != null : numbers[f.ordinal()] > 0;
+        }
+    }
+
+    public interface RowFiller<T> {
+        void fill(T row, Values values);
+    }
+
+    private static final class Part {
+        final byte[] literal;
+        final Field field;
+        final int width;
+        final boolean left;
+        final boolean zeros;
+
+        Part(byte[] literal) {
+            this(literal, null, 0, false, false);
+        }
+
+        Part(byte[] literal, Field field, int width, boolean left, boolean zeros) {
+            this.literal = literal;
+            this.field = field;
+            this.width = width;
+            this.left = left;
+            this.zeros = zeros;
+        }
+    }
+
+    private static final class Line {
+        final Part[] parts;
+        final boolean row;
+        final Field condition;
+        final boolean negate;
+
+        Line(Part[] parts, boolean row, Field condition, boolean negate) {
+            this.parts = parts;
+            this.row = row;
+            this.condition = condition;
+            this.negate = negate;
+        }
+
+        boolean shown(Values v) {
+            return condition == null || v.holds(condition) != negate;
+        }
+    }
+
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LF = { '\n' };
+    // ESC @ resets the printer; ESC d 3 feeds three lines and GS V 66 0 feeds and cuts
+    private static final byte[] ESCPOS_INIT = { 0x1B, '@' };
+    private static final byte[] ESCPOS_CUT = { 0x1B, 'd', 3, 0x1D, 'V', 66, 0 };
+
+    private final Line[] lines;
+
+    private ReceiptTemplate(Line[] lines) {
+        this.lines = lines;
+    }
+
+    public static ReceiptTemplate compile(String... template) {
+        Line[] lines = new Line[template.length];
+        for (int i = 0; i < template.length; i++) {
+            lines[i] = compileLine(template[i]);
+        }
+        return new ReceiptTemplate(lines);
+    }
+
+    private static Line compileLine(String text) {
+        boolean row = false;
+        Field condition = null;
+        boolean negate = false;
+        while (text.startsWith("[")) {
+            int end = text.indexOf(']');
+            if (end < 0) {
+                throw new IllegalArgumentException("unclosed [ in template line: " + text);
+            }
+            String tag = text.substring(1, end);
+            if (tag.equals("row")) {
+                row = true;
+            } else {
+                negate = tag.startsWith("!");
+                condition = field(negate ? tag.substring(1) : tag);
+            }
+            text = text.substring(end + 1);
+        }
+
+        List<Part> parts = new ArrayList<>();
+        int at = 0;
+        while (at < text.length()) {
+            int open = text.indexOf('{', at);
+            if (open < 0) {
+                parts.add(new Part(text.substring(at).getBytes(StandardCharsets.UTF_8)));
+                break;
+            }
+            if (open > at) {
+                parts.add(new Part(text.substring(at, open).getBytes(StandardCharsets.UTF_8)));
+            }
+            int close = text.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("unclosed { in template line: " + text);
+            }
+            String spec = text.substring(open + 1, close);
+            int colon = spec.indexOf(':');
+            Field field = field(colon < 0 ? spec : spec.substring(0, colon));
+            String width = colon < 0 ? "0" : spec.substring(colon + 1);
+            boolean left = width.startsWith("-");
+            boolean zeros = width.startsWith("0") && width.length() > 1;
+            try {
+                parts.add(new Part(null, field, Integer.parseInt(left ? width.substring(1) : width), left, zeros));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid width in {" + spec + "}");
+            }
+            at = close + 1;
+        }
+        return new Line(parts.toArray(new Part[0]), row, condition, negate);
+    }
+
+    private static Field field(String name) {
+        try {
+            return Field.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown template field '" + name + "'");
+        }
+    }
+
+    public <T> void render(Values values, Iterable<T> rows, RowFiller<T> filler, Format format, Buffer out) {
+        if (format == Format.JSON) {
+            renderJson(values, rows, filler, out);
+            return;
+        }
+        boolean escpos = format == Format.ESCPOS;
+        byte[] newline = escpos ? LF : NEWLINE;
+        if (escpos) {
+            out.put(ESCPOS_INIT);
+        }
+        Values row = new Values();
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].row) {
+                if (lines[i].shown(values)) {
+                    writeLine(lines[i], values, escpos, newline, out);
+                }
+                continue;
+            }
+            // consecutive row lines repeat together for each row
+            int end = i;
+            while (end < lines.length && lines[end].row) end++;
+            for (T r : rows) {
+                filler.fill(r, row);
+                for (int k = i; k < end; k++) {
+                    if (lines[k].shown(row)) writeLine(lines[k], row, escpos, newline, out);
+                }
+            }
+            i = end - 1;
+        }
+        if (escpos) {
+            out.put(ESCPOS_CUT);
+        }
+    }
+
+    private static void writeLine(Line line, Values v, boolean asciiOnly, byte[] newline, Buffer out) {
+        for (Part p : line.parts) {
+            if (p.literal != null) {
+                out.put(p.literal);
+                continue;
+            }
+            int i = p.field.ordinal();
+            switch (p.field.kind) {
+                case TEXT -> out.text(v.texts[i] == null ? "" : v.texts[i], p.width, p.left, asciiOnly);
+                case INT -> out.number(v.numbers[i], false, p.width, p.left, p.zeros);
+                case MONEY -> out.number(v.numbers[i], true, p.width, p.left, p.zeros);
+            }
+        }
+        out.put(newline);
+    }
+
+    private <T> void renderJson(Values values, Iterable<T> rows, RowFiller<T> filler, Buffer out) {
+        long written = 0;
+        boolean first = true;
+        out.put((byte) '{');
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].row) {
+                if (!lines[i].shown(values)) continue;
+                for (Part p : lines[i].parts) {
+                    if (p.field == null || (written & 1L << p.field.ordinal()) != 0) continue;
+                    written |= 1L << p.field.ordinal();
+                    if (!first) out.put((byte) ',');
+                    first = false;
+                    jsonField(p.field, values, out);
+                }
+                continue;
+            }
+            int end = i;
+            while (end < lines.length && lines[end].row) end++;
+            if (!first) out.put((byte) ',');
+            first = false;
+            out.ascii("\"items\":[");
+            Values row = new Values();
+            boolean firstRow = true;
+            for (T r : rows) {
+                filler.fill(r, row);
+                if (!firstRow) out.put((byte) ',');
+                out.put((byte) '{');
+                firstRow = false;
+                long rowWritten = 0;
+                boolean firstField = true;
+                for (int k = i; k < end; k++) {
+                    if (!lines[k].shown(row)) continue;
+                    for (Part p : lines[k].parts) {
+                        if (p.field == null || (rowWritten & 1L << p.field.ordinal()) != 0) continue;
+                        rowWritten |= 1L << p.field.ordinal();
+                        if (!firstField) out.put((byte) ',');
+                        firstField = false;
+                        jsonField(p.field, row, out);
+                    }
+                }
+                out.put((byte) '}');
+            }
+            out.put((byte) ']');
+            i = end - 1;
+        }
+        out.put((byte) '}').put(NEWLINE);
+    }
+
+    private static void jsonField(Field f, Values v, Buffer out) {
+        out.put(f.jsonKey);
+        int i = f.ordinal();
+        switch (f.kind) {
+            case TEXT -> out.jsonString(v.texts[i]);
+            case INT -> out.number(v.numbers[i], false, 0, false, false);
+            case MONEY -> out.number(v.numbers[i], true, 0, false, false);
+        }
+    }
+
+    // Growable byte buffer reused across renders.
+    public static final class Buffer {
+        private byte[] bytes;
+        private int length;
+        private final byte[] scratch = new byte[24];
+
+        public Buffer() {
+            this(2048);
+        }
+
+        public Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        public Buffer reset() {
+            length = 0;
+            return this;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        public void writeTo(FileChannel ch) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(bytes, 0, length);
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+        }
+
+        // Writes what a non-blocking channel takes now and keeps the rest. Returns the bytes left.
+        public int writeSome(WritableByteChannel ch) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(bytes, 0, length);
+            ch.write(buf);
+            int left = buf.remaining();
+            System.arraycopy(bytes, buf.position(), bytes, 0, left);
+            length = left;
+            return left;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        public Buffer put(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+            return this;
+        }
+
+        public Buffer put(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+            return this;
+        }
+
+        public Buffer put(Buffer other) {
+            ensure(other.length);
+            System.arraycopy(other.bytes, 0, bytes, length, other.length);
+            length += other.length;
+            return this;
+        }
+
+        public Buffer ascii(String s) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) bytes[length++] = (byte) s.charAt(i);
+            return this;
+        }
+
+        private void spaces(int n) {
+            ensure(Math.max(n, 0));
+            for (int i = 0; i < n; i++) bytes[length++] = ' ';
+        }
+
+        // padding counts chars, as Formatter does
+        void text(String s, int width, boolean left, boolean asciiOnly) {
+            int pad = width - s.length();
+            if (!left) spaces(pad);
+            utf8(s, asciiOnly);
+            if (left) spaces(pad);
+        }
+
+        private void utf8(String s, boolean asciiOnly) {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    bytes[length++] = (byte) c;
+                } else if (asciiOnly) {
+                    bytes[length++] = '?';
+                    if (Character.isHighSurrogate(c) && i + 1 < s.length()) i++;
+                } else {
+                    // rare: encode the rest of the string in one go
+                    put(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            }
+        }
+
+        // Integers, or cents as 12.34 with the sign in front, like %d and %.2f.
+        void number(long value, boolean money, int width, boolean left, boolean zeros) {
+            long v = Math.abs(value);
+            int at = scratch.length;
+            if (money) {
+                scratch[--at] = (byte) ('0' + v % 10);
+                v /= 10;
+                scratch[--at] = (byte) ('0' + v % 10);
+                v /= 10;
+                scratch[--at] = '.';
+            }
+            do {
+                scratch[--at] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v > 0);
+            int digits = scratch.length - at;
+            int len = digits + (value < 0 ? 1 : 0);
+            int pad = width - len;
+
+            if (!left && !zeros) spaces(pad);
+            if (value < 0) put((byte) '-');
+            if (zeros) {
+                ensure(Math.max(pad, 0));
+                for (int i = 0; i < pad; i++) bytes[length++] = '0';
+            }
+            ensure(digits);
+            System.arraycopy(scratch, at, bytes, length, digits);
+            length += digits;
+            if (left) spaces(pad);
+        }
+
+        void jsonString(String s) {
+            if (s == null) {
+                ascii("null");
+                return;
+            }
+            put((byte) '"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    put((byte) '\\').put((byte) c);
+                } else if (c < 0x20) {
+                    ascii(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                } else if (c < 0x80) {
+                    put((byte) c);
+                } else {
+                    int end = i;
+                    while (end < s.length() && s.charAt(end) >= 0x80) end++;
+                    put(s.substring(i, end).getBytes(StandardCharsets.UTF_8));
+                    i = end - 1;
+                }
+            }
+            put((byte) '"');
+        }
+    }
+}
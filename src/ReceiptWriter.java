@@ -0,0 +1,329 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Renders and writes receipts on a background thread so checkout does not wait on the disk.
+// The queue is bounded: when the disk falls behind, submit blocks instead of buffering without limit.
+// In segment mode receipts are appended to rolling receipts_<firstTx>.log files instead of one file each.
+// Receipts arrive already rendered; the same bytes sit in the sale's journal record, so a receipt
+// that fails to write is retried with the next batch and one lost in a crash is written again
+// by recover() on startup. flush() tells the journal when it may drop those records.
+public class ReceiptWriter implements AutoCloseable, Flushable {
+
+    private static final int MAX_BATCH = 256;
+    private static final long SEGMENT_BYTES = 64L << 20;
+    private static final Metrics.Histogram LATENCY = Metrics.histogram("receipt.latency_ns");
+    private static final Metrics.Histogram BATCH_TIME = Metrics.histogram("receipt.batch_write_ns");
+    private static final Metrics.Counter WRITTEN = Metrics.counter("receipt.written");
+    private static final Metrics.Counter FAILED = Metrics.counter("receipt.failed");
+
+    private final Path outDir;
+    private final boolean segmented;
+    private final BlockingQueue<Job> queue;
+    private final Thread writer;
+    private FileChannel segment;
+    private Path segmentPath;
+    // owned by the writer thread
+    private final ReceiptTemplate.Buffer buffer = new ReceiptTemplate.Buffer();
+    // writer thread only: receipts whose write failed, tried again before each batch
+    private final List<Job> failed = new ArrayList<>();
+    private volatile int unwritten;
+    private volatile boolean closed;
+
+    private static final class Job {
+        final long txNumber;
+        final String name;
+        final byte[] text;
+        final CompletableFuture<Path> done = new CompletableFuture<>();
+        final long submitted = System.nanoTime();
+
+        Job(long txNumber, String name, byte[] text) {
+            this.txNumber = txNumber;
+            this.name = name;
+            this.text = text;
+        }
+
+        boolean isBarrier() {
+            return text == null;
+        }
+    }
+
+    private static final Job STOP = new Job(0, null, null);
+
+    public ReceiptWriter(Path outDir, int capacity, boolean segmented) {
+        this.outDir = outDir;
+        this.segmented = segmented;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::run, "receipt-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Renders the receipt on the calling thread, so the cart may change once this returns.
+    public CompletableFuture<Path> submit(long txNumber, LocalDateTime when, Cart cart, BigDecimal cash, CustomerType customerType) {
+        ReceiptTemplate.Buffer buf = new ReceiptTemplate.Buffer();
+        ReceiptPrinter.render(txNumber, when, cart, cash, customerType, ReceiptTemplate.Format.TEXT, buf);
+        return submit(txNumber, ReceiptPrinter.fileName(txNumber, when), buf.toByteArray());
+    }
+
+    public CompletableFuture<Path> submit(long txNumber, String name, byte[] text) {
+        return enqueue(new Job(txNumber, name, text));
+    }
+
+    private CompletableFuture<Path> enqueue(Job job) {
+        if (closed) {
+            job.done.completeExceptionally(new IOException("Receipt writer is closed"));
+            return job.done;
+        }
+        try {
+            queue.put(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.done.completeExceptionally(e);
+        }
+        return job.done;
+    }
+
+    private void run() {
+        List<Job> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            boolean stop = batch.remove(STOP);
+            List<Job> barriers = new ArrayList<>();
+            batch.removeIf(job -> job.isBarrier() && barriers.add(job));
+            // earlier failures go first so receipts stay in transaction order
+            batch.addAll(0, failed);
+            failed.clear();
+
+            try {
+                if (!batch.isEmpty()) {
+                    long start = System.nanoTime();
+                    if (!Files.exists(outDir)) Files.createDirectories(outDir);
+                    if (segmented) {
+                        appendToSegment(batch);
+                    } else {
+                        writeFiles(batch);
+                    }
+                    BATCH_TIME.recordSince(start);
+                    WRITTEN.add(batch.size());
+                    for (Job job : batch) LATENCY.recordSince(job.submitted);
+                }
+            } catch (IOException | RuntimeException e) {
+                FAILED.add(batch.size());
+                for (Job job : batch) job.done.completeExceptionally(e);
+                failed.addAll(batch);
+                System.err.println("Could not write " + batch.size() + " receipts, will retry: " + e.getMessage());
+            }
+            unwritten = failed.size();
+            for (Job barrier : barriers) {
+                barrier.done.complete(null);
+            }
+            batch.clear();
+
+            if (stop) {
+                closeSegment();
+                return;
+            }
+        }
+    }
+
+    // Waits until every receipt submitted so far is on disk. Throws if some could not be
+    // written; they stay queued for another try.
+    @Override
+    public void flush() throws IOException {
+        Job barrier = new Job(0, null, null);
+        if (!closed) {
+            try {
+                queue.put(barrier);
+                // a barrier that raced with close() is never picked up
+                while (!barrier.done.isDone() && writer.isAlive()) {
+                    try {
+                        barrier.done.get(100, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        // check the writer is still running
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing receipts", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+        if (unwritten > 0) {
+            throw new IOException(unwritten + " receipts are not written yet");
+        }
+    }
+
+    // Queues the journaled receipts that are missing on disk, after a crash. Returns how many.
+    public int recover(List<InventoryJournal.Receipt> journaled) throws IOException {
+        if (journaled.isEmpty()) {
+            return 0;
+        }
+        Map<String, byte[]> inSegments = segmented ? segmentContents(journaled) : Map.of();
+        int queued = 0;
+        for (InventoryJournal.Receipt r : journaled) {
+            boolean written;
+            if (segmented) {
+                written = inSegments.containsKey(r.name) && Arrays.equals(inSegments.get(r.name), r.text);
+            } else {
+                Path file = outDir.resolve(r.name);
+                written = Files.exists(file) && Arrays.equals(Files.readAllBytes(file), r.text);
+            }
+            if (!written) {
+                submit(r.tx, r.name, r.text);
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    // Receipt bodies by name in the segments that can hold the given receipts: the last one
+    // started before the oldest of them, and every later one.
+    private Map<String, byte[]> segmentContents(List<InventoryJournal.Receipt> journaled) throws IOException {
+        Map<String, byte[]> out = new HashMap<>();
+        if (!Files.isDirectory(outDir)) {
+            return out;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (InventoryJournal.Receipt r : journaled) oldest = Math.min(oldest, r.tx);
+
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(outDir, "receipts_*.log")) {
+            ds.forEach(logs::add);
+        }
+        logs.sort(Comparator.comparingLong(ReceiptWriter::segmentStart));
+        int first = 0;
+        for (int i = 0; i < logs.size(); i++) {
+            if (segmentStart(logs.get(i)) <= oldest) first = i;
+        }
+
+        byte[] open = "==> ".getBytes(StandardCharsets.US_ASCII);
+        byte[] close = (" <==" + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII);
+        for (Path log : logs.subList(Math.min(first, logs.size()), logs.size())) {
+            byte[] data = Files.readAllBytes(log);
+            String name = null;
+            int bodyStart = 0;
+            for (int at = 0; at <= data.length; ) {
+                int header = indexOf(data, open, at);
+                int end = header < 0 ? data.length : header;
+                if (name != null) {
+                    out.put(name, Arrays.copyOfRange(data, bodyStart, end));
+                }
+                if (header < 0) break;
+                int nameEnd = indexOf(data, close, header);
+                if (nameEnd < 0) break;
+                name = new String(data, header + open.length, nameEnd - header - open.length, StandardCharsets.UTF_8);
+                bodyStart = nameEnd + close.length;
+                at = bodyStart;
+            }
+        }
+        return out;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static long segmentStart(Path log) {
+        String name = log.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring("receipts_".length(), name.length() - ".log".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void writeFiles(List<Job> batch) throws IOException {
+        List<FileChannel> open = new ArrayList<>(batch.size());
+        try {
+            for (Job job : batch) {
+                Path file = outDir.resolve(job.name);
+                FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                open.add(ch);
+                buffer.reset().put(job.text);
+                buffer.writeTo(ch);
+            }
+            for (FileChannel ch : open) ch.force(false);
+        } finally {
+            for (FileChannel ch : open) ch.close();
+        }
+        for (Job job : batch) {
+            job.done.complete(outDir.resolve(job.name));
+        }
+    }
+
+    private void appendToSegment(List<Job> batch) throws IOException {
+        buffer.reset();
+        for (Job job : batch) {
+            buffer.ascii("==> ").put(job.name.getBytes(StandardCharsets.UTF_8)).ascii(" <==").ascii(System.lineSeparator()).put(job.text);
+        }
+        if (segment == null || segment.size() >= SEGMENT_BYTES) {
+            closeSegment();
+            segmentPath = outDir.resolve(String.format(Locale.US, "receipts_%06d.log", batch.get(0).txNumber));
+            segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        buffer.writeTo(segment);
+        segment.force(false);
+        for (Job job : batch) {
+            job.done.complete(segmentPath);
+        }
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.force(true);
+            segment.close();
+        } catch (IOException e) {
+            System.err.println("Could not close receipt segment " + segmentPath + ": " + e.getMessage());
+        }
+        segment = null;
+    }
+
+    // Waits for every queued receipt to reach the disk.
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
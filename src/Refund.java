@@ -0,0 +1,173 @@
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// A return against one earlier sale. Lines are re-priced from what the sale recorded, at the
+// unit price fixed when the item went into the cart, never from today's catalog. Each unit
+// gets back its share of the line's promotion discount and tax; shares are cut from running
+// totals, so returning every unit, over any number of refunds, pays back exactly the line.
+public class Refund {
+
+    private final long tx;
+    private final LocalDateTime time;
+    private final SalesLog.Sale original;
+    private final List<SalesLog.Line> lines;
+    private final int units;
+    private final long subtotalCents;
+    private final long discountCents;
+    private final long taxCents;
+    private volatile CompletableFuture<Path> receipt;
+
+    Refund(long tx, LocalDateTime time, SalesLog.Sale original, List<SalesLog.Line> lines) {
+        this.tx = tx;
+        this.time = time;
+        this.original = original;
+        this.lines = lines;
+        int units = 0;
+        long subtotal = 0;
+        long discount = 0;
+        long tax = 0;
+        for (SalesLog.Line l : lines) {
+            units += l.getQuantity();
+            subtotal += Money.times(l.getUnitPriceCents(), l.getQuantity());
+            discount += l.getDiscountCents();
+            tax += l.getTaxCents();
+        }
+        this.units = units;
+        this.subtotalCents = subtotal;
+        this.discountCents = discount;
+        this.taxCents = tax;
+    }
+
+    // Units of each product on the sale that have not been returned yet, in receipt order.
+    public static LinkedHashMap<String, Integer> returnable(SalesLog.Sale sale, List<SalesLog.Sale> refunds) {
+        Map<String, Integer> returned = returned(refunds);
+        LinkedHashMap<String, Integer> out = new LinkedHashMap<>();
+        for (SalesLog.Line l : sale.getLines()) {
+            int left = l.getQuantity() - returned.getOrDefault(key(l.getProduct()), 0);
+            if (left > 0) {
+                out.put(l.getProduct(), left);
+            }
+        }
+        return out;
+    }
+
+    // Lines returning the given units per product (names in any case), or everything still
+    // returnable when quantities is empty.
+    static List<SalesLog.Line> lines(SalesLog.Sale sale, List<SalesLog.Sale> refunds, Map<String, Integer> quantities) {
+        if (sale.isRefund()) {
+            throw new IllegalArgumentException("Transaction " + sale.getTx() + " is a refund, not a sale");
+        }
+        Map<String, Integer> wanted = new HashMap<>();
+        for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+            if (e.getValue() <= 0) {
+                throw new IllegalArgumentException("Quantity to return must be greater than 0");
+            }
+            wanted.merge(key(e.getKey()), e.getValue(), Integer::sum);
+        }
+        Map<String, Integer> returned = returned(refunds);
+
+        List<SalesLog.Line> out = new ArrayList<>();
+        for (SalesLog.Line l : sale.getLines()) {
+            String key = key(l.getProduct());
+            int done = returned.getOrDefault(key, 0);
+            int left = l.getQuantity() - done;
+            Integer asked = wanted.remove(key);
+            int qty = quantities.isEmpty() ? left : asked == null ? 0 : asked;
+            if (qty > left) {
+                throw new IllegalArgumentException("Only " + left + " of " + l.getProduct() + " can still be returned");
+            }
+            if (qty == 0) {
+                continue;
+            }
+            int sold = l.getQuantity();
+            out.add(new SalesLog.Line(l.getProduct(), qty, l.getUnitPriceCents(),
+                    share(l.getDiscountCents(), done + qty, sold) - share(l.getDiscountCents(), done, sold),
+                    share(l.getTaxCents(), done + qty, sold) - share(l.getTaxCents(), done, sold),
+                    l.isTaxable()));
+        }
+        if (!wanted.isEmpty()) {
+            throw new IllegalArgumentException(wanted.keySet().iterator().next() + " was not sold in transaction " + sale.getTx());
+        }
+        if (out.isEmpty()) {
+            throw new IllegalArgumentException("Everything from transaction " + sale.getTx() + " has already been returned");
+        }
+        return out;
+    }
+
+    private static Map<String, Integer> returned(List<SalesLog.Sale> refunds) {
+        Map<String, Integer> out = new HashMap<>();
+        for (SalesLog.Sale r : refunds) {
+            for (SalesLog.Line l : r.getLines()) {
+                out.merge(key(l.getProduct()), l.getQuantity(), Integer::sum);
+            }
+        }
+        return out;
+    }
+
+    // the part of amount that belongs to the first `units` of `of` units
+    private static long share(long amount, int units, int of) {
+        return units == of ? amount : Math.multiplyExact(amount, (long) units) / of;
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    void setReceipt(CompletableFuture<Path> receipt) {
+        this.receipt = receipt;
+    }
+
+    public long getTx() {
+        return tx;
+    }
+
+    public LocalDateTime getTime() {
+        return time;
+    }
+
+    public SalesLog.Sale getOriginal() {
+        return original;
+    }
+
+    public List<SalesLog.Line> getLines() {
+        return lines;
+    }
+
+    public int getUnits() {
+        return units;
+    }
+
+    public long getSubtotalCents() {
+        return subtotalCents;
+    }
+
+    public long getDiscountCents() {
+        return discountCents;
+    }
+
+    public long getTaxCents() {
+        return taxCents;
+    }
+
+    // what goes back to the customer
+    public long getTotalCents() {
+        return subtotalCents - discountCents + taxCents;
+    }
+
+    public BigDecimal getTotal() {
+        return Money.toBigDecimal(getTotalCents());
+    }
+
+    // completes once the refund receipt is on disk
+    public CompletableFuture<Path> getReceipt() {
+        return receipt;
+    }
+}
@@ -0,0 +1,406 @@
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+// Keeps low-stock and reorder answers up to date from stock-change events instead of
+// scanning the catalog. Per product it tracks on hand and units sold at the till over two
+// sliding windows (the last hour in 5-minute buckets, the last day in 1-hour buckets); the
+// faster of the two rates is the sales velocity. Reloads and replaced products only move
+// the stock. Two ordered sets are maintained per update in
+// O(log n):
+//   by stock       on hand, lowest first
+//   by depletion   time until on hand falls to the safety stock at the current velocity
+// A product needs reordering once that time is within the supplier lead time; the suggested
+// quantity tops it up to cover days of sales plus the safety stock.
+//
+// Changes arrive on the commit path, so they are only queued there. A monitor thread applies
+// them, and every query applies what is still queued first, so lanes never wait on the
+// ordered sets and a long scan never holds up a sale.
+public class ReorderMonitor implements Inventory.StockListener, AutoCloseable {
+
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+
+    public static final class Suggestion {
+        private final Product product;
+        private final int onHand;
+        private final double perDay;
+        private final int quantity;
+
+        Suggestion(Product product, int onHand, double perDay, int quantity) {
+            this.product = product;
+            this.onHand = onHand;
+            this.perDay = perDay;
+            this.quantity = quantity;
+        }
+
+        public Product getProduct() {
+            return product;
+        }
+
+        public int getOnHand() {
+            return onHand;
+        }
+
+        // units sold per day at the current velocity
+        public double getPerDay() {
+            return perDay;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+    }
+
+    public static final class StockLevel {
+        private final Product product;
+        private final int onHand;
+
+        StockLevel(Product product, int onHand) {
+            this.product = product;
+            this.onHand = onHand;
+        }
+
+        public Product getProduct() {
+            return product;
+        }
+
+        public int getOnHand() {
+            return onHand;
+        }
+    }
+
+    public interface StockVisitor {
+        // return false to stop
+        boolean visit(int id, int onHand);
+    }
+
+    // Units sold in the last `buckets` buckets of `width` millis, as a ring of counts.
+    private static final class Window {
+        final long width;
+        final int[] counts;
+        long newest;
+        long total;
+
+        Window(long width, int buckets) {
+            this.width = width;
+            this.counts = new int[buckets];
+        }
+
+        void add(long now, int units) {
+            roll(now);
+            counts[(int) (newest % counts.length)] += units;
+            total += units;
+        }
+
+        // units per millisecond over the whole window
+        double rate(long now) {
+            roll(now);
+            return (double) total / (width * counts.length);
+        }
+
+        private void roll(long now) {
+            long bucket = now / width;
+            if (bucket - newest >= counts.length) {
+                Arrays.fill(counts, 0);
+                total = 0;
+            } else {
+                for (long b = newest + 1; b <= bucket; b++) {
+                    int i = (int) (b % counts.length);
+                    total -= counts[i];
+                    counts[i] = 0;
+                }
+            }
+            newest = Math.max(newest, bucket);
+        }
+    }
+
+    // one published change, as queued by the lane that committed it
+    private static final class Event {
+        final StockSnapshot version;
+        final int[] ids;
+        // units sold per id, or null when nothing was sold
+        final int[] sold;
+        final long at;
+
+        Event(StockSnapshot version, int[] ids, int[] sold, long at) {
+            this.version = version;
+            this.ids = ids;
+            this.sold = sold;
+            this.at = at;
+        }
+    }
+
+    private static final class Item {
+        final int id;
+        int onHand;
+        long version;
+        // units per millisecond, and millis until the safety stock is reached
+        double rate;
+        double untilSafety = Double.POSITIVE_INFINITY;
+        long keyedAt;
+        // allocated on the first sale
+        Window hour;
+        Window day;
+
+        Item(int id) {
+            this.id = id;
+        }
+    }
+
+    private static final Comparator<Item> BY_STOCK = (a, b) ->
+            a.onHand != b.onHand ? Integer.compare(a.onHand, b.onHand) : Integer.compare(a.id, b.id);
+    private static final Comparator<Item> BY_DEPLETION = (a, b) ->
+            a.untilSafety != b.untilSafety ? Double.compare(a.untilSafety, b.untilSafety) : Integer.compare(a.id, b.id);
+
+    private final long leadTime;
+    private final long cover;
+    private final int safetyStock;
+    private final LongSupplier clock;
+
+    private final List<Item> items = new ArrayList<>();
+    private final TreeSet<Item> byStock = new TreeSet<>(BY_STOCK);
+    // only products that sell, or are already at or below the safety stock
+    private final TreeSet<Item> byDepletion = new TreeSet<>(BY_DEPLETION);
+    private StockSnapshot latest;
+
+    private final ConcurrentLinkedQueue<Event> pending = new ConcurrentLinkedQueue<>();
+    private Inventory inventory;
+    private Thread drainer;
+    // set while the monitor thread is about to park, so lanes know to wake it
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    public ReorderMonitor() {
+        this(Duration.ofDays(2), Duration.ofDays(7), 5);
+    }
+
+    public ReorderMonitor(Duration leadTime, Duration cover, int safetyStock) {
+        this(leadTime, cover, safetyStock, System::currentTimeMillis);
+    }
+
+    ReorderMonitor(Duration leadTime, Duration cover, int safetyStock, LongSupplier clock) {
+        this.leadTime = leadTime.toMillis();
+        this.cover = cover.toMillis();
+        this.safetyStock = safetyStock;
+        this.clock = clock;
+    }
+
+    // Starts following the inventory, seeded from its current version.
+    public void attach(Inventory inventory) {
+        synchronized (this) {
+            if (this.inventory != null) {
+                throw new IllegalStateException("Reorder monitor is already attached");
+            }
+            this.inventory = inventory;
+            drainer = new Thread(this::run, "reorder-monitor");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+        inventory.addStockListener(this);
+        StockSnapshot snap = inventory.snapshot();
+        synchronized (this) {
+            long now = clock.getAsLong();
+            for (int id = 0; id < snap.size(); id++) {
+                Item it = item(id);
+                if (it.version < snap.getVersion()) {
+                    update(it, snap.onHand(id), snap.getVersion(), now);
+                }
+            }
+            if (latest == null || latest.getVersion() < snap.getVersion()) {
+                latest = snap;
+            }
+        }
+    }
+
+    // Runs on the committing lane, so it only queues the change.
+    @Override
+    public void stockChanged(StockSnapshot version, Inventory.Change change, int[] ids, int[] deltas) {
+        int[] sold = null;
+        if (change == Inventory.Change.SALE) {
+            sold = new int[ids.length];
+            for (int k = 0; k < ids.length; k++) {
+                sold[k] = Math.max(0, -deltas[k]);
+            }
+        }
+        pending.add(new Event(version, ids, sold, clock.getAsLong()));
+        if (waiting) {
+            LockSupport.unpark(drainer);
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            waiting = true;
+            if (pending.isEmpty() && !closed) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+            drain();
+        }
+    }
+
+    // Applies every queued change. Callers of the queries hold the monitor already.
+    private synchronized void drain() {
+        Event e;
+        while ((e = pending.poll()) != null) {
+            apply(e);
+        }
+    }
+
+    private void apply(Event e) {
+        long now = clock.getAsLong();
+        for (int k = 0; k < e.ids.length; k++) {
+            Item it = item(e.ids[k]);
+            // a reload's cut or a replaced product is a correction, not units sold
+            if (e.sold != null && e.sold[k] > 0) {
+                if (it.hour == null) {
+                    it.hour = new Window(5 * MINUTE, 12);
+                    it.day = new Window(HOUR, 24);
+                }
+                it.hour.add(e.at, e.sold[k]);
+                it.day.add(e.at, e.sold[k]);
+            }
+            // lanes publish out of order; an older version's count must not win
+            if (e.version.getVersion() > it.version) {
+                update(it, e.version.onHand(e.ids[k]), e.version.getVersion(), now);
+            } else {
+                rekey(it, now);
+            }
+        }
+        if (latest == null || latest.getVersion() < e.version.getVersion()) {
+            latest = e.version;
+        }
+    }
+
+    // Stops following the inventory. Queries still answer from what was applied.
+    @Override
+    public void close() {
+        Inventory from;
+        synchronized (this) {
+            from = inventory;
+        }
+        if (from == null || closed) {
+            return;
+        }
+        from.removeStockListener(this);
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain();
+    }
+
+    // The n products with the least stock, lowest first.
+    public synchronized List<StockLevel> lowest(int n) {
+        drain();
+        List<StockLevel> out = new ArrayList<>();
+        for (Item it : byStock) {
+            if (out.size() == n) break;
+            out.add(new StockLevel(latest.product(it.id), it.onHand));
+        }
+        return out;
+    }
+
+    // Every product with less than threshold on hand, lowest first.
+    public synchronized List<StockLevel> below(int threshold) {
+        drain();
+        List<StockLevel> out = new ArrayList<>();
+        for (Item it : byStock.headSet(probe(threshold), false)) {
+            out.add(new StockLevel(latest.product(it.id), it.onHand));
+        }
+        return out;
+    }
+
+    // Visits products by on hand, lowest first, from the first after (from, afterId) up to
+    // to units, while the visitor returns true. afterId -1 starts at the first with from units.
+    public synchronized void scanByStock(int from, int afterId, int to, StockVisitor visitor) {
+        drain();
+        Item start = probe(from);
+        if (afterId >= 0) {
+            start = new Item(afterId);
+            start.onHand = from;
+        }
+        for (Item it : byStock.tailSet(start, false)) {
+            if (it.onHand > to || !visitor.visit(it.id, it.onHand)) return;
+        }
+    }
+
+    // Up to n products due for reordering, most urgent first.
+    public synchronized List<Suggestion> suggestions(int n) {
+        drain();
+        long now = clock.getAsLong();
+        while (true) {
+            // velocities decay as windows slide, so refresh keys computed a bucket ago and look again
+            List<Item> stale = new ArrayList<>();
+            List<Suggestion> out = new ArrayList<>();
+            for (Item it : byDepletion) {
+                if (out.size() == n || it.untilSafety > leadTime) break;
+                if (it.hour != null && now - it.keyedAt >= it.hour.width) {
+                    stale.add(it);
+                    continue;
+                }
+                out.add(suggest(it));
+            }
+            if (stale.isEmpty()) {
+                return out;
+            }
+            for (Item it : stale) {
+                rekey(it, now);
+            }
+        }
+    }
+
+    private Suggestion suggest(Item it) {
+        double perMilli = it.rate;
+        int target = (int) Math.ceil(perMilli * cover) + safetyStock;
+        return new Suggestion(latest.product(it.id), it.onHand, perMilli * DAY, Math.max(1, target - it.onHand));
+    }
+
+    private Item item(int id) {
+        while (items.size() <= id) {
+            Item it = new Item(items.size());
+            items.add(it);
+            byStock.add(it);
+        }
+        return items.get(id);
+    }
+
+    private void update(Item it, int onHand, long version, long now) {
+        byStock.remove(it);
+        it.onHand = onHand;
+        it.version = version;
+        byStock.add(it);
+        rekey(it, now);
+    }
+
+    private void rekey(Item it, long now) {
+        byDepletion.remove(it);
+        it.rate = it.hour == null ? 0 : Math.max(it.hour.rate(now), it.day.rate(now));
+        if (it.onHand <= safetyStock) {
+            it.untilSafety = 0;
+        } else {
+            it.untilSafety = it.rate > 0 ? (it.onHand - safetyStock) / it.rate : Double.POSITIVE_INFINITY;
+        }
+        it.keyedAt = now;
+        if (it.untilSafety != Double.POSITIVE_INFINITY) {
+            byDepletion.add(it);
+        }
+    }
+
+    private static Item probe(int onHand) {
+        Item it = new Item(-1);
+        it.onHand = onHand;
+        return it;
+    }
+}
@@ -0,0 +1,686 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Columnar history of completed sales with one row per cart line, partitioned by day:
+//   sales/products.dict           product names, one per line; rows store the line index
+//   sales/2025-09-25/<column>.col one fixed-width big-endian file per column
+//   sales/tx.idx                  32 bytes per transaction number, at tx * 32: epoch day,
+//                                 row count, first row, the sale a refund returns, and the
+//                                 newest refund of a sale (or the refund before a refund)
+// Rows are appended in batches by a background thread. Each batch forces its rows to disk
+// before their index entries are written, and forces the index before flush() returns.
+// When a partition is reopened its columns are cut back to the shortest one, and rows past
+// the last indexed sale are dropped, so a batch cut short by a crash or a failed write leaves
+// nothing behind. Failed batches are retried with the next one. The same rows travel in the
+// sale's journal record, so rows lost in a crash are appended again by recover() on startup.
+// Refunds are rows with negative quantities and amounts, so every aggregate comes out net.
+public class SalesLog implements AutoCloseable, Flushable {
+
+    public enum Column {
+        TIME(8),      // epoch millis
+        TX(8),
+        PRODUCT(4),   // index into products.dict
+        QTY(4),
+        PRICE(8),     // unit price in cents
+        DISCOUNT(8),  // promotion discount on the line in cents
+        TAX(8),       // the line's share of the receipt tax in cents
+        FLAGS(1);     // bit 0 taxable, bits 1-2 customer type, bit 3 refund
+
+        final int width;
+
+        Column(int width) {
+            this.width = width;
+        }
+
+        String fileName() {
+            return name().toLowerCase(Locale.ROOT) + ".col";
+        }
+    }
+
+    // One cart line of a sale or refund, as recorded. A refund's quantity and amounts are
+    // positive here; they are stored negated.
+    public static final class Line {
+        private final String product;
+        private final int quantity;
+        private final long unitPriceCents;
+        private final long discountCents;
+        private final long taxCents;
+        private final boolean taxable;
+
+        public Line(String product, int quantity, long unitPriceCents, long discountCents, long taxCents, boolean taxable) {
+            this.product = product;
+            this.quantity = quantity;
+            this.unitPriceCents = unitPriceCents;
+            this.discountCents = discountCents;
+            this.taxCents = taxCents;
+            this.taxable = taxable;
+        }
+
+        public String getProduct() {
+            return product;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public long getUnitPriceCents() {
+            return unitPriceCents;
+        }
+
+        // promotion discount on the line
+        public long getDiscountCents() {
+            return discountCents;
+        }
+
+        // the line's share of the receipt tax
+        public long getTaxCents() {
+            return taxCents;
+        }
+
+        public boolean isTaxable() {
+            return taxable;
+        }
+    }
+
+    // One transaction's rows, built before it commits so the journal can carry them too.
+    public static final class Entry {
+        private final long tx;
+        private final LocalDateTime when;
+        private final long original;
+        private final Row[] rows;
+
+        Entry(long tx, LocalDateTime when, long original, Row[] rows) {
+            this.tx = tx;
+            this.when = when;
+            this.original = original;
+            this.rows = rows;
+        }
+
+        public long getTx() {
+            return tx;
+        }
+
+        // tx, time and the sale a refund returns, then one line per row; tab separated
+        public byte[] encode() {
+            StringBuilder sb = new StringBuilder(32 + rows.length * 48);
+            sb.append(tx).append('\t').append(when).append('\t').append(original);
+            for (Row r : rows) {
+                sb.append('\n').append(r.product).append('\t').append(r.qty).append('\t').append(r.price)
+                        .append('\t').append(r.discount).append('\t').append(r.tax).append('\t').append(r.flags);
+            }
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static final class Sale {
+        private final long tx;
+        private final LocalDateTime time;
+        private final CustomerType type;
+        private final long original;
+        private final List<Line> lines;
+
+        Sale(long tx, LocalDateTime time, CustomerType type, long original, List<Line> lines) {
+            this.tx = tx;
+            this.time = time;
+            this.type = type;
+            this.original = original;
+            this.lines = lines;
+        }
+
+        public long getTx() {
+            return tx;
+        }
+
+        public LocalDateTime getTime() {
+            return time;
+        }
+
+        public CustomerType getType() {
+            return type;
+        }
+
+        public boolean isRefund() {
+            return original > 0;
+        }
+
+        // the sale a refund returns, 0 for a sale
+        public long getOriginalTx() {
+            return original;
+        }
+
+        public List<Line> getLines() {
+            return lines;
+        }
+    }
+
+    static final String DICTIONARY = "products.dict";
+    static final String TX_INDEX = "tx.idx";
+    private static final int ENTRY = 32;
+    private static final byte REFUND = 8;
+    private static final int MAX_BATCH = 4096;
+    private static final Metrics.Counter ROWS = Metrics.counter("sales.rows");
+    private static final Metrics.Counter FAILED = Metrics.counter("sales.failed");
+
+    private final Path dir;
+    private final ZoneId zone;
+    private final BlockingQueue<Row[]> queue;
+    private final Thread writer;
+    private final Map<String, Integer> productIds = new HashMap<>();
+    // the same names by id, for lookups from other threads; never changed once published,
+    // the writer swaps in a longer copy, so a reader never sees it half rebuilt
+    private volatile List<String> productNames = List.of();
+    private final FileChannel dictionary;
+    private final FileChannel index;
+    private final AtomicLong queued = new AtomicLong();
+    private long written;
+    // writer thread only: sales whose batch failed, tried again before the next one
+    private final List<Row[]> failed = new ArrayList<>();
+    private volatile int unwritten;
+    private LocalDate openDay;
+    private FileChannel[] columns;
+    private volatile boolean closed;
+
+    private static final class Row {
+        final long time;
+        final LocalDate day;
+        final long tx;
+        final String product;
+        final int qty;
+        final long price;
+        final long discount;
+        final long tax;
+        final byte flags;
+        // the sale a refund row returns
+        final long original;
+
+        Row(long time, LocalDate day, long tx, String product, int qty, long price, long discount, long tax, byte flags, long original) {
+            this.time = time;
+            this.day = day;
+            this.tx = tx;
+            this.product = product;
+            this.qty = qty;
+            this.price = price;
+            this.discount = discount;
+            this.tax = tax;
+            this.flags = flags;
+            this.original = original;
+        }
+    }
+
+    private static final Row[] STOP = new Row[0];
+
+    private SalesLog(Path dir, ZoneId zone) throws IOException {
+        this.dir = dir;
+        this.zone = zone;
+        Files.createDirectories(dir);
+        this.dictionary = FileChannel.open(dir.resolve(DICTIONARY), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        loadDictionary();
+        this.index = FileChannel.open(dir.resolve(TX_INDEX), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.queue = new ArrayBlockingQueue<>(1024);
+        this.writer = new Thread(this::run, "sales-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    public static SalesLog open(Path dir) throws IOException {
+        return new SalesLog(dir, ZoneId.systemDefault());
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    public void append(long tx, LocalDateTime when, Cart cart, CustomerType type) {
+        if (!cart.isEmpty()) {
+            append(sale(tx, when, cart, type));
+        }
+    }
+
+    // One row per cart line; the cart's receipt tax is spread over its taxable lines.
+    public Entry sale(long tx, LocalDateTime when, Cart cart, CustomerType type) {
+        long time = when.atZone(zone).toInstant().toEpochMilli();
+        LocalDate day = when.toLocalDate();
+        TaxTable taxes = cart.getPricing().getTaxes();
+
+        Row[] rows = new Row[cart.items().size()];
+        long taxLeft = cart.getTaxCents();
+        int lastTaxable = -1;
+        long[] lineTax = new long[rows.length];
+        int i = 0;
+        for (CartItem it : cart.items()) {
+            if (it.getTaxStatus() == TaxStatus.TAXABLE) {
+                lineTax[i] = Money.applyRate(it.getLineTotalCents() - it.getDiscountCents(), taxes.scaledRate(it.getTaxCategory()));
+                taxLeft -= lineTax[i];
+                lastTaxable = i;
+            }
+            i++;
+        }
+        // rounding per line can drift from the receipt by a cent or two; the last taxable line absorbs it
+        if (lastTaxable >= 0) {
+            lineTax[lastTaxable] += taxLeft;
+        }
+
+        i = 0;
+        for (CartItem it : cart.items()) {
+            byte flags = (byte) ((it.getTaxStatus() == TaxStatus.TAXABLE ? 1 : 0) | type.ordinal() << 1);
+            rows[i] = new Row(time, day, tx, it.getName(), it.getQuantity(), it.getUnitPriceCents(), it.getDiscountCents(), lineTax[i], flags, 0);
+            i++;
+        }
+        return new Entry(tx, when, 0, rows);
+    }
+
+    public void appendRefund(long tx, LocalDateTime when, Sale original, List<Line> lines) {
+        if (!lines.isEmpty()) {
+            append(refund(tx, when, original, lines));
+        }
+    }
+
+    // The rows of a refund against an earlier sale.
+    public Entry refund(long tx, LocalDateTime when, Sale original, List<Line> lines) {
+        long time = when.atZone(zone).toInstant().toEpochMilli();
+        LocalDate day = when.toLocalDate();
+        Row[] rows = new Row[lines.size()];
+        int i = 0;
+        for (Line l : lines) {
+            byte flags = (byte) ((l.isTaxable() ? 1 : 0) | original.getType().ordinal() << 1 | REFUND);
+            rows[i++] = new Row(time, day, tx, l.getProduct(), -l.getQuantity(), l.getUnitPriceCents(),
+                    -l.getDiscountCents(), -l.getTaxCents(), flags, original.getTx());
+        }
+        return new Entry(tx, when, original.getTx(), rows);
+    }
+
+    public void append(Entry entry) {
+        if (closed || entry.rows.length == 0) {
+            return;
+        }
+        enqueue(entry.rows);
+    }
+
+    private void enqueue(Row[] rows) {
+        try {
+            queue.put(rows);
+            queued.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits until every row queued so far is on disk. Throws if some could not be written;
+    // they stay queued for another try.
+    @Override
+    public void flush() throws IOException {
+        if (unwritten > 0 && !closed) {
+            // failed rows are retried with the next batch, so give them one
+            enqueue(new Row[0]);
+        }
+        long target = queued.get();
+        synchronized (this) {
+            while (written < target && writer.isAlive()) {
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while flushing the sales log", e);
+                }
+            }
+        }
+        if (unwritten > 0) {
+            throw new IOException(unwritten + " sales are not in the sales log yet");
+        }
+    }
+
+    // Queues the journaled sales and refunds that never reached the log, after a crash.
+    // Returns how many.
+    public int recover(List<byte[]> journaled) throws IOException {
+        int recovered = 0;
+        for (byte[] text : journaled) {
+            Entry e = decode(text);
+            if (e.rows.length > 0 && entry(e.tx) == null) {
+                append(e);
+                recovered++;
+            }
+        }
+        return recovered;
+    }
+
+    private Entry decode(byte[] text) {
+        String[] lines = new String(text, StandardCharsets.UTF_8).split("\n");
+        String[] head = lines[0].split("\t");
+        long tx = Long.parseLong(head[0]);
+        LocalDateTime when = LocalDateTime.parse(head[1]);
+        long original = Long.parseLong(head[2]);
+        long time = when.atZone(zone).toInstant().toEpochMilli();
+        Row[] rows = new Row[lines.length - 1];
+        for (int i = 0; i < rows.length; i++) {
+            String[] f = lines[i + 1].split("\t");
+            rows[i] = new Row(time, when.toLocalDate(), tx, f[0], Integer.parseInt(f[1]), Long.parseLong(f[2]),
+                    Long.parseLong(f[3]), Long.parseLong(f[4]), Byte.parseByte(f[5]), original);
+        }
+        return new Entry(tx, when, original, rows);
+    }
+
+    // The sale or refund with this transaction number: one read of the index and one of each
+    // column, however long the history is.
+    public Optional<Sale> find(long tx) throws IOException {
+        ByteBuffer entry = entry(tx);
+        if (entry == null) {
+            return Optional.empty();
+        }
+        LocalDate day = LocalDate.ofEpochDay(entry.getInt(0));
+        int rows = entry.getInt(4);
+        long first = entry.getLong(8);
+        long original = entry.getLong(16);
+
+        Path partition = dir.resolve(day.toString());
+        ByteBuffer time = column(partition, Column.TIME, first, rows);
+        ByteBuffer product = column(partition, Column.PRODUCT, first, rows);
+        ByteBuffer qty = column(partition, Column.QTY, first, rows);
+        ByteBuffer price = column(partition, Column.PRICE, first, rows);
+        ByteBuffer discount = column(partition, Column.DISCOUNT, first, rows);
+        ByteBuffer tax = column(partition, Column.TAX, first, rows);
+        ByteBuffer flags = column(partition, Column.FLAGS, first, rows);
+
+        List<String> names = productNames;
+        List<Line> lines = new ArrayList<>(rows);
+        int sign = original > 0 ? -1 : 1;
+        for (int r = 0; r < rows; r++) {
+            lines.add(new Line(names.get(product.getInt()), sign * qty.getInt(), price.getLong(),
+                    sign * discount.getLong(), sign * tax.getLong(), (flags.get(r) & 1) != 0));
+        }
+        LocalDateTime when = LocalDateTime.ofInstant(Instant.ofEpochMilli(time.getLong(0)), zone);
+        CustomerType type = CustomerType.values()[(flags.get(0) >> 1) & 3];
+        return Optional.of(new Sale(tx, when, type, original, lines));
+    }
+
+    // Refunds recorded against a sale, newest first.
+    public List<Sale> refunds(long tx) throws IOException {
+        List<Sale> out = new ArrayList<>();
+        ByteBuffer entry = entry(tx);
+        long next = entry == null ? 0 : entry.getLong(24);
+        while (next > 0) {
+            Optional<Sale> refund = find(next);
+            if (refund.isEmpty()) {
+                break;
+            }
+            out.add(refund.get());
+            next = entry(next).getLong(24);
+        }
+        return out;
+    }
+
+    // the index entry of tx, or null if nothing was recorded under it
+    private ByteBuffer entry(long tx) throws IOException {
+        if (tx <= 0) {
+            return null;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+        while (entry.hasRemaining()) {
+            if (index.read(entry, tx * ENTRY + entry.position()) < 0) {
+                return null;
+            }
+        }
+        return entry.getInt(4) > 0 ? entry : null;
+    }
+
+    private static ByteBuffer column(Path partition, Column c, long first, int rows) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(rows * c.width);
+        try (FileChannel ch = FileChannel.open(partition.resolve(c.fileName()), StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, first * c.width + buf.position()) < 0) {
+                    throw new IOException("Sales log is missing rows of " + partition.getFileName() + "/" + c.fileName());
+                }
+            }
+        }
+        return buf.flip();
+    }
+
+    private void run() {
+        List<Row[]> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            boolean stop = batch.remove(STOP);
+            int taken = batch.size();
+            // empty batches from flush() only carry the retry
+            batch.removeIf(sale -> sale.length == 0);
+
+            int rows = 0;
+            try {
+                // earlier failures go first so rows stay in transaction order; a failed batch
+                // may have indexed some of its sales before it stopped
+                List<Row[]> retry = new ArrayList<>(failed.size());
+                for (Row[] sale : failed) {
+                    if (entry(sale[0].tx) == null) retry.add(sale);
+                }
+                failed.clear();
+                batch.addAll(0, retry);
+                for (Row[] r : batch) rows += r.length;
+                write(batch, rows);
+                ROWS.add(rows);
+            } catch (IOException | RuntimeException e) {
+                FAILED.add(rows);
+                System.err.println("Could not append to sales log, will retry: " + e.getMessage());
+                failed.addAll(batch);
+                resync();
+            }
+            synchronized (this) {
+                unwritten = failed.size();
+                written += taken;
+                notifyAll();
+            }
+            batch.clear();
+            if (stop) {
+                return;
+            }
+        }
+    }
+
+    private void write(List<Row[]> batch, int rows) throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        ByteBuffer[] bufs = new ByteBuffer[Column.values().length];
+        for (Column c : Column.values()) {
+            bufs[c.ordinal()] = ByteBuffer.allocate(rows * c.width);
+        }
+        List<String> newNames = new ArrayList<>();
+        List<Row[]> daySales = new ArrayList<>();
+        LocalDate day = null;
+
+        for (Row[] sale : batch) {
+            if (!sale[0].day.equals(day)) {
+                // a batch that crosses midnight is written as two appends
+                flush(day, bufs, newNames, daySales);
+                day = sale[0].day;
+            }
+            daySales.add(sale);
+            for (Row r : sale) {
+                Integer id = productIds.get(r.product);
+                if (id == null) {
+                    id = productIds.size();
+                    productIds.put(r.product, id);
+                    newNames.add(r.product);
+                }
+                bufs[Column.TIME.ordinal()].putLong(r.time);
+                bufs[Column.TX.ordinal()].putLong(r.tx);
+                bufs[Column.PRODUCT.ordinal()].putInt(id);
+                bufs[Column.QTY.ordinal()].putInt(r.qty);
+                bufs[Column.PRICE.ordinal()].putLong(r.price);
+                bufs[Column.DISCOUNT.ordinal()].putLong(r.discount);
+                bufs[Column.TAX.ordinal()].putLong(r.tax);
+                bufs[Column.FLAGS.ordinal()].put(r.flags);
+            }
+        }
+        flush(day, bufs, newNames, daySales);
+        index.force(false);
+    }
+
+    private void flush(LocalDate day, ByteBuffer[] bufs, List<String> newNames, List<Row[]> sales) throws IOException {
+        if (day == null || bufs[0].position() == 0) {
+            return;
+        }
+        // names go first so no row ever points past the end of the dictionary
+        if (!newNames.isEmpty()) {
+            StringBuilder text = new StringBuilder();
+            for (String name : newNames) text.append(name).append('\n');
+            ByteBuffer names = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+            while (names.hasRemaining()) dictionary.write(names);
+            dictionary.force(false);
+            List<String> grown = new ArrayList<>(productNames.size() + newNames.size());
+            grown.addAll(productNames);
+            grown.addAll(newNames);
+            productNames = Collections.unmodifiableList(grown);
+            newNames.clear();
+        }
+        if (!day.equals(openDay)) {
+            openPartition(day);
+        }
+        long first = columns[Column.TIME.ordinal()].position() / Column.TIME.width;
+        for (Column c : Column.values()) {
+            ByteBuffer buf = bufs[c.ordinal()];
+            buf.flip();
+            while (buf.hasRemaining()) columns[c.ordinal()].write(buf);
+            buf.clear();
+        }
+        // rows reach the disk before the index entries that point at them
+        for (FileChannel ch : columns) ch.force(false);
+        index(day, first, sales);
+        sales.clear();
+    }
+
+    private void index(LocalDate day, long first, List<Row[]> sales) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY);
+        ByteBuffer link = ByteBuffer.allocate(8);
+        for (Row[] sale : sales) {
+            long tx = sale[0].tx;
+            long original = sale[0].original;
+            long previous = 0;
+            if (original > 0) {
+                ByteBuffer of = entry(original);
+                previous = of == null ? 0 : of.getLong(24);
+            }
+            entry.clear();
+            entry.putInt((int) day.toEpochDay()).putInt(sale.length).putLong(first).putLong(original).putLong(previous).flip();
+            while (entry.hasRemaining()) index.write(entry, tx * ENTRY + entry.position());
+            // the refund's own entry goes first, so a reader following the chain never finds a hole
+            if (original > 0) {
+                link.clear();
+                link.putLong(tx).flip();
+                while (link.hasRemaining()) index.write(link, original * ENTRY + 24 + link.position());
+            }
+            first += sale.length;
+        }
+    }
+
+    private void openPartition(LocalDate day) throws IOException {
+        closePartition();
+        Path partition = dir.resolve(day.toString());
+        Files.createDirectories(partition);
+        FileChannel[] channels = new FileChannel[Column.values().length];
+        long rows = Long.MAX_VALUE;
+        for (Column c : Column.values()) {
+            channels[c.ordinal()] = FileChannel.open(partition.resolve(c.fileName()), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            rows = Math.min(rows, channels[c.ordinal()].size() / c.width);
+        }
+        // rows of a batch that stopped before indexing them; recovery appends them again
+        ByteBuffer tx = ByteBuffer.allocate(Column.TX.width);
+        while (rows > 0) {
+            tx.clear();
+            while (tx.hasRemaining()) {
+                if (channels[Column.TX.ordinal()].read(tx, (rows - 1) * Column.TX.width + tx.position()) < 0) break;
+            }
+            if (entry(tx.getLong(0)) != null) {
+                break;
+            }
+            rows--;
+        }
+        for (Column c : Column.values()) {
+            FileChannel ch = channels[c.ordinal()];
+            ch.truncate(rows * c.width);
+            ch.position(rows * c.width);
+        }
+        columns = channels;
+        openDay = day;
+    }
+
+    private void closePartition() throws IOException {
+        if (columns != null) {
+            for (FileChannel ch : columns) {
+                ch.force(false);
+                ch.close();
+            }
+            columns = null;
+            openDay = null;
+        }
+    }
+
+    // ids handed out in a failed batch may never have reached the dictionary
+    private void resync() {
+        try {
+            closePartition();
+            productIds.clear();
+            loadDictionary();
+        } catch (IOException e) {
+            System.err.println("Could not reopen sales log: " + e.getMessage());
+        }
+    }
+
+    private void loadDictionary() throws IOException {
+        // drop a name that was cut off mid-write
+        byte[] bytes = Files.readAllBytes(dir.resolve(DICTIONARY));
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') end--;
+        dictionary.truncate(end);
+        dictionary.position(end);
+
+        List<String> names = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == '\n') {
+                String name = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                productIds.put(name, productIds.size());
+                names.add(name);
+                start = i + 1;
+            }
+        }
+        productNames = Collections.unmodifiableList(names);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closePartition();
+        dictionary.force(false);
+        dictionary.close();
+        index.force(false);
+        index.close();
+    }
+}
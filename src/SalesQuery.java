@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.stream.IntStream;
+
+// Grouped aggregates over a SalesLog directory. Only the columns a query needs are read,
+// straight into primitive arrays, and day partitions are scanned in parallel.
+public class SalesQuery {
+
+    public enum Measure {
+        UNITS, REVENUE_CENTS, TAX_CENTS, DISCOUNT_CENTS, LINES
+    }
+
+    public enum GroupBy {
+        PRODUCT, DAY, HOUR, CUSTOMER_TYPE, TAX_STATUS
+    }
+
+    private final Path dir;
+    private final ZoneId zone;
+
+    public SalesQuery(Path dir) {
+        this(dir, ZoneId.systemDefault());
+    }
+
+    public SalesQuery(Path dir, ZoneId zone) {
+        this.dir = dir;
+        this.zone = zone;
+    }
+
+    private static final class Partition {
+        final LocalDate day;
+        final Path path;
+        final int rows;
+
+        Partition(LocalDate day, Path path, int rows) {
+            this.day = day;
+            this.path = path;
+            this.rows = rows;
+        }
+    }
+
+    // Sum of the measure per group for sales from..to inclusive. Days and hours come back
+    // in time order, other groups largest first; groups with nothing sold are left out.
+    public LinkedHashMap<String, Long> sum(LocalDate from, LocalDate to, GroupBy by, Measure measure) throws IOException {
+        return collect(from, to, by, measure, Integer.MAX_VALUE, by != GroupBy.DAY && by != GroupBy.HOUR);
+    }
+
+    // The n largest groups, largest first.
+    public LinkedHashMap<String, Long> top(LocalDate from, LocalDate to, GroupBy by, Measure measure, int n) throws IOException {
+        return collect(from, to, by, measure, n, true);
+    }
+
+    private LinkedHashMap<String, Long> collect(LocalDate from, LocalDate to, GroupBy by, Measure measure, int n, boolean largestFirst) throws IOException {
+        List<Partition> partitions = partitions(from, to);
+        Path dictionary = dir.resolve(SalesLog.DICTIONARY);
+        List<String> products = by == GroupBy.PRODUCT && Files.exists(dictionary) ? Files.readAllLines(dictionary) : List.of();
+        int groups = switch (by) {
+            case PRODUCT -> products.size();
+            case DAY -> partitions.size();
+            case HOUR -> 24;
+            case CUSTOMER_TYPE -> CustomerType.values().length;
+            case TAX_STATUS -> 2;
+        };
+
+        long[] totals;
+        try {
+            totals = IntStream.range(0, partitions.size()).parallel()
+                    .mapToObj(i -> scan(partitions.get(i), i, by, measure, groups))
+                    .reduce(new long[groups], SalesQuery::add);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Integer[] order = new Integer[groups];
+        for (int i = 0; i < groups; i++) order[i] = i;
+        if (largestFirst) {
+            Arrays.sort(order, (a, b) -> Long.compare(totals[b], totals[a]));
+        }
+
+        LinkedHashMap<String, Long> out = new LinkedHashMap<>();
+        for (int g : order) {
+            if (out.size() == n) break;
+            if (totals[g] == 0) continue;
+            out.put(label(by, g, products, partitions), totals[g]);
+        }
+        return out;
+    }
+
+    public long total(LocalDate from, LocalDate to, Measure measure) throws IOException {
+        long sum = 0;
+        for (long v : sum(from, to, GroupBy.DAY, measure).values()) sum += v;
+        return sum;
+    }
+
+    private static long[] add(long[] a, long[] b) {
+        long[] out = new long[a.length];
+        for (int i = 0; i < a.length; i++) out[i] = a[i] + b[i];
+        return out;
+    }
+
+    private long[] scan(Partition p, int index, GroupBy by, Measure measure, int groups) {
+        try {
+            long[] totals = new long[groups];
+            int rows = p.rows;
+            if (rows == 0) return totals;
+
+            int[] qty = measure == Measure.UNITS || measure == Measure.REVENUE_CENTS ? ints(p, SalesLog.Column.QTY) : null;
+            long[] price = measure == Measure.REVENUE_CENTS ? longs(p, SalesLog.Column.PRICE) : null;
+            long[] discount = measure == Measure.REVENUE_CENTS || measure == Measure.DISCOUNT_CENTS ? longs(p, SalesLog.Column.DISCOUNT) : null;
+            long[] tax = measure == Measure.TAX_CENTS ? longs(p, SalesLog.Column.TAX) : null;
+
+            int[] key = null;
+            byte[] flags = null;
+            long[] time = null;
+            long dayStart = 0;
+            switch (by) {
+                case PRODUCT -> key = ints(p, SalesLog.Column.PRODUCT);
+                case CUSTOMER_TYPE, TAX_STATUS -> flags = bytes(p, SalesLog.Column.FLAGS);
+                case HOUR -> {
+                    time = longs(p, SalesLog.Column.TIME);
+                    dayStart = p.day.atStartOfDay(zone).toInstant().toEpochMilli();
+                }
+                default -> { }
+            }
+
+            for (int r = 0; r < rows; r++) {
+                long v = switch (measure) {
+                    case UNITS -> qty[r];
+                    case REVENUE_CENTS -> price[r] * qty[r] - discount[r];
+                    case TAX_CENTS -> tax[r];
+                    case DISCOUNT_CENTS -> discount[r];
+                    case LINES -> 1;
+                };
+                int g = switch (by) {
+                    case PRODUCT -> key[r];
+                    case DAY -> index;
+                    case HOUR -> (int) Math.min(23, Math.max(0, (time[r] - dayStart) / 3_600_000));
+                    case CUSTOMER_TYPE -> (flags[r] >> 1) & 3;
+                    case TAX_STATUS -> flags[r] & 1;
+                };
+                if (g < groups) totals[g] += v;
+            }
+            return totals;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String label(GroupBy by, int g, List<String> products, List<Partition> partitions) {
+        return switch (by) {
+            case PRODUCT -> products.get(g);
+            case DAY -> partitions.get(g).day.toString();
+            case HOUR -> String.format(Locale.US, "%02d:00", g);
+            case CUSTOMER_TYPE -> CustomerType.values()[g].name();
+            case TAX_STATUS -> g == 1 ? "Taxable" : "Tax-Exempt";
+        };
+    }
+
+    private List<Partition> partitions(LocalDate from, LocalDate to) throws IOException {
+        List<Partition> out = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return out;
+        }
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path path : ds) {
+                LocalDate day;
+                try {
+                    day = LocalDate.parse(path.getFileName().toString());
+                } catch (DateTimeParseException e) {
+                    continue;
+                }
+                if (day.isBefore(from) || day.isAfter(to)) continue;
+                // rows the writer has fully appended: the shortest column wins
+                long rows = Long.MAX_VALUE;
+                for (SalesLog.Column c : SalesLog.Column.values()) {
+                    Path col = path.resolve(c.fileName());
+                    rows = Math.min(rows, Files.exists(col) ? Files.size(col) / c.width : 0);
+                }
+                out.add(new Partition(day, path, Math.toIntExact(rows)));
+            }
+        }
+        out.sort(Comparator.comparing(p -> p.day));
+        return out;
+    }
+
+    private static ByteBuffer read(Partition p, SalesLog.Column c) throws IOException {
+        try (FileChannel ch = FileChannel.open(p.path.resolve(c.fileName()), StandardOpenOption.READ)) {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, (long) p.rows * c.width);
+        }
+    }
+
+    private static long[] longs(Partition p, SalesLog.Column c) throws IOException {
+        long[] out = new long[p.rows];
+        read(p, c).asLongBuffer().get(out);
+        return out;
+    }
+
+    private static int[] ints(Partition p, SalesLog.Column c) throws IOException {
+        int[] out = new int[p.rows];
+        read(p, c).asIntBuffer().get(out);
+        return out;
+    }
+
+    private static byte[] bytes(Partition p, SalesLog.Column c) throws IOException {
+        byte[] out = new byte[p.rows];
+        read(p, c).get(out);
+        return out;
+    }
+}
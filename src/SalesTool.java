@@ -0,0 +1,56 @@
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.Map;
+
+// Prints aggregates from a sales log directory, e.g.
+//   java SalesTool sales units product 2025-09-01 2025-09-30 10
+public class SalesTool {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: java SalesTool <sales-dir> <units|revenue|tax|discount|lines> <product|day|hour|customer|tax-status> [from [to]] [top N]");
+            return;
+        }
+
+        SalesQuery.Measure measure = switch (args[1]) {
+            case "units" -> SalesQuery.Measure.UNITS;
+            case "revenue" -> SalesQuery.Measure.REVENUE_CENTS;
+            case "tax" -> SalesQuery.Measure.TAX_CENTS;
+            case "discount" -> SalesQuery.Measure.DISCOUNT_CENTS;
+            case "lines" -> SalesQuery.Measure.LINES;
+            default -> throw new IllegalArgumentException("unknown measure " + args[1]);
+        };
+        SalesQuery.GroupBy by = switch (args[2]) {
+            case "product" -> SalesQuery.GroupBy.PRODUCT;
+            case "day" -> SalesQuery.GroupBy.DAY;
+            case "hour" -> SalesQuery.GroupBy.HOUR;
+            case "customer" -> SalesQuery.GroupBy.CUSTOMER_TYPE;
+            case "tax-status" -> SalesQuery.GroupBy.TAX_STATUS;
+            default -> throw new IllegalArgumentException("unknown grouping " + args[2]);
+        };
+        LocalDate from = args.length > 3 ? LocalDate.parse(args[3]) : LocalDate.now();
+        LocalDate to = args.length > 4 ? LocalDate.parse(args[4]) : from;
+        int top = args.length > 5 ? Integer.parseInt(args[5]) : Integer.MAX_VALUE;
+
+        long start = System.nanoTime();
+        SalesQuery query = new SalesQuery(Path.of(args[0]));
+        Map<String, Long> result = top == Integer.MAX_VALUE ? query.sum(from, to, by, measure) : query.top(from, to, by, measure, top);
+        long elapsed = System.nanoTime() - start;
+
+        boolean money = measure == SalesQuery.Measure.REVENUE_CENTS || measure == SalesQuery.Measure.TAX_CENTS || measure == SalesQuery.Measure.DISCOUNT_CENTS;
+        long total = 0;
+        for (Map.Entry<String, Long> e : result.entrySet()) {
+            System.out.println(String.format(Locale.US, "%-30s ", e.getKey()) + format(e.getValue(), money));
+            total += e.getValue();
+        }
+        if (top == Integer.MAX_VALUE) {
+            System.out.println(String.format(Locale.US, "%-30s ", "TOTAL") + format(total, money));
+        }
+        System.out.printf(Locale.US, "%n%s to %s in %d ms%n", from, to, elapsed / 1_000_000);
+    }
+
+    private static String format(long value, boolean money) {
+        return money ? String.format(Locale.US, "$%.2f", Money.toBigDecimal(value)) : Long.toString(value);
+    }
+}
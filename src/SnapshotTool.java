@@ -0,0 +1,24 @@
+import java.nio.file.Path;
+
+// Converts an inventory between the text format and the binary snapshot format.
+public class SnapshotTool {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 || !(args[0].equals("to-binary") || args[0].equals("to-text"))) {
+            System.out.println("Usage: java SnapshotTool <to-binary|to-text> <input> <output>");
+            return;
+        }
+
+        long start = System.nanoTime();
+        Inventory inventory = Inventory.load(Path.of(args[1]));
+        for (String error : inventory.getLoadErrors()) {
+            System.out.println("Skipped malformed line " + error);
+        }
+        long loaded = System.nanoTime();
+        inventory.save(Path.of(args[2]), args[0].equals("to-binary"));
+        long saved = System.nanoTime();
+
+        System.out.printf("%d products: loaded in %d ms, written in %d ms%n",
+                inventory.all().size(), (loaded - start) / 1_000_000, (saved - loaded) / 1_000_000);
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Committed stock at one version of an Inventory. On-hand counts live in a persistent 32-way
+// trie indexed by catalog id: a sale copies only the path down to each leaf it touches and
+// shares everything else with the previous version, so publishing a new version is cheap
+// and readers holding an old one never see it change.
+// Only stock and the set of ids are versioned. Products are views over the shared catalog,
+// so their names, prices and tax status are read as they are now, not as of this version;
+// take Product.getPrices() once for a consistent set of them.
+public final class StockSnapshot {
+
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+
+    private final long version;
+    // ids below size; the catalog is shared between versions and only ever grows
+    private final Catalog catalog;
+    private final int size;
+    private final Object root;
+    private final int shift;
+
+    private StockSnapshot(long version, Catalog catalog, int size, Object root, int shift) {
+        this.version = version;
+        this.catalog = catalog;
+        this.size = size;
+        this.root = root;
+        this.shift = shift;
+    }
+
+    static StockSnapshot empty(Catalog catalog) {
+        return new StockSnapshot(0, catalog, 0, new int[WIDTH], 0);
+    }
+
+    static StockSnapshot of(long version, Catalog catalog, int size, int[] onHand) {
+        // build the leaves, then stack levels until one node covers everything
+        int leaves = Math.max(1, (size + MASK) >>> BITS);
+        Object[] level = new Object[leaves];
+        for (int i = 0; i < leaves; i++) {
+            level[i] = Arrays.copyOfRange(onHand, i << BITS, (i + 1) << BITS);
+        }
+        int shift = 0;
+        while (level.length > 1) {
+            Object[] up = new Object[(level.length + MASK) >>> BITS];
+            for (int i = 0; i < up.length; i++) {
+                up[i] = Arrays.copyOfRange(level, i << BITS, (i + 1) << BITS);
+            }
+            level = up;
+            shift += BITS;
+        }
+        return new StockSnapshot(version, catalog, size, level[0], shift);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // a live view; its stock can be newer than this version, read it with onHand
+    public Product product(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException(slot);
+        }
+        return catalog.product(slot);
+    }
+
+    public int onHand(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException(slot);
+        }
+        int[] leaf = leafFor(slot);
+        return leaf == null ? 0 : leaf[slot & MASK];
+    }
+
+    // committed stock of p in this version, or 0 if p is not in this version's catalog
+    public int onHand(Product p) {
+        return p.getCatalog() == catalog && p.getId() < size ? onHand(p.getId()) : 0;
+    }
+
+    // the ids of this version as live product views
+    public List<Product> products() {
+        return new AbstractList<>() {
+            @Override
+            public Product get(int index) {
+                return product(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    public int[] toArray() {
+        int[] out = new int[size];
+        for (int leaf = 0; leaf < size; leaf += WIDTH) {
+            int[] values = leafFor(leaf);
+            if (values != null) {
+                System.arraycopy(values, 0, out, leaf, Math.min(WIDTH, size - leaf));
+            }
+        }
+        return out;
+    }
+
+    // null under a path no version has written to yet; those slots hold 0
+    private int[] leafFor(int slot) {
+        Object node = root;
+        for (int level = shift; level > 0 && node != null; level -= BITS) {
+            node = ((Object[]) node)[(slot >>> level) & MASK];
+        }
+        return (int[]) node;
+    }
+
+    // New version with deltas[i] added to slots[i]. Nodes copied for this version are
+    // tracked so several changes under the same leaf copy it only once.
+    StockSnapshot adjust(int[] slots, int[] deltas) {
+        Set<Object> fresh = Collections.newSetFromMap(new IdentityHashMap<>());
+        Object newRoot = root;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] < 0 || slots[i] >= size) {
+                throw new IndexOutOfBoundsException(slots[i]);
+            }
+            newRoot = adjust(newRoot, shift, slots[i], deltas[i], fresh);
+        }
+        return new StockSnapshot(version + 1, catalog, size, newRoot, shift);
+    }
+
+    // New version covering newSize ids, with slots[i] set to values[i]; the last value given
+    // for a slot wins. Grows the trie by a level when it runs out of room, and copies only
+    // the paths it writes to.
+    StockSnapshot with(int newSize, int[] slots, int[] values) {
+        Object newRoot = root;
+        int newShift = shift;
+        while (newSize > WIDTH << newShift) {
+            Object[] up = new Object[WIDTH];
+            up[0] = newRoot;
+            newRoot = up;
+            newShift += BITS;
+        }
+        Set<Object> fresh = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] < 0 || slots[i] >= newSize) {
+                throw new IndexOutOfBoundsException(slots[i]);
+            }
+            newRoot = set(newRoot, newShift, slots[i], values[i], fresh);
+        }
+        return new StockSnapshot(version + 1, catalog, newSize, newRoot, newShift);
+    }
+
+    private static Object adjust(Object node, int level, int slot, int delta, Set<Object> fresh) {
+        if (level == 0) {
+            int[] leaf = own((int[]) node, fresh);
+            leaf[slot & MASK] += delta;
+            return leaf;
+        }
+        Object[] inner = own((Object[]) node, fresh);
+        int i = (slot >>> level) & MASK;
+        inner[i] = adjust(inner[i], level - BITS, slot, delta, fresh);
+        return inner;
+    }
+
+    private static Object set(Object node, int level, int slot, int value, Set<Object> fresh) {
+        if (level == 0) {
+            int[] leaf = own((int[]) node, fresh);
+            leaf[slot & MASK] = value;
+            return leaf;
+        }
+        Object[] inner = own((Object[]) node, fresh);
+        int i = (slot >>> level) & MASK;
+        inner[i] = set(inner[i], level - BITS, slot, value, fresh);
+        return inner;
+    }
+
+    // node itself if this version already copied it, otherwise a copy (or a new node) it owns
+    private static int[] own(int[] node, Set<Object> fresh) {
+        if (node != null && fresh.contains(node)) {
+            return node;
+        }
+        int[] copy = node == null ? new int[WIDTH] : node.clone();
+        fresh.add(copy);
+        return copy;
+    }
+
+    private static Object[] own(Object[] node, Set<Object> fresh) {
+        if (node != null && fresh.contains(node)) {
+            return node;
+        }
+        Object[] copy = node == null ? new Object[WIDTH] : node.clone();
+        fresh.add(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,167 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+// Hosts several stores in one process. Each store directory holds its own inventory.txt
+// and receipts folder and gets its own Inventory, journal, transaction sequence and
+// CheckoutEngine, so a checkout in one store never waits on another.
+// Cross-store queries fan out over the stores in parallel.
+public class StoreRegistry implements AutoCloseable {
+
+    public static final String INVENTORY_FILE = "inventory.txt";
+
+    private final Map<String, Store> stores;
+
+    public static final class Store {
+        private final String id;
+        private final Path inventoryPath;
+        private final CheckoutEngine engine;
+
+        Store(String id, Path inventoryPath, CheckoutEngine engine) {
+            this.id = id;
+            this.inventoryPath = inventoryPath;
+            this.engine = engine;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Path getInventoryPath() {
+            return inventoryPath;
+        }
+
+        public Inventory getInventory() {
+            return engine.getInventory();
+        }
+
+        public CheckoutEngine getEngine() {
+            return engine;
+        }
+    }
+
+    public static final class StockLevel {
+        private final String store;
+        private final String product;
+        private final int quantity;
+
+        StockLevel(String store, String product, int quantity) {
+            this.store = store;
+            this.product = product;
+            this.quantity = quantity;
+        }
+
+        public String getStore() {
+            return store;
+        }
+
+        public String getProduct() {
+            return product;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+    }
+
+    private StoreRegistry(Map<String, Store> stores) {
+        this.stores = stores;
+    }
+
+    // Opens every subdirectory of root that has an inventory.txt; stores load in parallel.
+    public static StoreRegistry open(Path root, Pricing pricing, boolean segmentedReceipts) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path dir : ds) {
+                if (Files.exists(dir.resolve(INVENTORY_FILE))) dirs.add(dir);
+            }
+        }
+        if (dirs.isEmpty()) {
+            throw new IOException("No store directories with " + INVENTORY_FILE + " under " + root);
+        }
+        dirs.sort(Comparator.comparing(d -> d.getFileName().toString()));
+
+        List<Store> opened = Collections.synchronizedList(new ArrayList<>());
+        try {
+            dirs.parallelStream().forEach(dir -> {
+                try {
+                    Path inventoryPath = dir.resolve(INVENTORY_FILE);
+                    Inventory inventory = Inventory.load(inventoryPath);
+                    CheckoutEngine engine = new CheckoutEngine(inventory, inventoryPath, dir.resolve("receipts"), pricing, segmentedReceipts);
+                    opened.add(new Store(dir.getFileName().toString(), inventoryPath, engine));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(dir.getFileName() + ": " + e.getMessage(), e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            closeAll(opened);
+            throw e.getCause();
+        }
+
+        Map<String, Store> byId = new LinkedHashMap<>();
+        for (Path dir : dirs) {
+            String id = dir.getFileName().toString();
+            for (Store s : opened) {
+                if (s.id.equals(id)) byId.put(id, s);
+            }
+        }
+        return new StoreRegistry(Collections.unmodifiableMap(byId));
+    }
+
+    public Optional<Store> get(String id) {
+        return Optional.ofNullable(stores.get(id));
+    }
+
+    public Collection<Store> all() {
+        return stores.values();
+    }
+
+    // Committed stock of one product in every store that carries it.
+    public Map<String, Integer> stockByStore(String product) {
+        return stores.values().parallelStream()
+                .flatMap(s -> s.getInventory().find(product).stream().map(p -> new StockLevel(s.id, p.getName(), s.getInventory().snapshot().onHand(p))))
+                .collect(Collectors.toMap(StockLevel::getStore, StockLevel::getQuantity, Integer::sum, TreeMap::new));
+    }
+
+    public long totalStock(String product) {
+        return stores.values().parallelStream()
+                .mapToLong(s -> s.getInventory().find(product).map(s.getInventory().snapshot()::onHand).orElse(0))
+                .sum();
+    }
+
+    // Every product below threshold in any store, lowest first. Each store's reorder
+    // monitor keeps its products ordered by stock, so only the matches are visited.
+    public List<StockLevel> lowStock(int threshold) {
+        return stores.values().parallelStream()
+                .flatMap(s -> s.engine.getReorderMonitor().below(threshold).stream()
+                        .map(level -> new StockLevel(s.id, level.getProduct().getName(), level.getOnHand())))
+                .sorted(Comparator.comparingInt(StockLevel::getQuantity)
+                        .thenComparing(StockLevel::getStore)
+                        .thenComparing(StockLevel::getProduct))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeAll(stores.values());
+    }
+
+    // each store compacts its own journal on close, so they shut down in parallel
+    private static void closeAll(Collection<Store> stores) throws IOException {
+        List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        new ArrayList<>(stores).parallelStream().forEach(s -> {
+            try {
+                s.engine.close();
+            } catch (IOException e) {
+                errors.add(s.id + ": " + e.getMessage());
+            }
+        });
+        if (!errors.isEmpty()) {
+            throw new IOException("Could not close stores: " + String.join("; ", errors));
+        }
+    }
+}
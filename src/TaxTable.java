@@ -0,0 +1,107 @@
+import java.math.BigDecimal;
+import java.util.*;
+
+// Sales tax rates by category. Category 0 is the default rate; taxable products
+// pay it unless they are assigned to another category. Exempt products pay nothing.
+public class TaxTable {
+
+    private final String[] names;
+    private final BigDecimal[] rates;
+    private final long[] scaledRates;
+    private final Map<String, Integer> productCategories;
+
+    private TaxTable(List<String> names, List<BigDecimal> rates, Map<String, Integer> productCategories) {
+        this.names = names.toArray(new String[0]);
+        this.rates = rates.toArray(new BigDecimal[0]);
+        this.scaledRates = new long[this.rates.length];
+        for (int i = 0; i < scaledRates.length; i++) {
+            scaledRates[i] = Money.toRate(this.rates[i]);
+        }
+        this.productCategories = productCategories;
+    }
+
+    public static TaxTable flat(BigDecimal rate) {
+        return new TaxTable(List.of("default"), List.of(rate), Map.of());
+    }
+
+    public static final class Builder {
+        private final List<String> names = new ArrayList<>();
+        private final List<BigDecimal> rates = new ArrayList<>();
+        private final Map<String, Integer> products = new HashMap<>();
+
+        public Builder(BigDecimal defaultRate) {
+            names.add("default");
+            rates.add(defaultRate);
+        }
+
+        public Builder rate(String category, BigDecimal rate) {
+            if (rate.signum() < 0) {
+                throw new IllegalArgumentException("negative tax rate for " + category);
+            }
+            int i = names.indexOf(category.toLowerCase(Locale.ROOT));
+            if (i < 0) {
+                names.add(category.toLowerCase(Locale.ROOT));
+                rates.add(rate);
+            } else {
+                rates.set(i, rate);
+            }
+            return this;
+        }
+
+        public Builder assign(String productName, String category) {
+            int i = names.indexOf(category.toLowerCase(Locale.ROOT));
+            if (i < 0) {
+                throw new IllegalArgumentException("unknown tax category " + category);
+            }
+            products.put(ProductIndex.normalize(productName), i);
+            return this;
+        }
+
+        public TaxTable build() {
+            return new TaxTable(names, rates, new HashMap<>(products));
+        }
+    }
+
+    public int categoryOf(Product p) {
+        if (productCategories.isEmpty()) {
+            return 0;
+        }
+        return productCategories.getOrDefault(ProductIndex.normalize(p.getName()), 0);
+    }
+
+    public int size() {
+        return rates.length;
+    }
+
+    // true when every taxable product pays the default rate
+    public boolean isFlat() {
+        return rates.length == 1;
+    }
+
+    public BigDecimal getDefaultRate() {
+        return rates[0];
+    }
+
+    public BigDecimal getRate(int category) {
+        return rates[category];
+    }
+
+    long scaledRate(int category) {
+        return scaledRates[category];
+    }
+
+    public String getName(int category) {
+        return names[category];
+    }
+
+    // Tax on per-category taxable amounts, rounded per category.
+    public long taxCents(long[] taxableCents) {
+        long tax = 0;
+        for (int i = 0; i < scaledRates.length; i++) {
+            if (taxableCents[i] != 0) {
+                tax += Money.applyRate(taxableCents[i], scaledRates[i]);
+            }
+        }
+        return tax;
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands out transaction numbers from blocks leased in a small metadata file.
+// The file holds the highest number ever leased, so a restart resumes past it without
+// scanning receipts; numbers left in a lease that was cut short by a crash are skipped.
+public class TransactionSequence implements AutoCloseable {
+
+    private final Path metaFile;
+    private final int blockSize;
+    private final AtomicLong next;
+    private volatile long leasedUpTo;
+
+    private TransactionSequence(Path metaFile, int blockSize, long first) {
+        this.metaFile = metaFile;
+        this.blockSize = blockSize;
+        this.next = new AtomicLong(first);
+        this.leasedUpTo = first - 1;
+    }
+
+    // lastKnown is the newest transaction recorded elsewhere (journal, snapshot); it wins if the
+    // metadata file is missing or behind, e.g. after restoring an old backup.
+    public static TransactionSequence open(Path metaFile, int blockSize, long lastKnown) throws IOException {
+        long leased = 0;
+        if (Files.exists(metaFile)) {
+            String text = Files.readString(metaFile, StandardCharsets.UTF_8).trim();
+            try {
+                leased = Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupt transaction sequence file " + metaFile + ": '" + text + "'");
+            }
+        }
+        return new TransactionSequence(metaFile, blockSize, Math.max(leased, lastKnown) + 1);
+    }
+
+    public long next() throws IOException {
+        long n = next.getAndIncrement();
+        if (n > leasedUpTo) {
+            lease(n);
+        }
+        return n;
+    }
+
+    public long peek() {
+        return next.get();
+    }
+
+    // Gives back the unused part of the current lease so a clean restart continues without a gap.
+    @Override
+    public synchronized void close() throws IOException {
+        long used = next.get() - 1;
+        if (used < leasedUpTo) {
+            store(used);
+        }
+    }
+
+    private synchronized void lease(long n) throws IOException {
+        if (n <= leasedUpTo) {
+            return;
+        }
+        store(n + blockSize - 1);
+    }
+
+    private void store(long upTo) throws IOException {
+        Path tmp = metaFile.resolveSibling(metaFile.getFileName() + ".tmp");
+        Files.createDirectories(metaFile.toAbsolutePath().getParent());
+        Files.writeString(tmp, Long.toString(upTo), StandardCharsets.UTF_8);
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+        Files.move(tmp, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        leasedUpTo = upTo;
+    }
+}